@@ -0,0 +1,253 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.Registry;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcArguments;
+import de.cosmocode.palava.ipc.IpcCall;
+import de.cosmocode.palava.ipc.IpcCallDestroyEvent;
+
+/**
+ * Decodes the base64 encoded {@link JsonRpc#ATTACHMENTS} of a request. Attachments
+ * exceeding {@link JsonRpcConfig#ATTACHMENTS_SPOOL_THRESHOLD} are decoded chunk-wise
+ * into temporary files which are mapped into memory, so the decoded payload never
+ * lives on the heap. Spooled files are deleted as soon as the owning call is destroyed.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class AttachmentSpool implements IpcCallDestroyEvent, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttachmentSpool.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final byte[] ALPHABET = new byte[128];
+
+    static {
+        Arrays.fill(ALPHABET, (byte) -1);
+        final String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < chars.length(); i++) {
+            ALPHABET[chars.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final Registry registry;
+
+    private boolean enabled;
+
+    private File directory;
+
+    private int spoolThreshold = CHUNK_SIZE;
+
+    private long maxSize = 64L * 1024 * 1024;
+
+    @Inject
+    public AttachmentSpool(Registry registry) {
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+    }
+
+    @Inject(optional = true)
+    void setEnabled(@Named(JsonRpcConfig.ATTACHMENTS_ENABLED) boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject(optional = true)
+    void setDirectory(@Named(JsonRpcConfig.ATTACHMENTS_DIRECTORY) String directory) {
+        this.directory = new File(Preconditions.checkNotNull(directory, "Directory"));
+    }
+
+    @Inject(optional = true)
+    void setSpoolThreshold(@Named(JsonRpcConfig.ATTACHMENTS_SPOOL_THRESHOLD) int spoolThreshold) {
+        Preconditions.checkArgument(spoolThreshold >= 0, "SpoolThreshold must not be negative");
+        this.spoolThreshold = spoolThreshold;
+    }
+
+    @Inject(optional = true)
+    void setMaxSize(@Named(JsonRpcConfig.ATTACHMENTS_MAX_SIZE) long maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "MaxSize must be positive");
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (!enabled) return;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new LifecycleException(new IOException("Unable to create " + directory));
+        }
+        registry.register(IpcCallDestroyEvent.class, this);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Decodes the specified attachments.
+     *
+     * @param attachments the attachments member, mapping names to base64 strings
+     * @param arguments the call's arguments
+     * @return the decoded attachments
+     * @throws IllegalArgumentException if an attachment is malformed, too large
+     *         or has the same name as a param
+     * @throws IOException if spooling failed
+     */
+    Attachments spool(Map<?, ?> attachments, IpcArguments arguments) throws IOException {
+        for (Object name : attachments.keySet()) {
+            if (arguments.containsKey(name)) {
+                throw new IllegalArgumentException(String.format("attachment %s conflicts with param", name));
+            }
+        }
+        final Map<String, ByteBuffer> buffers = Maps.newHashMap();
+        final List<File> files = Lists.newArrayList();
+        final Attachments result = new Attachments(buffers, files);
+        boolean success = false;
+        try {
+            for (Map.Entry<?, ?> entry : attachments.entrySet()) {
+                if (!(entry.getValue() instanceof String)) {
+                    throw new IllegalArgumentException(String.format("attachment %s must be a string", entry.getKey()));
+                }
+                final String encoded = String.class.cast(entry.getValue());
+                final long size = decodedSizeOf(encoded);
+                if (size > maxSize) {
+                    throw new IllegalArgumentException(String.format(
+                        "attachment %s exceeds %s bytes", entry.getKey(), maxSize));
+                }
+                final String name = String.valueOf(entry.getKey());
+                if (size <= spoolThreshold) {
+                    final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+                    decode(encoded, 0, encoded.length(), buffer);
+                    buffer.flip();
+                    buffers.put(name, buffer);
+                } else {
+                    final File file = File.createTempFile("jsonrpc-", ".attachment", directory);
+                    files.add(file);
+                    buffers.put(name, spool(encoded, size, file));
+                }
+            }
+            success = true;
+            return result;
+        } finally {
+            if (!success) {
+                result.release();
+            }
+        }
+    }
+
+    private ByteBuffer spool(String encoded, long size, File file) throws IOException {
+        LOG.trace("Spooling {} bytes to {}", size, file);
+        final RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = access.getChannel();
+            final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE / 4 * 3);
+            // chunk boundaries must be a multiple of four characters
+            for (int offset = 0; offset < encoded.length(); offset += CHUNK_SIZE) {
+                decode(encoded, offset, Math.min(offset + CHUNK_SIZE, encoded.length()), chunk);
+                chunk.flip();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                chunk.clear();
+            }
+            // the mapping stays valid after the channel has been closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            access.close();
+        }
+    }
+
+    private static long decodedSizeOf(String encoded) {
+        final int length = encoded.length();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("attachment length must be a multiple of 4");
+        }
+        int padding = 0;
+        if (length > 0 && encoded.charAt(length - 1) == '=') padding++;
+        if (length > 1 && encoded.charAt(length - 2) == '=') padding++;
+        return length / 4 * 3L - padding;
+    }
+
+    private static void decode(String encoded, int from, int to, ByteBuffer target) {
+        for (int i = from; i < to; i += 4) {
+            final int a = valueOf(encoded.charAt(i));
+            final int b = valueOf(encoded.charAt(i + 1));
+            target.put((byte) (a << 2 | b >> 4));
+            if (encoded.charAt(i + 2) == '=') {
+                checkPadding(encoded, i);
+                break;
+            }
+            final int c = valueOf(encoded.charAt(i + 2));
+            target.put((byte) (b << 4 | c >> 2));
+            if (encoded.charAt(i + 3) == '=') {
+                checkPadding(encoded, i);
+                break;
+            }
+            target.put((byte) (c << 6 | valueOf(encoded.charAt(i + 3))));
+        }
+    }
+
+    private static void checkPadding(String encoded, int quantum) {
+        if (quantum + 4 != encoded.length()) {
+            throw new IllegalArgumentException("illegal base64 padding");
+        }
+    }
+
+    private static int valueOf(char c) {
+        final int value = c < ALPHABET.length ? ALPHABET[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException(String.format("illegal base64 character '%s'", c));
+        }
+        return value;
+    }
+
+    @Override
+    public void eventIpcCallDestroy(IpcCall call) {
+        final Attachments attachments = call.get(Attachments.class);
+        if (attachments == null) return;
+        attachments.release();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (!enabled) return;
+        registry.remove(this);
+    }
+
+}
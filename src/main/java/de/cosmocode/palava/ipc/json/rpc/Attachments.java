@@ -0,0 +1,102 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.ipc.IpcArguments;
+import de.cosmocode.palava.ipc.MapIpcArguments;
+
+/**
+ * The decoded attachments of a single call. Large attachments are backed by
+ * memory-mapped temporary files which are deleted on {@link #release()}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+final class Attachments {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Attachments.class);
+
+    private final Map<String, ByteBuffer> buffers;
+
+    private final List<File> files;
+
+    private boolean released;
+
+    Attachments(Map<String, ByteBuffer> buffers, List<File> files) {
+        this.buffers = Preconditions.checkNotNull(buffers, "Buffers");
+        this.files = Preconditions.checkNotNull(files, "Files");
+    }
+
+    /**
+     * Creates a mutable copy of the specified arguments which keeps positional
+     * arguments positional, so attachments can be merged in later.
+     *
+     * @param arguments the call's arguments
+     * @return a copy of the same kind
+     */
+    static IpcArguments copyOf(IpcArguments arguments) {
+        final IpcArguments copy;
+        if (arguments instanceof JsonRpcArguments) {
+            copy = new JsonRpcArguments(Collections.emptyList());
+        } else {
+            copy = new MapIpcArguments(Maps.<String, Object>newHashMap());
+        }
+        copy.putAll(arguments);
+        return copy;
+    }
+
+    /**
+     * Adds all attachments to the specified arguments.
+     *
+     * @param arguments arguments created by {@link #copyOf(IpcArguments)}
+     */
+    void mergeInto(IpcArguments arguments) {
+        for (Map.Entry<String, ByteBuffer> entry : buffers.entrySet()) {
+            arguments.put(entry.getKey(), entry.getValue().asReadOnlyBuffer());
+        }
+    }
+
+    /**
+     * Deletes all spooled files. Subsequent calls have no effect.
+     */
+    synchronized void release() {
+        if (released) return;
+        released = true;
+        for (File file : files) {
+            if (file.delete()) {
+                LOG.trace("Deleted {}", file);
+            } else {
+                // mapped files can't be deleted on some platforms, deleteOnExit
+                // would leak memory in a long running process instead
+                LOG.warn("Unable to delete {}", file);
+            }
+        }
+    }
+
+}
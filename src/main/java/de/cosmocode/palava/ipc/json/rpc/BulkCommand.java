@@ -0,0 +1,100 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import de.cosmocode.palava.ipc.IpcArguments;
+import de.cosmocode.palava.ipc.IpcCall;
+import de.cosmocode.palava.ipc.IpcCommand;
+import de.cosmocode.palava.ipc.IpcCommandExecutionException;
+
+/**
+ * Base class of commands which are able to handle all argument sets of a bulk
+ * invocation in a single execution, e.g. using one {@code IN} query instead of
+ * one query per argument set. Bulk invocations of other commands execute the
+ * command once per argument set.
+ *
+ * <pre>
+ * {"jsonrpc": "2.0", "method": "com.example.Load", "bulk": [[1], [2], [3]], "id": 1}
+ * </pre>
+ *
+ * <p>
+ *   Bulk commands are executed by the {@link de.cosmocode.palava.ipc.IpcCommandExecutor}
+ *   like any other command, so filters apply once per bulk. Regular calls are
+ *   passed to {@link #executeAll(IpcCall, List)} as a bulk of one.
+ * </p>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public abstract class BulkCommand implements IpcCommand {
+
+    private static final String KEY = BulkCommand.class.getName();
+
+    @Override
+    public final void execute(IpcCall call, Map<String, Object> result) throws IpcCommandExecutionException {
+        final List<IpcArguments> bulk = call.get(BulkCommand.class);
+        final List<IpcArguments> arguments = bulk == null ? ImmutableList.of(call.getArguments()) : bulk;
+        final List<? extends Map<String, Object>> results = executeAll(call, arguments);
+        Preconditions.checkState(results.size() == arguments.size(),
+            "%s returned %s results for %s argument sets", getClass().getName(), results.size(), arguments.size());
+        if (bulk == null) {
+            result.putAll(results.get(0));
+        } else {
+            result.put(KEY, results);
+        }
+    }
+
+    /**
+     * Executes this command for all specified argument sets at once.
+     *
+     * @param call the current call, its own arguments should be ignored
+     * @param arguments the argument sets, one per bulk element
+     * @return one result per argument set, in the same order
+     * @throws IpcCommandExecutionException if execution fails, this fails the whole bulk
+     */
+    protected abstract List<? extends Map<String, Object>> executeAll(IpcCall call, List<IpcArguments> arguments)
+        throws IpcCommandExecutionException;
+
+    /**
+     * Prepares the specified call to carry a whole bulk.
+     *
+     * @param call the call
+     * @param arguments the argument sets
+     */
+    static void bind(IpcCall call, List<IpcArguments> arguments) {
+        call.set(BulkCommand.class, arguments);
+    }
+
+    /**
+     * Looks up the bulk results of the specified command result.
+     *
+     * @param result the command's result map
+     * @return the results, one per argument set, or null if the result is a regular map
+     */
+    static List<?> resultsOf(Map<String, Object> result) {
+        if (result == null) return null;
+        final Object value = result.get(KEY);
+        return value instanceof List<?> ? List.class.cast(value) : null;
+    }
+
+}
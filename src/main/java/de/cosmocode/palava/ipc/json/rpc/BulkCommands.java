@@ -0,0 +1,83 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Tells which methods are implemented by a {@link BulkCommand}. Method names are
+ * command class names, lookups of existing classes are cached. Bulk invocations
+ * are disabled by default, see {@link JsonRpcConfig#BULK_ENABLED}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class BulkCommands {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkCommands.class);
+
+    private final ConcurrentMap<String, Boolean> commands = new ConcurrentHashMap<String, Boolean>();
+
+    private boolean enabled;
+
+    @Inject(optional = true)
+    void setEnabled(@Named(JsonRpcConfig.BULK_ENABLED) boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Checks whether the specified method is able to execute a whole bulk at once.
+     *
+     * @param method the method name
+     * @return true if the method's command is a {@link BulkCommand}
+     */
+    boolean isBulk(String method) {
+        final Boolean cached = commands.get(method);
+        if (cached != null) return cached.booleanValue();
+
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        final Class<?> type;
+        try {
+            type = Class.forName(method, false, loader == null ? BulkCommands.class.getClassLoader() : loader);
+        } catch (ClassNotFoundException e) {
+            // not cached, unknown names are the executor's business
+            LOG.trace("No class found for {}", method);
+            return false;
+        } catch (LinkageError e) {
+            LOG.trace("Unable to load {}: {}", method, e.getMessage());
+            return false;
+        }
+
+        final boolean bulk = BulkCommand.class.isAssignableFrom(type);
+        commands.put(method, bulk);
+        return bulk;
+    }
+
+}
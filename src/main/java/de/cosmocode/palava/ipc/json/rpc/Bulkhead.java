@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Describes a group of Json-RPC methods which share a bounded number of
+ * concurrently executing calls. Bulkheads are bound as a {@code Set<Bulkhead>},
+ * a method belongs to the first bulkhead whose pattern matches its name.
+ *
+ * <pre>
+ * Bulkhead.of("reports", "com\\.example\\.report\\..*").
+ *     maxConcurrentCalls(4).
+ *     maxWaitingCalls(16).
+ *     maxWait(2, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class Bulkhead {
+
+    private final String name;
+
+    private final Pattern pattern;
+
+    private final int maxConcurrentCalls;
+
+    private final int maxWaitingCalls;
+
+    private final long maxWait;
+
+    private Bulkhead(String name, Pattern pattern, int maxConcurrentCalls, int maxWaitingCalls, long maxWait) {
+        this.name = name;
+        this.pattern = pattern;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.maxWaitingCalls = maxWaitingCalls;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Creates a new bulkhead allowing ten concurrent calls and no waiting calls.
+     *
+     * @param name the name, used for JMX
+     * @param pattern the regular expression of all method names of this bulkhead
+     * @return a new bulkhead
+     * @throws NullPointerException if name or pattern is null
+     */
+    public static Bulkhead of(String name, String pattern) {
+        Preconditions.checkNotNull(name, "Name");
+        Preconditions.checkNotNull(pattern, "Pattern");
+        return new Bulkhead(name, Pattern.compile(pattern), 10, 0, 0);
+    }
+
+    /**
+     * Creates a copy of this bulkhead with the specified number of concurrent calls.
+     *
+     * @param calls the maximum number of concurrently executing calls
+     * @return a new bulkhead
+     * @throws IllegalArgumentException if calls is not positive
+     */
+    public Bulkhead maxConcurrentCalls(int calls) {
+        Preconditions.checkArgument(calls > 0, "MaxConcurrentCalls must be positive");
+        return new Bulkhead(name, pattern, calls, maxWaitingCalls, maxWait);
+    }
+
+    /**
+     * Creates a copy of this bulkhead with the specified number of calls which may
+     * wait for a free slot. Further calls are rejected immediately.
+     *
+     * @param calls the maximum number of waiting calls
+     * @return a new bulkhead
+     * @throws IllegalArgumentException if calls is negative
+     */
+    public Bulkhead maxWaitingCalls(int calls) {
+        Preconditions.checkArgument(calls >= 0, "MaxWaitingCalls must not be negative");
+        return new Bulkhead(name, pattern, maxConcurrentCalls, calls, maxWait);
+    }
+
+    /**
+     * Creates a copy of this bulkhead with the specified maximum waiting time.
+     *
+     * @param time the maximum time a call waits for a free slot
+     * @param unit the unit of time
+     * @return a new bulkhead
+     * @throws IllegalArgumentException if time is negative
+     * @throws NullPointerException if unit is null
+     */
+    public Bulkhead maxWait(long time, TimeUnit unit) {
+        Preconditions.checkArgument(time >= 0, "MaxWait must not be negative");
+        Preconditions.checkNotNull(unit, "Unit");
+        return new Bulkhead(name, pattern, maxConcurrentCalls, maxWaitingCalls, unit.toNanos(time));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    int getMaxWaitingCalls() {
+        return maxWaitingCalls;
+    }
+
+    long getMaxWait() {
+        return maxWait;
+    }
+
+    @Override
+    public String toString() {
+        return "Bulkhead [name=" + name + ", pattern=" + pattern + ", maxConcurrentCalls=" + maxConcurrentCalls +
+            ", maxWaitingCalls=" + maxWaitingCalls + ", maxWait=" + maxWait + "ns]";
+    }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of a single Json-RPC {@link Bulkhead}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface BulkheadMBean {
+
+    /**
+     * Provides the maximum number of concurrently executing calls.
+     *
+     * @return the capacity of this bulkhead
+     */
+    int getMaxConcurrentCalls();
+
+    /**
+     * Provides the number of currently executing calls.
+     *
+     * @return the number of active calls
+     */
+    int getActiveCalls();
+
+    /**
+     * Provides the number of calls currently waiting for a free slot.
+     *
+     * @return the number of waiting calls
+     */
+    int getWaitingCalls();
+
+    /**
+     * Provides the number of calls admitted so far.
+     *
+     * @return the number of accepted calls
+     */
+    long getAccepted();
+
+    /**
+     * Provides the number of calls rejected so far because the bulkhead was saturated.
+     *
+     * @return the number of rejected calls
+     */
+    long getRejected();
+
+}
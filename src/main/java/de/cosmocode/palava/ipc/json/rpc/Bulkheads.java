@@ -0,0 +1,234 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Isolates method groups from each other by bounding the number of concurrently
+ * executing calls per bound {@link Bulkhead}. Calls run on the caller's thread,
+ * so {@link de.cosmocode.palava.ipc.IpcCallScope} semantics are unaffected.
+ * Methods without a bulkhead are not limited.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class Bulkheads implements Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Bulkheads.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=Bulkhead,name=";
+
+    private static final int MAX_CACHED_METHODS = 10000;
+
+    private static final Compartment NONE = new Compartment(Bulkhead.of("none", ""));
+
+    private final MBeanServer mBeanServer;
+
+    private List<Compartment> compartments = ImmutableList.of();
+
+    private final ConcurrentMap<String, Compartment> cache = new ConcurrentHashMap<String, Compartment>();
+
+    @Inject
+    public Bulkheads(MBeanServer mBeanServer) {
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+    }
+
+    @Inject(optional = true)
+    void setBulkheads(Set<Bulkhead> bulkheads) {
+        Preconditions.checkNotNull(bulkheads, "Bulkheads");
+        final ImmutableList.Builder<Compartment> builder = ImmutableList.builder();
+        for (Bulkhead bulkhead : bulkheads) {
+            LOG.debug("Registering {}", bulkhead);
+            builder.add(new Compartment(bulkhead));
+        }
+        this.compartments = builder.build();
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        try {
+            for (Compartment compartment : compartments) {
+                mBeanServer.registerMBean(new StandardMBean(compartment, BulkheadMBean.class),
+                    ObjectName.getInstance(OBJECT_NAME + ObjectName.quote(compartment.bulkhead.getName())));
+            }
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * Takes a slot in the bulkhead of the specified method, waiting if the
+     * bulkhead allows it.
+     *
+     * @param method the method name
+     * @return true if the call may proceed and {@link #release(String)} has to be called
+     *         afterwards, false if the call has to be rejected
+     */
+    boolean tryAcquire(String method) {
+        final Compartment compartment = compartmentOf(method);
+        if (compartment == NONE) return true;
+        final boolean acquired = compartment.tryAcquire();
+        if (!acquired) {
+            LOG.debug("Bulkhead {} is saturated, rejecting {}", compartment.bulkhead.getName(), method);
+        }
+        return acquired;
+    }
+
+    /**
+     * Frees the slot taken by a successful {@link #tryAcquire(String)}.
+     *
+     * @param method the method name
+     */
+    void release(String method) {
+        final Compartment compartment = compartmentOf(method);
+        if (compartment == NONE) return;
+        compartment.semaphore.release();
+    }
+
+    private Compartment compartmentOf(String method) {
+        if (compartments.isEmpty()) return NONE;
+        final Compartment cached = cache.get(method);
+        if (cached != null) return cached;
+
+        Compartment compartment = NONE;
+        for (Compartment candidate : compartments) {
+            if (candidate.bulkhead.getPattern().matcher(method).matches()) {
+                compartment = candidate;
+                break;
+            }
+        }
+        if (cache.size() < MAX_CACHED_METHODS) {
+            cache.put(method, compartment);
+        }
+        return compartment;
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        try {
+            for (Compartment compartment : compartments) {
+                mBeanServer.unregisterMBean(
+                    ObjectName.getInstance(OBJECT_NAME + ObjectName.quote(compartment.bulkhead.getName())));
+            }
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * Runtime state of a single bulkhead.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class Compartment implements BulkheadMBean {
+
+        private final Bulkhead bulkhead;
+
+        private final Semaphore semaphore;
+
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        private final AtomicLong accepted = new AtomicLong();
+
+        private final AtomicLong rejected = new AtomicLong();
+
+        public Compartment(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+            this.semaphore = new Semaphore(bulkhead.getMaxConcurrentCalls(), true);
+        }
+
+        private boolean tryAcquire() {
+            if (semaphore.tryAcquire() || tryAwait()) {
+                accepted.incrementAndGet();
+                return true;
+            } else {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+
+        private boolean tryAwait() {
+            if (bulkhead.getMaxWaitingCalls() == 0) return false;
+            if (waiting.incrementAndGet() > bulkhead.getMaxWaitingCalls()) {
+                waiting.decrementAndGet();
+                return false;
+            }
+            try {
+                return semaphore.tryAcquire(bulkhead.getMaxWait(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        @Override
+        public int getMaxConcurrentCalls() {
+            return bulkhead.getMaxConcurrentCalls();
+        }
+
+        @Override
+        public int getActiveCalls() {
+            return bulkhead.getMaxConcurrentCalls() - semaphore.availablePermits();
+        }
+
+        @Override
+        public int getWaitingCalls() {
+            return waiting.get();
+        }
+
+        @Override
+        public long getAccepted() {
+            return accepted.get();
+        }
+
+        @Override
+        public long getRejected() {
+            return rejected.get();
+        }
+
+    }
+
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The dependency graph of a Json-RPC 2.0 batch whose elements refer to results of
+ * other elements. References are declared in the top level member {@code refs},
+ * which maps dotted paths into params to sources, e.g.
+ * {@code "refs": {"userId": {"id": "user", "path": "items.0.id"}}}, the source
+ * path is optional. Params themselves are never interpreted, hence no data can be
+ * mistaken for a reference. Elements are grouped into levels, every element only
+ * depends on elements of earlier levels.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+final class CallChain {
+
+    private final List<?> request;
+
+    private final Map<Object, Integer> indexes;
+
+    private final List<List<Integer>> levels;
+
+    private CallChain(List<?> request, Map<Object, Integer> indexes, List<List<Integer>> levels) {
+        this.request = request;
+        this.indexes = indexes;
+        this.levels = levels;
+    }
+
+    /**
+     * Builds the dependency graph of the specified batch.
+     *
+     * @param request the batch
+     * @return the chain or null if no element refers to another one
+     * @throws IllegalArgumentException if references are malformed, point to unknown
+     *         or ambiguous ids or form a cycle
+     */
+    static CallChain of(List<?> request) {
+        boolean chained = false;
+        for (Object element : request) {
+            chained |= refsOf(element) != null;
+        }
+        if (!chained) return null;
+
+        final Map<Object, Integer> indexes = Maps.newHashMap();
+        final Set<Object> duplicates = Sets.newHashSet();
+        for (int i = 0; i < request.size(); i++) {
+            final Object id = idOf(request.get(i));
+            if (id != null && indexes.put(id, i) != null) {
+                duplicates.add(id);
+            }
+        }
+
+        final List<Set<Integer>> dependencies = Lists.newArrayListWithCapacity(request.size());
+        for (Object element : request) {
+            final Set<Integer> references = Sets.newHashSet();
+            final Map<?, ?> refs = refsOf(element);
+            if (refs != null) {
+                for (Object source : refs.values()) {
+                    final Object id = Map.class.cast(source).get(JsonRpc.ID);
+                    // duplicate ids are legal as long as nobody refers to them
+                    if (duplicates.contains(id)) {
+                        throw new IllegalArgumentException(String.format("ambiguous reference %s", id));
+                    }
+                    final Integer index = indexes.get(id);
+                    if (index == null) {
+                        throw new IllegalArgumentException(String.format("unknown reference %s", id));
+                    }
+                    references.add(index);
+                }
+            }
+            dependencies.add(references);
+        }
+
+        // kahn's algorithm, every element and reference is visited once
+        final int[] inDegrees = new int[request.size()];
+        final List<List<Integer>> dependents = Lists.newArrayListWithCapacity(request.size());
+        for (int i = 0; i < request.size(); i++) {
+            dependents.add(Lists.<Integer>newArrayList());
+        }
+        List<Integer> level = Lists.newArrayList();
+        for (int i = 0; i < request.size(); i++) {
+            inDegrees[i] = dependencies.get(i).size();
+            for (Integer dependency : dependencies.get(i)) {
+                dependents.get(dependency).add(i);
+            }
+            if (inDegrees[i] == 0) {
+                level.add(i);
+            }
+        }
+
+        final List<List<Integer>> levels = Lists.newArrayList();
+        int done = 0;
+        while (!level.isEmpty()) {
+            levels.add(ImmutableList.copyOf(level));
+            done += level.size();
+            final List<Integer> next = Lists.newArrayList();
+            for (Integer index : level) {
+                for (Integer dependent : dependents.get(index)) {
+                    if (--inDegrees[dependent] == 0) {
+                        next.add(dependent);
+                    }
+                }
+            }
+            Collections.sort(next);
+            level = next;
+        }
+        if (done < request.size()) {
+            throw new IllegalArgumentException("batch contains cyclic references");
+        }
+        return new CallChain(request, indexes, ImmutableList.copyOf(levels));
+    }
+
+    private static Object idOf(Object element) {
+        return element instanceof Map<?, ?> ? Map.class.cast(element).get(JsonRpc.ID) : null;
+    }
+
+    private static Map<?, ?> refsOf(Object element) {
+        if (!(element instanceof Map<?, ?>)) return null;
+        final Object refs = Map.class.cast(element).get(JsonRpc.REFS);
+        if (refs == null) return null;
+        if (!(refs instanceof Map<?, ?>) || Map.class.cast(refs).isEmpty()) {
+            throw new IllegalArgumentException(String.format("%s must be a non-empty object", JsonRpc.REFS));
+        }
+        final Map<?, ?> map = Map.class.cast(refs);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            final Object source = entry.getValue();
+            if (!(entry.getKey() instanceof String) || !(source instanceof Map<?, ?>) ||
+                Map.class.cast(source).get(JsonRpc.ID) == null) {
+                throw new IllegalArgumentException(String.format("%s must map paths to sources with an %s",
+                    JsonRpc.REFS, JsonRpc.ID));
+            }
+            final Object path = Map.class.cast(source).get(JsonRpc.PATH);
+            if (path != null && !(path instanceof String)) {
+                throw new IllegalArgumentException(String.format("%s must be a string", JsonRpc.PATH));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Provides the execution levels. Elements of the same level are independent
+     * of each other.
+     *
+     * @return all levels, each a list of element indexes
+     */
+    List<List<Integer>> getLevels() {
+        return levels;
+    }
+
+    /**
+     * Provides the id of the specified element.
+     *
+     * @param index the element index
+     * @return the id or null if the element is a notification or invalid
+     */
+    Object idOf(int index) {
+        return idOf(request.get(index));
+    }
+
+    /**
+     * Sets all referenced params of the specified element using the responses of
+     * earlier levels.
+     *
+     * @param index the element index
+     * @param responses the responses so far, by element index
+     * @return the element with resolved params and without references
+     * @throws IllegalArgumentException if a referenced call failed or a path doesn't exist
+     */
+    Object resolve(int index, Object[] responses) {
+        final Object element = request.get(index);
+        final Map<?, ?> refs = refsOf(element);
+        if (refs == null) return element;
+        final Map<?, ?> map = Map.class.cast(element);
+        Object params = map.get(JsonRpc.PARAMS);
+        for (Map.Entry<?, ?> entry : refs.entrySet()) {
+            final Map<?, ?> source = Map.class.cast(entry.getValue());
+            final Object value = lookup(source.get(JsonRpc.ID), source.get(JsonRpc.PATH), responses);
+            final String key = String.class.cast(entry.getKey());
+            params = set(params, key, key.split("\\."), 0, value);
+        }
+        final Map<Object, Object> resolved = Maps.newLinkedHashMap();
+        resolved.putAll(map);
+        resolved.remove(JsonRpc.REFS);
+        resolved.put(JsonRpc.PARAMS, params);
+        return resolved;
+    }
+
+    /**
+     * Copies all containers along the specified path, sets the value at its end and
+     * leaves everything else shared.
+     */
+    private static Object set(Object container, String key, String[] path, int depth, Object value) {
+        final String segment = path[depth];
+        final boolean last = depth == path.length - 1;
+        if (container instanceof Map<?, ?>) {
+            final Map<?, ?> map = Map.class.cast(container);
+            if (!last && !map.containsKey(segment)) {
+                throw new IllegalArgumentException(String.format("params have no %s", key));
+            }
+            final Map<Object, Object> copy = Maps.newLinkedHashMap();
+            copy.putAll(map);
+            copy.put(segment, last ? value : set(map.get(segment), key, path, depth + 1, value));
+            return copy;
+        } else if (container instanceof List<?> && isIndex(segment, List.class.cast(container).size())) {
+            final List<?> list = List.class.cast(container);
+            final int index = Integer.parseInt(segment);
+            final List<Object> copy = Lists.newArrayList(list);
+            copy.set(index, last ? value : set(list.get(index), key, path, depth + 1, value));
+            return copy;
+        } else {
+            throw new IllegalArgumentException(String.format("params have no %s", key));
+        }
+    }
+
+    private Object lookup(Object id, Object path, Object[] responses) {
+        final Object response = responses[indexes.get(id)];
+        if (!(response instanceof Map<?, ?>) || !Map.class.cast(response).containsKey(JsonRpc.RESULT) ||
+            StreamedResult.isStreamed(response, JsonRpc.RESULT)) {
+            throw new IllegalArgumentException(String.format("referenced call %s has no result", id));
+        }
+        Object current = Map.class.cast(response).get(JsonRpc.RESULT);
+        if (path == null) return current;
+        for (String segment : String.class.cast(path).split("\\.")) {
+            if (current instanceof Map<?, ?> && Map.class.cast(current).containsKey(segment)) {
+                current = Map.class.cast(current).get(segment);
+            } else if (current instanceof List<?> && isIndex(segment, List.class.cast(current).size())) {
+                current = List.class.cast(current).get(Integer.parseInt(segment));
+            } else {
+                throw new IllegalArgumentException(String.format("result of %s has no %s", id, path));
+            }
+        }
+        return current;
+    }
+
+    private static boolean isIndex(String segment, int size) {
+        if (segment.length() == 0 || segment.length() > 9) return false;
+        for (int i = 0; i < segment.length(); i++) {
+            if (!Character.isDigit(segment.charAt(i))) return false;
+        }
+        return Integer.parseInt(segment) < size;
+    }
+
+}
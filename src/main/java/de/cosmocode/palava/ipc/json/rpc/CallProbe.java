@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * Receives timing information about processed Json-RPC calls and batches, e.g.
+ * to emit profiler or flight recorder events. Bind an implementation to enable it.
+ * When no probe is bound the protocols don't even read the clock.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface CallProbe {
+
+    /**
+     * Reports a processed call.
+     *
+     * @param version the protocol version, either "1.0" or "2.0"
+     * @param method the requested method
+     * @param outcome the error code of the response, null if the call succeeded
+     * @param duration the processing time in nanoseconds
+     */
+    void call(String version, String method, ErrorCode outcome, long duration);
+
+    /**
+     * Reports a processed batch. The batch's calls have been reported individually.
+     *
+     * @param size the number of calls in the batch
+     * @param duration the processing time in nanoseconds
+     */
+    void batch(int size, long duration);
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.ipc.protocol.Protocol;
+
+/**
+ * Reports calls and batches to the bound {@link CallProbe}, if any. Events
+ * faster than {@link JsonRpcConfig#PROBE_THRESHOLD} are not reported.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class CallProbes {
+
+    private CallProbe probe;
+
+    private long threshold;
+
+    private TimeUnit thresholdUnit = TimeUnit.MILLISECONDS;
+
+    @Inject(optional = true)
+    void setProbe(CallProbe probe) {
+        this.probe = Preconditions.checkNotNull(probe, "Probe");
+    }
+
+    @Inject(optional = true)
+    void setThreshold(@Named(JsonRpcConfig.PROBE_THRESHOLD) long threshold) {
+        Preconditions.checkArgument(threshold >= 0, "Threshold must not be negative");
+        this.threshold = threshold;
+    }
+
+    @Inject(optional = true)
+    void setThresholdUnit(@Named(JsonRpcConfig.PROBE_THRESHOLD_UNIT) TimeUnit thresholdUnit) {
+        this.thresholdUnit = Preconditions.checkNotNull(thresholdUnit, "ThresholdUnit");
+    }
+
+    boolean isEnabled() {
+        return probe != null;
+    }
+
+    /**
+     * Reports a call which started at the specified time.
+     *
+     * @param version the protocol version
+     * @param method the method
+     * @param response the response or null if processing failed with an exception
+     * @param start the start time as returned by {@link System#nanoTime()}
+     */
+    void call(String version, String method, Object response, long start) {
+        call(version, method, outcomeOf(response), start);
+    }
+
+    /**
+     * Reports a call with a known outcome which started at the specified time.
+     *
+     * @param version the protocol version
+     * @param method the method
+     * @param outcome the error code of the response, null if the call succeeded
+     * @param start the start time as returned by {@link System#nanoTime()}
+     */
+    void call(String version, String method, ErrorCode outcome, long start) {
+        final long duration = System.nanoTime() - start;
+        if (duration < thresholdUnit.toNanos(threshold)) return;
+        probe.call(version, method, outcome, duration);
+    }
+
+    /**
+     * Reports a batch which started at the specified time.
+     *
+     * @param size the number of calls
+     * @param start the start time as returned by {@link System#nanoTime()}
+     */
+    void batch(int size, long start) {
+        final long duration = System.nanoTime() - start;
+        if (duration < thresholdUnit.toNanos(threshold)) return;
+        probe.batch(size, duration);
+    }
+
+    private static ErrorCode outcomeOf(Object response) {
+        if (response == Protocol.NO_RESPONSE) return null;
+        if (!(response instanceof Map<?, ?>)) return ErrorCode.INTERNAL_ERROR;
+        final Map<?, ?> map = Map.class.cast(response);
+        final Object error = map.get(JsonRpc.ERROR);
+        if (error == null) return null;
+        if (error instanceof Map<?, ?>) {
+            final Object code = Map.class.cast(error).get(JsonRpc.CODE);
+            if (code instanceof Integer) {
+                final ErrorCode outcome = ErrorCode.of(Integer.class.cast(code));
+                if (outcome != null) return outcome;
+            }
+        }
+        return ErrorCode.INTERNAL_ERROR;
+    }
+
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compact binary encoding of decoded Json values, i.e. nested maps, lists,
+ * strings, numbers, booleans and nulls, used by traffic captures.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+final class CaptureCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int NULL = 0;
+
+    private static final int STRING = 1;
+
+    private static final int INTEGER = 2;
+
+    private static final int LONG = 3;
+
+    private static final int DOUBLE = 4;
+
+    private static final int DECIMAL = 5;
+
+    private static final int TRUE = 6;
+
+    private static final int FALSE = 7;
+
+    private static final int LIST = 8;
+
+    private static final int MAP = 9;
+
+    private CaptureCodec() {
+
+    }
+
+    /**
+     * Writes the specified value. Values of unknown types are written as strings.
+     *
+     * @param out the output
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    static void write(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INTEGER);
+            out.writeInt(Number.class.cast(value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong(Long.class.cast(value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(Number.class.cast(value).doubleValue());
+        } else if (value instanceof Number) {
+            out.writeByte(DECIMAL);
+            writeString(out, value.toString());
+        } else if (value instanceof Boolean) {
+            out.writeByte(Boolean.TRUE.equals(value) ? TRUE : FALSE);
+        } else if (value instanceof List<?>) {
+            final List<?> list = List.class.cast(value);
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object element : list) {
+                write(out, element);
+            }
+        } else if (value instanceof Map<?, ?>) {
+            final Map<?, ?> map = Map.class.cast(value);
+            out.writeByte(MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                write(out, entry.getValue());
+            }
+        } else {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        // writeUTF is limited to 64k
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a value written by {@link #write(DataOutput, Object)}.
+     *
+     * @param in the input
+     * @return the value
+     * @throws IOException if reading fails or the input is corrupt
+     */
+    static Object read(DataInput in) throws IOException {
+        final int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL: {
+                return null;
+            }
+            case STRING: {
+                return readString(in);
+            }
+            case INTEGER: {
+                return in.readInt();
+            }
+            case LONG: {
+                return in.readLong();
+            }
+            case DOUBLE: {
+                return in.readDouble();
+            }
+            case DECIMAL: {
+                return new BigDecimal(readString(in));
+            }
+            case TRUE: {
+                return Boolean.TRUE;
+            }
+            case FALSE: {
+                return Boolean.FALSE;
+            }
+            case LIST: {
+                final int size = in.readInt();
+                final List<Object> list = Lists.newArrayListWithCapacity(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(read(in));
+                }
+                return list;
+            }
+            case MAP: {
+                final int size = in.readInt();
+                final Map<String, Object> map = Maps.newLinkedHashMap();
+                for (int i = 0; i < size; i++) {
+                    final String key = readString(in);
+                    map.put(key, read(in));
+                }
+                return map;
+            }
+            default: {
+                throw new IOException("Unknown tag " + tag);
+            }
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A circuit breaker guarding a single method. Outcomes of the last calls are kept
+ * in a fixed size ring buffer. The breaker opens as soon as the failure rate
+ * in this window reaches the configured threshold and allows a single probe
+ * call after the open duration elapsed. Permits returned by {@link #tryAcquire(long)}
+ * identify the probe, only its own outcome closes or reopens a half-open breaker.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+final class CircuitBreaker {
+
+    /**
+     * The permit of calls which must fail fast.
+     */
+    static final long DENIED = -1L;
+
+    /**
+     * The permit of calls which are not probing a half-open breaker.
+     */
+    static final long PASSED = 0L;
+
+    /**
+     * The states of a circuit breaker.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    enum State {
+
+        CLOSED,
+
+        OPEN,
+
+        HALF_OPEN;
+
+    }
+
+    /**
+     * The outcome of a single call.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    enum Outcome {
+
+        SUCCESS,
+
+        FAILURE,
+
+        /**
+         * Outcomes which neither indicate a healthy nor an unhealthy method,
+         * e.g. the method does not exist.
+         */
+        IGNORED;
+
+    }
+
+    private final boolean[] window;
+
+    private final int minimumCalls;
+
+    private final int failureRateThreshold;
+
+    private final long slowCallThreshold;
+
+    private final long openDuration;
+
+    private volatile State state = State.CLOSED;
+
+    private int index;
+
+    private int calls;
+
+    private int failures;
+
+    private long openedAt;
+
+    private long generation;
+
+    private long probe = PASSED;
+
+    /**
+     * Constructor.
+     *
+     * @param windowSize the number of calls the failure rate is computed on
+     * @param minimumCalls the minimum number of recorded calls before the breaker can open
+     * @param failureRateThreshold the failure rate in percent which opens the breaker
+     * @param slowCallThreshold duration in nanoseconds after which a successful call counts as failure
+     * @param openDuration duration in nanoseconds the breaker stays open before probing
+     */
+    CircuitBreaker(int windowSize, int minimumCalls, int failureRateThreshold,
+        long slowCallThreshold, long openDuration) {
+        Preconditions.checkArgument(windowSize > 0, "WindowSize must be positive");
+        this.window = new boolean[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallThreshold = slowCallThreshold;
+        this.openDuration = openDuration;
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * Checks whether a call may pass this breaker.
+     *
+     * @param now the current time in nanoseconds
+     * @return the permit to pass to {@link #release(long, Outcome, long, long)},
+     *         {@link #DENIED} if the call should fail fast
+     */
+    long tryAcquire(long now) {
+        if (state == State.CLOSED) {
+            return PASSED;
+        }
+        synchronized (this) {
+            switch (state) {
+                case CLOSED: {
+                    return PASSED;
+                }
+                case OPEN: {
+                    if (now - openedAt < openDuration) {
+                        return DENIED;
+                    }
+                    state = State.HALF_OPEN;
+                    probe = ++generation;
+                    return probe;
+                }
+                case HALF_OPEN: {
+                    if (probe != PASSED) {
+                        return DENIED;
+                    }
+                    probe = ++generation;
+                    return probe;
+                }
+                default: {
+                    throw new AssertionError("Unknown state " + state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a call which was allowed by {@link #tryAcquire(long)}.
+     *
+     * @param permit the permit returned by {@link #tryAcquire(long)}
+     * @param outcome the outcome
+     * @param duration the duration of the call in nanoseconds
+     * @param now the current time in nanoseconds
+     */
+    synchronized void release(long permit, Outcome outcome, long duration, long now) {
+        final boolean failure = outcome == Outcome.FAILURE || duration >= slowCallThreshold;
+
+        if (state == State.HALF_OPEN) {
+            if (permit != probe) {
+                // a call which passed before the breaker opened
+                return;
+            }
+            probe = PASSED;
+            if (outcome == Outcome.IGNORED) {
+                // tells nothing about the method, let the next call probe
+                return;
+            } else if (failure) {
+                open(now);
+            } else {
+                reset();
+            }
+            return;
+        } else if (state == State.OPEN || outcome == Outcome.IGNORED) {
+            return;
+        }
+
+        if (calls == window.length) {
+            if (window[index]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+
+        window[index] = failure;
+        if (failure) {
+            failures++;
+        }
+        index = (index + 1) % window.length;
+
+        if (calls >= minimumCalls && failures * 100 >= failureRateThreshold * calls) {
+            open(now);
+        }
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+    }
+
+    /**
+     * Closes this breaker and forgets all recorded outcomes.
+     */
+    synchronized void reset() {
+        state = State.CLOSED;
+        probe = PASSED;
+        index = 0;
+        calls = 0;
+        failures = 0;
+    }
+
+}
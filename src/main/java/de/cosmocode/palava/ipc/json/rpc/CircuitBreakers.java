@@ -0,0 +1,230 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+
+/**
+ * Holds one {@link CircuitBreaker} per Json-RPC method. Breakers are created
+ * lazily on the first recorded outcome, so unknown method names never
+ * allocate one.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class CircuitBreakers implements CircuitBreakersMBean, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakers.class);
+
+    /**
+     * The permit of warm-up calls, which are neither checked nor recorded.
+     */
+    private static final long BYPASSED = Long.MIN_VALUE;
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=CircuitBreakers";
+
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final MBeanServer mBeanServer;
+
+    private boolean enabled;
+
+    private int windowSize = 100;
+
+    private int minimumCalls = 20;
+
+    private int failureRateThreshold = 50;
+
+    private long slowCallThreshold = 10;
+
+    private TimeUnit slowCallThresholdUnit = TimeUnit.SECONDS;
+
+    private long openDuration = 30;
+
+    private TimeUnit openDurationUnit = TimeUnit.SECONDS;
+
+    @Inject
+    public CircuitBreakers(MBeanServer mBeanServer) {
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+    }
+
+    @Inject(optional = true)
+    void setEnabled(@Named(JsonRpcConfig.CIRCUIT_BREAKER_ENABLED) boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject(optional = true)
+    void setWindowSize(@Named(JsonRpcConfig.CIRCUIT_BREAKER_WINDOW_SIZE) int windowSize) {
+        Preconditions.checkArgument(windowSize > 0, "WindowSize must be positive");
+        this.windowSize = windowSize;
+    }
+
+    @Inject(optional = true)
+    void setMinimumCalls(@Named(JsonRpcConfig.CIRCUIT_BREAKER_MINIMUM_CALLS) int minimumCalls) {
+        Preconditions.checkArgument(minimumCalls > 0, "MinimumCalls must be positive");
+        this.minimumCalls = minimumCalls;
+    }
+
+    @Inject(optional = true)
+    void setFailureRateThreshold(@Named(JsonRpcConfig.CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD) int threshold) {
+        Preconditions.checkArgument(threshold > 0 && threshold <= 100, "FailureRateThreshold must be in (0, 100]");
+        this.failureRateThreshold = threshold;
+    }
+
+    @Inject(optional = true)
+    void setSlowCallThreshold(@Named(JsonRpcConfig.CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD) long slowCallThreshold) {
+        Preconditions.checkArgument(slowCallThreshold > 0, "SlowCallThreshold must be positive");
+        this.slowCallThreshold = slowCallThreshold;
+    }
+
+    @Inject(optional = true)
+    void setSlowCallThresholdUnit(
+        @Named(JsonRpcConfig.CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD_UNIT) TimeUnit slowCallThresholdUnit) {
+        this.slowCallThresholdUnit = Preconditions.checkNotNull(slowCallThresholdUnit, "SlowCallThresholdUnit");
+    }
+
+    @Inject(optional = true)
+    void setOpenDuration(@Named(JsonRpcConfig.CIRCUIT_BREAKER_OPEN_DURATION) long openDuration) {
+        Preconditions.checkArgument(openDuration > 0, "OpenDuration must be positive");
+        this.openDuration = openDuration;
+    }
+
+    @Inject(optional = true)
+    void setOpenDurationUnit(@Named(JsonRpcConfig.CIRCUIT_BREAKER_OPEN_DURATION_UNIT) TimeUnit openDurationUnit) {
+        this.openDurationUnit = Preconditions.checkNotNull(openDurationUnit, "OpenDurationUnit");
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (!enabled) return;
+        try {
+            mBeanServer.registerMBean(new StandardMBean(this, CircuitBreakersMBean.class),
+                ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * Checks whether a call to the specified method may be executed. Warm-up calls
+     * always pass and their outcomes are never recorded, they must neither trip
+     * nor close a breaker.
+     *
+     * @param method the method name
+     * @param connection the caller's connection
+     * @return the permit to pass to {@link #release(String, long, CircuitBreaker.Outcome, long)},
+     *         {@link CircuitBreaker#DENIED} if the call should fail fast
+     */
+    long tryAcquire(String method, IpcConnection connection) {
+        if (!enabled) return CircuitBreaker.PASSED;
+        if (WarmUp.isWarmUp(connection)) return BYPASSED;
+        final CircuitBreaker breaker = breakers.get(method);
+        return breaker == null ? CircuitBreaker.PASSED : breaker.tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Records the outcome of a call which was allowed by {@link #tryAcquire(String, IpcConnection)}.
+     *
+     * @param method the method name
+     * @param permit the permit returned by {@link #tryAcquire(String, IpcConnection)}
+     * @param outcome the outcome of the call
+     * @param duration the duration of the call in nanoseconds
+     */
+    void release(String method, long permit, CircuitBreaker.Outcome outcome, long duration) {
+        if (!enabled || permit == BYPASSED) return;
+        CircuitBreaker breaker = breakers.get(method);
+        if (breaker == null) {
+            if (outcome == CircuitBreaker.Outcome.IGNORED) return;
+            final CircuitBreaker created = new CircuitBreaker(windowSize, minimumCalls, failureRateThreshold,
+                slowCallThresholdUnit.toNanos(slowCallThreshold), openDurationUnit.toNanos(openDuration));
+            breaker = breakers.putIfAbsent(method, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        final CircuitBreaker.State before = breaker.getState();
+        breaker.release(permit, outcome, duration, System.nanoTime());
+        final CircuitBreaker.State after = breaker.getState();
+        if (before != after) {
+            LOG.info("Circuit breaker of {} changed from {} to {}", new Object[] {method, before, after});
+        }
+    }
+
+    @Override
+    public String[] getOpenMethods() {
+        final List<String> methods = Lists.newArrayList();
+        for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            if (entry.getValue().getState() != CircuitBreaker.State.CLOSED) {
+                methods.add(entry.getKey());
+            }
+        }
+        return methods.toArray(new String[methods.size()]);
+    }
+
+    @Override
+    public String getState(String method) {
+        final CircuitBreaker breaker = breakers.get(method);
+        return breaker == null ? CircuitBreaker.State.CLOSED.name() : breaker.getState().name();
+    }
+
+    @Override
+    public void reset(String method) {
+        final CircuitBreaker breaker = breakers.get(method);
+        if (breaker == null) return;
+        breaker.reset();
+    }
+
+    @Override
+    public void resetAll() {
+        breakers.clear();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (!enabled) return;
+        try {
+            mBeanServer.unregisterMBean(ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of the per-method Json-RPC circuit breakers.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface CircuitBreakersMBean {
+
+    /**
+     * Provides the names of all methods whose circuit breaker is currently
+     * open or half-open.
+     *
+     * @return all unhealthy methods
+     */
+    String[] getOpenMethods();
+
+    /**
+     * Provides the state of the circuit breaker of the specified method.
+     *
+     * @param method the method name
+     * @return the state, CLOSED if no breaker exists for the given method
+     */
+    String getState(String method);
+
+    /**
+     * Closes the circuit breaker of the specified method.
+     *
+     * @param method the method name
+     */
+    void reset(String method);
+
+    /**
+     * Closes all circuit breakers.
+     */
+    void resetAll();
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.ipc.IpcCall;
+
+/**
+ * A Json-RPC 2.0 call carrying the {@link JsonRpc#IF_NONE_MATCH} extension. The
+ * response to such a call contains the {@link JsonRpc#FINGERPRINT} of its result
+ * and omits the result if it matches the fingerprint the client already has.
+ * Commands which can compute a version of their result cheaply may short-circuit:
+ *
+ * <pre>
+ * final ConditionalCall conditional = ConditionalCall.of(call);
+ * if (conditional != null &amp;&amp; conditional.isNotModified(dao.getVersion())) return;
+ * </pre>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class ConditionalCall {
+
+    private final String expected;
+
+    private final FieldProjection projection;
+
+    private volatile String version;
+
+    ConditionalCall(String expected, FieldProjection projection) {
+        this.expected = Preconditions.checkNotNull(expected, "Expected");
+        this.projection = projection;
+    }
+
+    /**
+     * Provides the conditional part of the specified call.
+     *
+     * @param call the current call
+     * @return the conditional call or null if the client didn't ask for a fingerprint
+     * @throws NullPointerException if call is null
+     */
+    public static ConditionalCall of(IpcCall call) {
+        Preconditions.checkNotNull(call, "Call");
+        return call.get(ConditionalCall.class);
+    }
+
+    /**
+     * Declares the version of the result the current command is about to build.
+     * The version replaces the result as input of the fingerprint.
+     *
+     * @param currentVersion the current version of the requested data
+     * @return true if the client already has this version, in which case the
+     *         command doesn't need to build a result at all
+     * @throws NullPointerException if currentVersion is null
+     */
+    public boolean isNotModified(String currentVersion) {
+        this.version = Preconditions.checkNotNull(currentVersion, "CurrentVersion");
+        return matches(fingerprintOf(null));
+    }
+
+    /**
+     * Computes the fingerprint of the specified result or of the declared version.
+     *
+     * @param result the projected result
+     * @return the fingerprint
+     */
+    String fingerprintOf(Object result) {
+        if (version == null) {
+            return Fingerprints.of(result);
+        } else {
+            return Fingerprints.of(Arrays.asList(version, String.valueOf(projection)));
+        }
+    }
+
+    boolean matches(String fingerprint) {
+        return expected.equals(fingerprint);
+    }
+
+}
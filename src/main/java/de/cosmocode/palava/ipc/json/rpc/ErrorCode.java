@@ -51,7 +51,30 @@ public enum ErrorCode {
     /**
      * Internal JSON-RPC error.
      */
-    INTERNAL_ERROR(32603);
+    INTERNAL_ERROR(32603),
+    
+    /**
+     * Server error. The requested method is temporarily unavailable
+     * because its circuit breaker is open.
+     * 
+     * @since 1.1
+     */
+    CIRCUIT_OPEN(32000),
+    
+    /**
+     * Server error. The caller exceeded its rate limit, the error's data
+     * contains a retry-after hint in milliseconds.
+     * 
+     * @since 1.1
+     */
+    RATE_LIMITED(32001),
+    
+    /**
+     * Server error. The bulkhead of the requested method is saturated.
+     * 
+     * @since 1.1
+     */
+    BULKHEAD_FULL(32002);
     
     private int code;
     
@@ -59,6 +82,20 @@ public enum ErrorCode {
         this.code = code;
     }
     
+    /**
+     * Looks up the error code with the specified numeric value.
+     * 
+     * @since 1.1
+     * @param code the numeric code
+     * @return the matching error code or null if there is none
+     */
+    static ErrorCode of(int code) {
+        for (ErrorCode value : values()) {
+            if (value.code == code) return value;
+        }
+        return null;
+    }
+    
     /**
      * Creates an error response based on this error code and the
      * specified id.
@@ -93,11 +130,26 @@ public enum ErrorCode {
      * @throws NullPointerException if message is null
      */
     public Map<String, Object> newResponse(Object id, String message) {
-        Preconditions.checkNotNull(message, "Message");
-        
-        final Map<String, Object> error = Maps.newHashMap();
-        error.put(JsonRpc.CODE, code);
-        error.put(JsonRpc.MESSAGE, message);
+        return newResponse(id, newError(message));
+    }
+    
+    /**
+     * Creates an error response based on the specified id and a previously
+     * created error object. This allows static errors to be rendered only once.
+     * The error object has to be created by this error code.
+     * 
+     * @since 1.1
+     * @param id the request/response id
+     * @param error the error object
+     * @return a new response map
+     * @throws NullPointerException if error is null
+     * @throws IllegalArgumentException if the code of error is not this error code
+     */
+    public Map<String, Object> newResponse(Object id, Map<String, Object> error) {
+        Preconditions.checkNotNull(error, "Error");
+        final Object actual = error.get(JsonRpc.CODE);
+        Preconditions.checkArgument(actual instanceof Number && Number.class.cast(actual).intValue() == code,
+            "Code %s of error does not match %s", actual, this);
         
         final Map<String, Object> response = Maps.newHashMap();
         response.put(JsonRpc.ERROR, error);
@@ -106,4 +158,38 @@ public enum ErrorCode {
         return response;
     }
     
+    /**
+     * Creates an error object based on this error code and the specified message.
+     * 
+     * @since 1.1
+     * @param message the error message
+     * @return a new error map
+     * @throws NullPointerException if message is null
+     */
+    public Map<String, Object> newError(String message) {
+        return newError(message, null);
+    }
+    
+    /**
+     * Creates an error object based on this error code, the specified message
+     * and additional data.
+     * 
+     * @since 1.1
+     * @param message the error message
+     * @param data the error data, will be omitted if null
+     * @return a new error map
+     * @throws NullPointerException if message is null
+     */
+    public Map<String, Object> newError(String message, Object data) {
+        Preconditions.checkNotNull(message, "Message");
+        
+        final Map<String, Object> error = Maps.newHashMap();
+        error.put(JsonRpc.CODE, code);
+        error.put(JsonRpc.MESSAGE, message);
+        if (data != null) {
+            error.put(JsonRpc.DATA, data);
+        }
+        return error;
+    }
+    
 }
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * Defines how exceptions are rendered into Json-RPC error responses
+ * if no custom {@link ErrorRenderer} applies.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public enum ErrorPolicy {
+
+    /**
+     * Passes the exception itself to the encoder, including its full
+     * stack trace and cause chain.
+     */
+    THROWABLE,
+
+    /**
+     * Only the exception's message is rendered, no data.
+     */
+    MESSAGE,
+
+    /**
+     * The exception's message and its class name.
+     */
+    CLASS,
+
+    /**
+     * The exception's message, class name and a bounded number of stack frames.
+     */
+    STACK;
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Renders exceptions into Json-RPC error objects according to the configured
+ * {@link ErrorPolicy} and the bound custom {@link ErrorRenderer}s.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class ErrorRendering {
+
+    private static final String TYPE = "type";
+
+    private static final String STACK = "stack";
+
+    private static final ErrorRenderer NONE = new ErrorRenderer() {
+
+        @Override
+        public Object render(Throwable throwable) {
+            return null;
+        }
+
+    };
+
+    private ErrorPolicy policy = ErrorPolicy.THROWABLE;
+
+    private int maxStackDepth = 10;
+
+    private Map<Class<? extends Throwable>, ErrorRenderer> renderers = ImmutableMap.of();
+
+    private final ConcurrentMap<Class<?>, ErrorRenderer> resolved = new ConcurrentHashMap<Class<?>, ErrorRenderer>();
+
+    @Inject(optional = true)
+    void setPolicy(@Named(JsonRpcConfig.ERROR_POLICY) ErrorPolicy policy) {
+        this.policy = Preconditions.checkNotNull(policy, "Policy");
+    }
+
+    @Inject(optional = true)
+    void setMaxStackDepth(@Named(JsonRpcConfig.ERROR_MAX_STACK_DEPTH) int maxStackDepth) {
+        Preconditions.checkArgument(maxStackDepth >= 0, "MaxStackDepth must not be negative");
+        this.maxStackDepth = maxStackDepth;
+    }
+
+    @Inject(optional = true)
+    void setRenderers(Map<Class<? extends Throwable>, ErrorRenderer> renderers) {
+        this.renderers = ImmutableMap.copyOf(renderers);
+    }
+
+    /**
+     * Checks whether exceptions are passed to the encoder as they are.
+     *
+     * @return true if the legacy {@link ErrorPolicy#THROWABLE} policy is active
+     *         and no custom renderers are bound
+     */
+    boolean isRaw() {
+        return policy == ErrorPolicy.THROWABLE && renderers.isEmpty();
+    }
+
+    /**
+     * Creates an error object for the specified exception.
+     *
+     * @param code the error code
+     * @param throwable the exception
+     * @return a new error map
+     */
+    Map<String, Object> newError(ErrorCode code, Throwable throwable) {
+        final String message = throwable.getMessage() == null ? throwable.getClass().getName() : throwable.getMessage();
+        return code.newError(message, rendererOf(throwable).render(throwable));
+    }
+
+    /**
+     * Creates an error response for the specified exception.
+     *
+     * @param code the error code
+     * @param id the request/response id
+     * @param throwable the exception
+     * @return a new response map
+     */
+    Map<String, Object> newResponse(ErrorCode code, Object id, Throwable throwable) {
+        if (isRaw()) {
+            return code.newResponse(id, throwable);
+        } else {
+            return code.newResponse(id, newError(code, throwable));
+        }
+    }
+
+    private ErrorRenderer rendererOf(Throwable throwable) {
+        final Class<?> type = throwable.getClass();
+        final ErrorRenderer cached = resolved.get(type);
+        if (cached != null) return cached;
+
+        ErrorRenderer renderer = null;
+        for (Class<?> current = type; renderer == null && current != Object.class; current = current.getSuperclass()) {
+            renderer = renderers.get(current);
+        }
+        if (renderer == null) {
+            renderer = defaultRenderer();
+        }
+        resolved.put(type, renderer);
+        return renderer;
+    }
+
+    private ErrorRenderer defaultRenderer() {
+        switch (policy) {
+            case THROWABLE: {
+                return new ErrorRenderer() {
+
+                    @Override
+                    public Object render(Throwable throwable) {
+                        return throwable;
+                    }
+
+                };
+            }
+            case MESSAGE: {
+                return NONE;
+            }
+            case CLASS: {
+                return new ErrorRenderer() {
+
+                    @Override
+                    public Object render(Throwable throwable) {
+                        return ImmutableMap.of(TYPE, throwable.getClass().getName());
+                    }
+
+                };
+            }
+            case STACK: {
+                return new ErrorRenderer() {
+
+                    @Override
+                    public Object render(Throwable throwable) {
+                        final StackTraceElement[] trace = throwable.getStackTrace();
+                        final int depth = Math.min(trace.length, maxStackDepth);
+                        final ImmutableList.Builder<String> stack = ImmutableList.builder();
+                        for (int i = 0; i < depth; i++) {
+                            stack.add(trace[i].toString());
+                        }
+                        return ImmutableMap.of(
+                            TYPE, throwable.getClass().getName(),
+                            STACK, stack.build()
+                        );
+                    }
+
+                };
+            }
+            default: {
+                throw new AssertionError("Unknown policy " + policy);
+            }
+        }
+    }
+
+}
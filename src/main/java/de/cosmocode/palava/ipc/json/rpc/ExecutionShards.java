@@ -0,0 +1,466 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Executes Json-RPC requests on a fixed number of shard threads. Every connection
+ * gets its own queue of pending requests, which runs on at most one shard at a time,
+ * so requests of one connection never overtake each other. A connection's queue is
+ * scheduled on its home shard, chosen by the hash of the connection id, which keeps
+ * its session data hot in one core's cache. While the home shard is busy, idle
+ * shards steal whole queues, so a blocking request only delays later requests of
+ * its own connection. At most {@link JsonRpcConfig#SHARDS_COUNT} requests run
+ * concurrently. Disabled by default, see {@link JsonRpcConfig#SHARDS_ENABLED}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class ExecutionShards implements ExecutionShardsMBean, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutionShards.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=ExecutionShards";
+
+    private static final ThreadLocal<Shard> CURRENT = new ThreadLocal<Shard>();
+
+    private final MBeanServer mBeanServer;
+
+    private boolean enabled;
+
+    private int count = Runtime.getRuntime().availableProcessors();
+
+    private long waitTime = 30;
+
+    private TimeUnit waitTimeUnit = TimeUnit.SECONDS;
+
+    private final List<Shard> shards = Lists.newArrayList();
+
+    private final ConcurrentMap<Object, Lane> lanes = new ConcurrentHashMap<Object, Lane>();
+
+    private volatile boolean disposed;
+
+    @Inject
+    public ExecutionShards(MBeanServer mBeanServer) {
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+    }
+
+    @Inject(optional = true)
+    void setEnabled(@Named(JsonRpcConfig.SHARDS_ENABLED) boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject(optional = true)
+    void setCount(@Named(JsonRpcConfig.SHARDS_COUNT) int count) {
+        Preconditions.checkArgument(count > 0, "Count must be positive");
+        this.count = count;
+    }
+
+    @Inject(optional = true)
+    void setWaitTime(@Named(JsonRpcConfig.SHARDS_WAIT_TIME) long waitTime) {
+        Preconditions.checkArgument(waitTime > 0, "WaitTime must be positive");
+        this.waitTime = waitTime;
+    }
+
+    @Inject(optional = true)
+    void setWaitTimeUnit(@Named(JsonRpcConfig.SHARDS_WAIT_TIME_UNIT) TimeUnit waitTimeUnit) {
+        this.waitTimeUnit = Preconditions.checkNotNull(waitTimeUnit, "WaitTimeUnit");
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (!enabled) return;
+        for (int index = 0; index < count; index++) {
+            final Shard shard = new Shard();
+            final Thread thread = new Thread(shard, "json-rpc-shard-" + index);
+            thread.setDaemon(true);
+            shard.thread = thread;
+            shards.add(shard);
+        }
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+        LOG.info("Started {} execution shards", count);
+        try {
+            mBeanServer.registerMBean(new StandardMBean(this, ExecutionShardsMBean.class),
+                ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * Executes the specified task in the queue of the specified connection and
+     * waits for its result, at most {@link JsonRpcConfig#SHARDS_WAIT_TIME}.
+     * Tasks submitted by a shard thread run immediately.
+     *
+     * @param connection the connection the task belongs to
+     * @param task the task
+     * @return the task's result
+     * @throws ProtocolException if the task fails with a checked exception,
+     *         the shards have been shut down or the result took too long
+     */
+    Object execute(IpcConnection connection, final Callable<Object> task) throws ProtocolException {
+        if (CURRENT.get() != null) {
+            return call(task);
+        }
+
+        if (disposed) {
+            throw new ProtocolException("Execution shards have been shut down");
+        }
+
+        final FutureTask<Object> future = new FutureTask<Object>(new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                try {
+                    return task.call();
+                } finally {
+                    // before the caller wakes up, so its next request finds the shard free
+                    CURRENT.get().running = false;
+                }
+            }
+
+        });
+        submit(connection, future);
+
+        // dispose may have drained the queues right before the task arrived
+        if (disposed) {
+            future.cancel(false);
+        }
+
+        final long deadline = System.nanoTime() + waitTimeUnit.toNanos(waitTime);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    // the shard may already be running it, abandoning the response helps nobody
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ProtocolException) {
+                throw ProtocolException.class.cast(cause);
+            } else if (cause instanceof RuntimeException) {
+                throw RuntimeException.class.cast(cause);
+            } else if (cause instanceof Error) {
+                throw Error.class.cast(cause);
+            } else {
+                throw new ProtocolException(cause);
+            }
+        } catch (CancellationException e) {
+            throw new ProtocolException("Execution shards have been shut down", e);
+        } catch (TimeoutException e) {
+            // a task which didn't start yet never will, a running one finishes unobserved
+            future.cancel(false);
+            throw new ProtocolException("Timed out waiting for execution shard", e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Object call(Callable<Object> task) throws ProtocolException {
+        try {
+            return task.call();
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        /* CHECKSTYLE:OFF */
+        } catch (Exception e) {
+        /* CHECKSTYLE:ON */
+            throw new ProtocolException(e);
+        }
+    }
+
+    private void submit(IpcConnection connection, FutureTask<Object> future) {
+        final String id = connection.getConnectionId();
+        final Object key = id == null ? connection : id;
+        while (true) {
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                final Lane created = new Lane(key, shardOf(connection));
+                lane = lanes.putIfAbsent(key, created);
+                if (lane == null) lane = created;
+            }
+            final boolean schedule;
+            synchronized (lane) {
+                // drained and removed concurrently, a fresh one has to be created
+                if (lane.retired) continue;
+                lane.tasks.add(future);
+                schedule = !lane.scheduled;
+                lane.scheduled = true;
+            }
+            if (schedule) {
+                lane.home.ready.add(lane);
+                rebalance(lane.home);
+            }
+            return;
+        }
+    }
+
+    private Shard shardOf(IpcConnection connection) {
+        final String id = connection.getConnectionId();
+        final int hash = id == null ? System.identityHashCode(connection) : id.hashCode();
+        // spread the bits, connection ids tend to share long prefixes
+        final int spread = hash ^ (hash >>> 16);
+        return shards.get((spread & Integer.MAX_VALUE) % shards.size());
+    }
+
+    /**
+     * Hands one waiting lane of the specified shard to an idle shard, if the
+     * specified shard is busy. Called by both sides after publishing their
+     * state, so either the submitter sees the running shard or the shard sees
+     * the submitted lane.
+     *
+     * @param from the shard to take a lane from
+     */
+    private void rebalance(Shard from) {
+        if (!from.running || from.ready.isEmpty()) return;
+        for (Shard shard : shards) {
+            if (shard.idle) {
+                final Lane lane = from.ready.poll();
+                if (lane != null) {
+                    shard.ready.add(lane);
+                }
+                return;
+            }
+        }
+    }
+
+    private Lane steal(Shard thief) {
+        final int offset = shards.indexOf(thief);
+        for (int index = 1; index < shards.size(); index++) {
+            final Lane lane = shards.get((offset + index) % shards.size()).ready.poll();
+            if (lane != null) return lane;
+        }
+        return null;
+    }
+
+    @Override
+    public int getShards() {
+        return shards.size();
+    }
+
+    @Override
+    public int[] getQueueLengths() {
+        final int[] lengths = new int[shards.size()];
+        for (int index = 0; index < lengths.length; index++) {
+            lengths[index] = shards.get(index).ready.size();
+        }
+        return lengths;
+    }
+
+    @Override
+    public long[] getExecutedCalls() {
+        final long[] executed = new long[shards.size()];
+        for (int index = 0; index < executed.length; index++) {
+            executed[index] = shards.get(index).executed.get();
+        }
+        return executed;
+    }
+
+    @Override
+    public long[] getBusyTimes() {
+        final long[] busy = new long[shards.size()];
+        for (int index = 0; index < busy.length; index++) {
+            busy[index] = shards.get(index).busy.get() / 1000000L;
+        }
+        return busy;
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (!enabled) return;
+        disposed = true;
+        for (Shard shard : shards) {
+            shard.stopped = true;
+            shard.thread.interrupt();
+            shard.ready.clear();
+        }
+        for (Lane lane : lanes.values()) {
+            synchronized (lane) {
+                for (FutureTask<Object> task : lane.tasks) {
+                    task.cancel(false);
+                }
+                lane.tasks.clear();
+            }
+        }
+        try {
+            mBeanServer.unregisterMBean(ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * The pending tasks of a single connection.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class Lane {
+
+        private final Object key;
+
+        private final Shard home;
+
+        private final Queue<FutureTask<Object>> tasks = Lists.newLinkedList();
+
+        // waiting in a ready queue or running, guarded by this
+        private boolean scheduled;
+
+        // removed from the lanes, guarded by this
+        private boolean retired;
+
+        public Lane(Object key, Shard home) {
+            this.key = key;
+            this.home = home;
+        }
+
+    }
+
+    /**
+     * A thread and its queue of lanes which are ready to run.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private final class Shard implements Runnable {
+
+        private final BlockingQueue<Lane> ready = new LinkedBlockingQueue<Lane>();
+
+        private final AtomicLong executed = new AtomicLong();
+
+        private final AtomicLong busy = new AtomicLong();
+
+        private Thread thread;
+
+        private volatile boolean stopped;
+
+        private volatile boolean idle;
+
+        private volatile boolean running;
+
+        @Override
+        public void run() {
+            CURRENT.set(this);
+            try {
+                while (!stopped) {
+                    final Lane lane;
+                    try {
+                        lane = next();
+                    } catch (InterruptedException e) {
+                        // only the stopped flag ends a shard, checked by the loop
+                        continue;
+                    }
+                    final FutureTask<Object> task;
+                    synchronized (lane) {
+                        task = lane.tasks.poll();
+                    }
+                    if (task == null) continue;
+                    running = true;
+                    rebalance(this);
+                    final long start = System.nanoTime();
+                    task.run();
+                    running = false;
+                    busy.addAndGet(System.nanoTime() - start);
+                    executed.incrementAndGet();
+                    // an interrupt left behind by a task must not leak into the next one
+                    Thread.interrupted();
+                    release(lane);
+                }
+                LOG.debug("{} has been stopped", Thread.currentThread().getName());
+            } finally {
+                CURRENT.remove();
+            }
+        }
+
+        private Lane next() throws InterruptedException {
+            final Lane own = ready.poll();
+            if (own != null) return own;
+            final Lane stolen = steal(this);
+            if (stolen != null) return stolen;
+            idle = true;
+            try {
+                // a rebalancing shard may have missed the flag, look again before blocking
+                final Lane missed = steal(this);
+                return missed == null ? ready.take() : missed;
+            } finally {
+                idle = false;
+            }
+        }
+
+        private void release(Lane lane) {
+            synchronized (lane) {
+                if (lane.tasks.isEmpty()) {
+                    lane.scheduled = false;
+                    lane.retired = true;
+                    lanes.remove(lane.key, lane);
+                    return;
+                }
+            }
+            // one task per turn, so a busy connection can't starve the others
+            ready.add(lane);
+        }
+
+    }
+
+}
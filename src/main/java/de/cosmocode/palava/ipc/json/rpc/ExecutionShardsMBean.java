@@ -0,0 +1,55 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of the connection-affine Json-RPC execution shards.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface ExecutionShardsMBean {
+
+    /**
+     * Provides the number of shards.
+     *
+     * @return the number of shards
+     */
+    int getShards();
+
+    /**
+     * Provides the number of connections with pending calls waiting in each shard's queue.
+     *
+     * @return the queue lengths, indexed by shard
+     */
+    int[] getQueueLengths();
+
+    /**
+     * Provides the number of calls each shard has executed so far.
+     *
+     * @return the executed calls, indexed by shard
+     */
+    long[] getExecutedCalls();
+
+    /**
+     * Provides the time each shard spent executing calls.
+     *
+     * @return the busy time in milliseconds, indexed by shard
+     */
+    long[] getBusyTimes();
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.ipc.IpcCall;
+
+/**
+ * The result fields a Json-RPC 2.0 client asked for using the {@link JsonRpc#FIELDS}
+ * extension, a list of dot separated paths like {@code ["name", "address.city"]}.
+ * The projection is applied to the result before it gets encoded. Commands can
+ * look it up using {@link #of(IpcCall)} to skip computing unrequested fields.
+ * Lists are projected element-wise, streamed results are not projected.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class FieldProjection {
+
+    private static final FieldProjection ALL = new FieldProjection(ImmutableMap.<String, FieldProjection>of());
+
+    private final Map<String, FieldProjection> children;
+
+    private FieldProjection(Map<String, FieldProjection> children) {
+        this.children = children;
+    }
+
+    /**
+     * Provides the projection requested for the specified call.
+     *
+     * @param call the current call
+     * @return the projection or null if the client requested all fields
+     * @throws NullPointerException if call is null
+     */
+    public static FieldProjection of(IpcCall call) {
+        Preconditions.checkNotNull(call, "Call");
+        return call.get(FieldProjection.class);
+    }
+
+    /**
+     * Parses the specified paths.
+     *
+     * @param paths the requested paths
+     * @return a new projection
+     * @throws IllegalArgumentException if a path is empty or contains empty segments
+     */
+    static FieldProjection parse(List<?> paths) {
+        final Map<String, Object> tree = Maps.newHashMap();
+        for (Object path : paths) {
+            if (!(path instanceof String)) {
+                throw new IllegalArgumentException("fields must be strings");
+            }
+            Map<String, Object> node = tree;
+            final String[] segments = String.class.cast(path).split("\\.", -1);
+            for (int i = 0; i < segments.length; i++) {
+                final String segment = segments[i];
+                if (segment.length() == 0) {
+                    throw new IllegalArgumentException(String.format("invalid field %s", path));
+                }
+                final Object child = node.get(segment);
+                if (child == ALL) {
+                    // a shorter path already selected everything below
+                    break;
+                } else if (i == segments.length - 1) {
+                    node.put(segment, ALL);
+                } else if (child == null) {
+                    final Map<String, Object> created = Maps.newHashMap();
+                    node.put(segment, created);
+                    node = created;
+                } else {
+                    @SuppressWarnings("unchecked")
+                    final Map<String, Object> existing = Map.class.cast(child);
+                    node = existing;
+                }
+            }
+        }
+        return build(tree);
+    }
+
+    private static FieldProjection build(Map<String, Object> tree) {
+        final ImmutableMap.Builder<String, FieldProjection> builder = ImmutableMap.builder();
+        for (Map.Entry<String, Object> entry : tree.entrySet()) {
+            if (entry.getValue() == ALL) {
+                builder.put(entry.getKey(), ALL);
+            } else {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> subtree = Map.class.cast(entry.getValue());
+                builder.put(entry.getKey(), build(subtree));
+            }
+        }
+        return new FieldProjection(builder.build());
+    }
+
+    /**
+     * Checks whether the specified field has been requested, either directly,
+     * as part of a requested parent or as parent of a requested field.
+     *
+     * @param path the dot separated path
+     * @return true if the field is part of the result
+     * @throws NullPointerException if path is null
+     */
+    public boolean includes(String path) {
+        Preconditions.checkNotNull(path, "Path");
+        FieldProjection node = this;
+        for (String segment : path.split("\\.")) {
+            if (node == ALL) return true;
+            node = node.children.get(segment);
+            if (node == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies this projection to the specified value.
+     *
+     * @param value a result or a part of it
+     * @return a projected copy of value, or value itself if it is not a map or list
+     */
+    Object apply(Object value) {
+        if (this == ALL) {
+            return value;
+        } else if (value instanceof Map<?, ?>) {
+            final Map<?, ?> map = Map.class.cast(value);
+            final Map<Object, Object> projected = Maps.newLinkedHashMap();
+            for (Map.Entry<String, FieldProjection> child : children.entrySet()) {
+                if (map.containsKey(child.getKey())) {
+                    projected.put(child.getKey(), child.getValue().apply(map.get(child.getKey())));
+                }
+            }
+            return projected;
+        } else if (value instanceof List<?>) {
+            final List<?> list = List.class.cast(value);
+            final List<Object> projected = Lists.newArrayListWithCapacity(list.size());
+            for (Object element : list) {
+                projected.add(apply(element));
+            }
+            return projected;
+        } else {
+            return value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this == ALL ? "*" : children.toString();
+    }
+
+}
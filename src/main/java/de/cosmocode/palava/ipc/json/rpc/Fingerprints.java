@@ -0,0 +1,111 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.lang.reflect.Array;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Computes compact fingerprints of Json-RPC results using 64 bit FNV-1a over a
+ * canonical form, in which map entries are ordered by key and arrays are treated
+ * like lists. Fingerprints are not cryptographically secure, they only detect
+ * changes.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+final class Fingerprints {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    private Fingerprints() {
+
+    }
+
+    /**
+     * Computes the fingerprint of the specified value.
+     *
+     * @param value the value, may be null
+     * @return a 16 character hex string
+     */
+    static String of(Object value) {
+        final long hash = hash(OFFSET_BASIS, value);
+        final String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private static long hash(long hash, Object value) {
+        if (value == null) {
+            return update(hash, 'n');
+        } else if (value instanceof String) {
+            final String string = String.class.cast(value);
+            return update(update(update(hash, 's'), Integer.toString(string.length())), string);
+        } else if (value instanceof Number) {
+            return update(update(hash, 'd'), value.toString());
+        } else if (value instanceof Boolean) {
+            return update(hash, Boolean.TRUE.equals(value) ? 't' : 'f');
+        } else if (value instanceof Map<?, ?>) {
+            final Map<?, ?> map = Map.class.cast(value);
+            final SortedMap<String, Object> sorted = Maps.newTreeMap();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            long current = update(hash, '{');
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                current = hash(current, entry.getKey());
+                current = hash(current, entry.getValue());
+            }
+            return update(current, '}');
+        } else if (value instanceof Iterable<?>) {
+            long current = update(hash, '[');
+            final Iterable<?> iterable = Iterable.class.cast(value);
+            for (Object element : iterable) {
+                current = hash(current, element);
+            }
+            return update(current, ']');
+        } else if (value.getClass().isArray()) {
+            // encoded like lists, toString would only reflect the identity of the array
+            long current = update(hash, '[');
+            final int length = Array.getLength(value);
+            for (int i = 0; i < length; i++) {
+                current = hash(current, Array.get(value, i));
+            }
+            return update(current, ']');
+        } else {
+            return update(update(hash, 'o'), value.toString());
+        }
+    }
+
+    private static long update(long hash, String chars) {
+        long current = hash;
+        for (int i = 0; i < chars.length(); i++) {
+            current = update(current, chars.charAt(i));
+        }
+        return current;
+    }
+
+    private static long update(long hash, char c) {
+        final long low = (hash ^ (c & 0xff)) * PRIME;
+        return (low ^ (c >>> 8)) * PRIME;
+    }
+
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.IpcSession;
+
+/**
+ * A bounded, time-expiring cache of Json-RPC 2.0 responses keyed by idempotency keys.
+ * Duplicate requests which arrive while the original is still in flight wait for
+ * the original execution instead of running the command a second time.
+ * Explicit keys are scoped to the session, so retries over a new connection of the
+ * same client are still recognized, and to the connection if there is no session.
+ * Keys derived from request ids are always scoped to the connection, ids are only
+ * unique per connection. Session and connection ids are assigned by the server, so
+ * clients can't obtain each other's responses. A key reused with different params
+ * or extension members is rejected instead of replaying an unrelated response.
+ * Completed entries are evicted oldest first once the cache is full, in-flight
+ * entries never are, new keys are rejected while all entries are in flight.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class IdempotencyCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdempotencyCache.class);
+
+    private boolean enabled;
+
+    private boolean deriveFromId;
+
+    private int maxSize = 10000;
+
+    private long expirationTime = 5;
+
+    private TimeUnit expirationTimeUnit = TimeUnit.MINUTES;
+
+    private long waitTime = 30;
+
+    private TimeUnit waitTimeUnit = TimeUnit.SECONDS;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    @Inject(optional = true)
+    void setEnabled(@Named(JsonRpcConfig.IDEMPOTENCY_ENABLED) boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject(optional = true)
+    void setDeriveFromId(@Named(JsonRpcConfig.IDEMPOTENCY_DERIVE_FROM_ID) boolean deriveFromId) {
+        this.deriveFromId = deriveFromId;
+    }
+
+    @Inject(optional = true)
+    void setMaxSize(@Named(JsonRpcConfig.IDEMPOTENCY_MAX_SIZE) int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "MaxSize must be positive");
+        this.maxSize = maxSize;
+    }
+
+    @Inject(optional = true)
+    void setExpirationTime(@Named(JsonRpcConfig.IDEMPOTENCY_EXPIRATION_TIME) long expirationTime) {
+        Preconditions.checkArgument(expirationTime > 0, "ExpirationTime must be positive");
+        this.expirationTime = expirationTime;
+    }
+
+    @Inject(optional = true)
+    void setExpirationTimeUnit(@Named(JsonRpcConfig.IDEMPOTENCY_EXPIRATION_TIME_UNIT) TimeUnit expirationTimeUnit) {
+        this.expirationTimeUnit = Preconditions.checkNotNull(expirationTimeUnit, "ExpirationTimeUnit");
+    }
+
+    @Inject(optional = true)
+    void setWaitTime(@Named(JsonRpcConfig.IDEMPOTENCY_WAIT_TIME) long waitTime) {
+        Preconditions.checkArgument(waitTime >= 0, "WaitTime must not be negative");
+        this.waitTime = waitTime;
+    }
+
+    @Inject(optional = true)
+    void setWaitTimeUnit(@Named(JsonRpcConfig.IDEMPOTENCY_WAIT_TIME_UNIT) TimeUnit waitTimeUnit) {
+        this.waitTimeUnit = Preconditions.checkNotNull(waitTimeUnit, "WaitTimeUnit");
+    }
+
+    /**
+     * Computes the cache key for the specified call. Looking up the scope of explicit
+     * keys resolves the session of the connection.
+     *
+     * @param connection the current connection
+     * @param method the requested method
+     * @param id the request id, may be null
+     * @param key the explicit idempotency key, may be null
+     * @return the cache key or null if the call is not subject to replay
+     */
+    String keyOf(IpcConnection connection, String method, Object id, String key) {
+        if (!enabled || id == null || WarmUp.isWarmUp(connection)) {
+            return null;
+        } else if (key != null) {
+            return method + '\u0000' + scopeOf(connection) + "\u0000k" + key;
+        } else if (deriveFromId) {
+            return method + '\u0000' + connection.getConnectionId() + "\u0000i" + id;
+        } else {
+            return null;
+        }
+    }
+
+    private String scopeOf(IpcConnection connection) {
+        final IpcSession session = connection.getSession();
+        final String sessionId = session == null ? null : session.getSessionId();
+        return sessionId == null ? "c" + connection.getConnectionId() : "s" + sessionId;
+    }
+
+    /**
+     * Starts a call using the specified key.
+     *
+     * @param key the cache key
+     * @param request the params and extension members of the call which determine its response
+     * @return null if the caller owns the key and has to execute the call, the existing entry otherwise
+     * @throws IllegalArgumentException if the key is in use by a call with a different request
+     * @throws IllegalStateException if the cache is full of calls which are still in flight
+     */
+    synchronized Entry begin(String key, Object request) {
+        purge();
+        final String fingerprint = Fingerprints.of(request);
+        final Entry existing = entries.get(key);
+        if (existing == null) {
+            if (entries.size() >= maxSize && !evict()) {
+                throw new IllegalStateException("too many calls with idempotency keys in flight");
+            }
+            entries.put(key, new Entry(System.nanoTime() + expirationTimeUnit.toNanos(expirationTime), fingerprint));
+            return null;
+        } else if (existing.fingerprint.equals(fingerprint)) {
+            LOG.trace("Found existing response for idempotency key {}", key);
+            return existing;
+        } else {
+            throw new IllegalArgumentException("idempotencyKey has already been used with different params");
+        }
+    }
+
+    /**
+     * Waits for the original call of the specified entry to complete.
+     *
+     * @param entry the entry returned by {@link #begin(String, Object)}
+     * @return the response or null if the original call was aborted
+     * @throws InterruptedException if the current thread was interrupted while waiting
+     * @throws TimeoutException if the original call did not complete within
+     *         {@link JsonRpcConfig#IDEMPOTENCY_WAIT_TIME}
+     */
+    Object await(Entry entry) throws InterruptedException, TimeoutException {
+        return entry.await(waitTime, waitTimeUnit);
+    }
+
+    /**
+     * Completes the call owning the specified key. Only successful responses
+     * are kept for replay, everything else is handed to waiting duplicates only.
+     *
+     * @param key the cache key
+     * @param response the response
+     * @param success whether the call succeeded
+     */
+    synchronized void complete(String key, Object response, boolean success) {
+        final Entry entry = success ? entries.get(key) : entries.remove(key);
+        if (entry == null) return;
+        entry.complete(response);
+    }
+
+    /**
+     * Aborts the call owning the specified key, e.g. due to an unexpected exception.
+     *
+     * @param key the cache key
+     */
+    synchronized void abort(String key) {
+        final Entry entry = entries.remove(key);
+        if (entry == null) return;
+        entry.complete(null);
+    }
+
+    private boolean evict() {
+        // in-flight entries can't be evicted, waiting duplicates depend on them
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isDone()) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void purge() {
+        final long now = System.nanoTime();
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.expiresAt - now > 0) {
+                break;
+            } else if (entry.isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * A single cached or in-flight response.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    static final class Entry {
+
+        private final long expiresAt;
+
+        private final String fingerprint;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile Object response;
+
+        private Entry(long expiresAt, String fingerprint) {
+            this.expiresAt = expiresAt;
+            this.fingerprint = fingerprint;
+        }
+
+        private void complete(Object value) {
+            this.response = value;
+            latch.countDown();
+        }
+
+        boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        private Object await(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException("original call is still in progress");
+            }
+            return response;
+        }
+
+    }
+
+}
@@ -49,5 +49,29 @@ import com.google.inject.BindingAnnotation;
     String CODE = "code";
     String MESSAGE = "message";
     String DATA = "data";
+    
+    String IDEMPOTENCY_KEY = "idempotencyKey";
+    
+    String ATTACHMENTS = "attachments";
+    
+    String FIELDS = "fields";
+    
+    String IF_NONE_MATCH = "ifNoneMatch";
+    String FINGERPRINT = "fingerprint";
+    String NOT_MODIFIED = "notModified";
+    
+    String BULK = "bulk";
+    String ERRORS = "errors";
+    
+    String FORWARDED = "forwarded";
+    
+    String REFS = "refs";
+    String PATH = "path";
+    
+    String SUBSCRIBE = "rpc.subscribe";
+    String UNSUBSCRIBE = "rpc.unsubscribe";
+    String SUBSCRIPTION = "rpc.subscription";
+    String TOPIC = "topic";
+    String SUBSCRIPTION_ID = "subscription";
 
 }
@@ -16,7 +16,15 @@
 
 package de.cosmocode.palava.ipc.json.rpc;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,7 +34,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 import de.cosmocode.palava.core.Registry;
 import de.cosmocode.palava.core.Registry.Key;
@@ -53,6 +63,28 @@ final class JsonRpc2BatchProtocol extends ListProtocol implements Initializable,
 
     private final JsonRpc2Protocol protocol;
     
+    private final ErrorRendering errors;
+    
+    private final RequestLimits limits;
+    
+    private final CallProbes probes;
+    
+    private final ExecutionShards shards;
+    
+    private final WarmUp warmUp;
+    
+    private final TrafficCapture capture;
+    
+    private final MethodForwarding forwarding;
+    
+    private Pattern deduplicatedMethods;
+    
+    private boolean chaining;
+    
+    private int chainingThreads;
+    
+    private ExecutorService chainingExecutor;
+    
     private final Predicate<Object> supports = new Predicate<Object>() {
         
         @Override
@@ -63,50 +95,276 @@ final class JsonRpc2BatchProtocol extends ListProtocol implements Initializable,
     };
     
     @Inject
-    public JsonRpc2BatchProtocol(Registry registry, JsonRpc2Protocol protocol) {
+    public JsonRpc2BatchProtocol(Registry registry, JsonRpc2Protocol protocol, ErrorRendering errors,
+        RequestLimits limits, CallProbes probes, ExecutionShards shards, WarmUp warmUp,
+        TrafficCapture capture, MethodForwarding forwarding) {
         this.registry = Preconditions.checkNotNull(registry, "Registry");
         this.protocol = Preconditions.checkNotNull(protocol, "Protocol");
+        this.errors = Preconditions.checkNotNull(errors, "Errors");
+        this.limits = Preconditions.checkNotNull(limits, "Limits");
+        this.probes = Preconditions.checkNotNull(probes, "Probes");
+        this.shards = Preconditions.checkNotNull(shards, "Shards");
+        this.warmUp = Preconditions.checkNotNull(warmUp, "WarmUp");
+        this.capture = Preconditions.checkNotNull(capture, "Capture");
+        this.forwarding = Preconditions.checkNotNull(forwarding, "Forwarding");
     }
     
+    @Inject(optional = true)
+    void setChaining(@Named(JsonRpcConfig.BATCH_CHAINING_ENABLED) boolean chaining) {
+        this.chaining = chaining;
+    }
+
+    @Inject(optional = true)
+    void setChainingThreads(@Named(JsonRpcConfig.BATCH_CHAINING_THREADS) int chainingThreads) {
+        Preconditions.checkArgument(chainingThreads >= 0, "ChainingThreads must not be negative");
+        this.chainingThreads = chainingThreads;
+    }
+
     @Override
     public void initialize() throws LifecycleException {
+        if (chaining && chainingThreads > 0) {
+            chainingExecutor = Executors.newFixedThreadPool(chainingThreads);
+        }
+        if (warmUp.isEnabled()) {
+            runWarmUp();
+        }
         registry.register(Key.get(Protocol.class, Json.class), this);
     }
+    
+    private void runWarmUp() {
+        final List<Map<String, Object>> requests = warmUp.requestsOf(JsonRpc2Protocol.VERSION);
+        final DetachedConnection connection = WarmUp.newWarmUpConnection();
+        warmUp.run("Json-RPC 2.0 batches", new WarmUp.Round() {
+            
+            @Override
+            public void run() {
+                // warm-up calls never refer to each other
+                invoke(requests, null, connection);
+            }
+            
+        });
+        protocol.eventIpcConnectionDestroy(connection);
+    }
 
     @Override
     public boolean supports(List<?> request) {
         return Iterables.all(request, supports);
     }
 
+    @Inject(optional = true)
+    void setDeduplicatedMethods(@Named(JsonRpcConfig.BATCH_DEDUPLICATED_METHODS) String deduplicatedMethods) {
+        this.deduplicatedMethods = Pattern.compile(deduplicatedMethods);
+    }
+
     @Override
-    public Object process(List<?> request, final DetachedConnection connection) throws ProtocolException {
+    public Object process(List<?> request, DetachedConnection connection) throws ProtocolException {
+        if (!capture.sample()) return route(request, connection);
+        // taken before processing, which may mutate the request
+        final Object snapshot = capture.snapshot(request);
+        final long arrival = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        try {
+            return route(request, connection);
+        } finally {
+            capture.record(snapshot, connection, arrival, start);
+        }
+    }
+    
+    private Object route(List<?> request, final DetachedConnection connection) throws ProtocolException {
+        // limits run first, they bound the work spent on building the chain
+        final Map<String, Object> limitError = limits.checkBatch(request);
+        
+        if (limitError != null) {
+            LOG.debug("Rejecting batch of {} calls", request.size());
+            return ErrorCode.INVALID_REQUEST.newResponse(null, limitError);
+        }
+        
+        final CallChain chain;
+        try {
+            chain = chaining ? CallChain.of(request) : null;
+        } catch (IllegalArgumentException e) {
+            return ErrorCode.INVALID_REQUEST.newResponse(null, e.getMessage());
+        }
+        
+        // chained batches are answered as a whole, right here
+        if (!forwarding.isEnabled() || chain != null) {
+            return dispatch(request, chain, connection);
+        }
+        // the caller's rate limit identity may live in its session
+        protocol.attach(connection);
+        return forwarding.forward(request, connection, new MethodForwarding.Local() {
+            
+            @Override
+            public List<?> execute(List<?> calls) throws ProtocolException {
+                return List.class.cast(dispatch(calls, null, connection));
+            }
+            
+        });
+    }
+    
+    private Object dispatch(final List<?> request, final CallChain chain, 
+        final DetachedConnection connection) throws ProtocolException {
+        if (!shards.isEnabled()) return measure(request, chain, connection);
+        return shards.execute(connection, new Callable<Object>() {
+            
+            @Override
+            public Object call() {
+                return measure(request, chain, connection);
+            }
+            
+        });
+    }
+    
+    private Object measure(List<?> request, CallChain chain, DetachedConnection connection) {
+        if (!probes.isEnabled()) return invoke(request, chain, connection);
+        final long start = System.nanoTime();
+        try {
+            return invoke(request, chain, connection);
+        } finally {
+            probes.batch(request.size(), start);
+        }
+    }
+    
+    private Object invoke(List<?> request, CallChain chain, final DetachedConnection connection) {
         LOG.trace("Processing json-rpc 2.0 batch call: {}", request);
+        
+        if (chain != null) {
+            return execute(chain, request.size(), connection);
+        }
+        
+        final Map<List<?>, Object> responses = deduplicatedMethods == null ? null : Maps.<List<?>, Object>newHashMap();
+        
         return Lists.newArrayList(Lists.transform(request, new Function<Object, Object>() {
             
             @Override
             public Object apply(Object from) {
-                try {
-                    return protocol.process(from, connection);
-                /* CHECKSTYLE:OFF */
-                } catch (RuntimeException e) {
-                /* CHECKSTYLE:ON */
-                    return protocol.onError(e, from);
-                } catch (ProtocolException e) {
-                    return protocol.onError(e, from);
+                final List<?> key = responses == null ? null : keyOf(from);
+                
+                if (key != null) {
+                    final Object response = responses.get(key);
+                    if (response != null) {
+                        LOG.trace("Reusing response of identical call for {}", from);
+                        return withId(response, Map.class.cast(from).get(JsonRpc.ID));
+                    }
                 }
+                
+                final Object response = execute(from, connection);
+                
+                if (key != null && response instanceof Map<?, ?> &&
+                    !StreamedResult.isStreamed(response, JsonRpc.RESULT)) {
+                    responses.put(key, response);
+                }
+                
+                return response;
             }
             
         }));
     }
+    
+    private Object execute(Object from, DetachedConnection connection) {
+        try {
+            // the batch as a whole already runs on its connection's shard
+            return protocol.handle(Map.class.cast(from), connection);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            return protocol.onError(e, from);
+        }
+    }
+    
+    private Object execute(final CallChain chain, int size, final DetachedConnection connection) {
+        final Object[] responses = new Object[size];
+        
+        for (List<Integer> level : chain.getLevels()) {
+            LOG.trace("Executing chained calls {}", level);
+            final List<Future<Object>> futures = Lists.newArrayList();
+            
+            // the caller's thread executes the first call of every level itself
+            if (chainingExecutor != null) {
+                for (final Integer index : level.subList(1, level.size())) {
+                    futures.add(chainingExecutor.submit(new Callable<Object>() {
+                        
+                        @Override
+                        public Object call() {
+                            return resolveAndExecute(chain, index, responses, connection);
+                        }
+                        
+                    }));
+                }
+            }
+            
+            final List<Integer> local = chainingExecutor == null ? level : level.subList(0, 1);
+            for (Integer index : local) {
+                responses[index] = resolveAndExecute(chain, index, responses, connection);
+            }
+            
+            for (int i = 0; i < futures.size(); i++) {
+                final int index = level.get(i + 1);
+                try {
+                    responses[index] = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    responses[index] = errors.newResponse(ErrorCode.INTERNAL_ERROR, chain.idOf(index), e);
+                } catch (ExecutionException e) {
+                    responses[index] = errors.newResponse(ErrorCode.INTERNAL_ERROR, chain.idOf(index), e.getCause());
+                }
+            }
+        }
+        
+        return Lists.newArrayList(responses);
+    }
+    
+    private Object resolveAndExecute(CallChain chain, int index, Object[] responses, DetachedConnection connection) {
+        final Object resolved;
+        try {
+            resolved = chain.resolve(index, responses);
+        } catch (IllegalArgumentException e) {
+            return ErrorCode.INVALID_PARAMS.newResponse(chain.idOf(index), e.getMessage());
+        }
+        return execute(resolved, connection);
+    }
+
+    
+    /**
+     * Computes the key identical calls share. Only non-notification calls
+     * to methods matching {@link JsonRpcConfig#BATCH_DEDUPLICATED_METHODS} are
+     * subject to deduplication.
+     * 
+     * @param from the batch element
+     * @return the key, consisting of method, params and all extension members which may change
+     *         the response, or null if the call has to be executed anyway
+     */
+    private List<?> keyOf(Object from) {
+        if (!(from instanceof Map<?, ?>)) return null;
+        final Map<?, ?> call = Map.class.cast(from);
+        if (call.get(JsonRpc.ID) == null) return null;
+        if (call.containsKey(JsonRpc.IDEMPOTENCY_KEY)) return null;
+        final Object method = call.get(JsonRpc.METHOD);
+        if (!(method instanceof String)) return null;
+        if (!deduplicatedMethods.matcher(String.class.cast(method)).matches()) return null;
+        return Arrays.asList(method, call.get(JsonRpc.PARAMS), call.get(JsonRpc.BULK), call.get(JsonRpc.FIELDS),
+            call.get(JsonRpc.IF_NONE_MATCH), call.get(JsonRpc.ATTACHMENTS));
+    }
+    
+    private Object withId(Object response, Object id) {
+        final Map<?, ?> original = Map.class.cast(response);
+        final Map<Object, Object> copy = Maps.newHashMap();
+        copy.putAll(original);
+        copy.put(JsonRpc.ID, id);
+        return copy;
+    }
 
     @Override
     public Object onError(Throwable t, List<?> request) {
-        return ErrorCode.INTERNAL_ERROR.newResponse(null, t);
+        return errors.newResponse(ErrorCode.INTERNAL_ERROR, null, t);
     }
     
     @Override
     public void dispose() throws LifecycleException {
         registry.remove(this);
+        if (chainingExecutor != null) {
+            chainingExecutor.shutdown();
+        }
     }
 
 }
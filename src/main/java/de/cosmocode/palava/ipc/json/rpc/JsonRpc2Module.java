@@ -30,6 +30,7 @@ public final class JsonRpc2Module implements Module {
     public void configure(Binder binder) {
         binder.bind(JsonRpc2Protocol.class).asEagerSingleton();
         binder.bind(JsonRpc2BatchProtocol.class).asEagerSingleton();
+        binder.bind(SubscriptionPublisher.class).to(Subscriptions.class);
     }
 
 }
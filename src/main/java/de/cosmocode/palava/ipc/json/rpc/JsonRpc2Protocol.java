@@ -16,16 +16,23 @@
 
 package de.cosmocode.palava.ipc.json.rpc;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.internal.Maps;
 
@@ -46,8 +53,6 @@ import de.cosmocode.palava.ipc.IpcCommandExecutor;
 import de.cosmocode.palava.ipc.IpcCommandNotAvailableException;
 import de.cosmocode.palava.ipc.IpcConnection;
 import de.cosmocode.palava.ipc.IpcConnectionDestroyEvent;
-import de.cosmocode.palava.ipc.IpcSession;
-import de.cosmocode.palava.ipc.IpcSessionProvider;
 import de.cosmocode.palava.ipc.MapIpcArguments;
 import de.cosmocode.palava.ipc.json.Json;
 import de.cosmocode.palava.ipc.protocol.DetachedConnection;
@@ -77,10 +82,68 @@ final class JsonRpc2Protocol extends MapProtocol implements IpcConnectionDestroy
         // notification
         ImmutableSet.of(JsonRpc.JSON_RPC, JsonRpc.METHOD, JsonRpc.PARAMS),
         // notification, without params
-        ImmutableSet.of(JsonRpc.JSON_RPC, JsonRpc.METHOD)
+        ImmutableSet.of(JsonRpc.JSON_RPC, JsonRpc.METHOD),
+        // bulk request
+        ImmutableSet.of(JsonRpc.JSON_RPC, JsonRpc.METHOD, JsonRpc.BULK, JsonRpc.ID),
+        // bulk notification
+        ImmutableSet.of(JsonRpc.JSON_RPC, JsonRpc.METHOD, JsonRpc.BULK)
     );
     
-    private static final String VERSION = "2.0";
+    private static final ImmutableSet<String> EXTENSIONS = ImmutableSet.of(
+        JsonRpc.IDEMPOTENCY_KEY,
+        JsonRpc.ATTACHMENTS,
+        JsonRpc.FIELDS,
+        JsonRpc.IF_NONE_MATCH,
+        JsonRpc.FORWARDED,
+        JsonRpc.REFS
+    );
+    
+    static final String VERSION = "2.0";
+    
+    private static final Map<String, Object> ID_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("id must be on of [string, number, boolean]"));
+    
+    private static final Map<String, Object> VERSION_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("jsonrpc must be 2.0"));
+    
+    private static final Map<String, Object> METHOD_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("method must be a string"));
+    
+    private static final Map<String, Object> PARAMS_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_PARAMS.newError("params must be either an array or an object"));
+    
+    private static final Map<String, Object> IDEMPOTENCY_KEY_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("idempotencyKey must be a string"));
+    
+    private static final Map<String, Object> IN_PROGRESS_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INTERNAL_ERROR.newError("original call with this idempotencyKey is still in progress"));
+    
+    private static final Map<String, Object> ATTACHMENTS_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("attachments are not supported or not an object"));
+    
+    private static final Map<String, Object> FIELDS_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("fields must be an array of strings"));
+    
+    private static final Map<String, Object> IF_NONE_MATCH_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("ifNoneMatch must be a string"));
+    
+    private static final Map<String, Object> BULK_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("bulk is not supported or not an array"));
+    
+    private static final Map<String, Object> BULK_EXTENSIONS_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("bulk can't be combined with extension members"));
+    
+    private static final Map<String, Object> BULK_RESULT_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INTERNAL_ERROR.newError("bulk command returned no bulk result"));
+    
+    private static final Map<String, Object> METHOD_NOT_FOUND_ERROR = ImmutableMap.copyOf(
+        ErrorCode.METHOD_NOT_FOUND.newError("method not found"));
+    
+    private static final Map<String, Object> CIRCUIT_OPEN_ERROR = ImmutableMap.copyOf(
+        ErrorCode.CIRCUIT_OPEN.newError("method is temporarily unavailable"));
+    
+    private static final Map<String, Object> BULKHEAD_FULL_ERROR = ImmutableMap.copyOf(
+        ErrorCode.BULKHEAD_FULL.newError("too many concurrent calls"));
 
     private static final ImmutableSet<Class<?>> VALID_ID_TYPES = ImmutableSet.<Class<?>>of(
         String.class,
@@ -98,35 +161,113 @@ final class JsonRpc2Protocol extends MapProtocol implements IpcConnectionDestroy
     
     private final IpcCallDestroyEvent destroyEvent;
     
-    private final IpcSessionProvider sessionProvider;
+    private final SessionAttachment sessionAttachment;
     
     private final IpcCommandExecutor commandExecutor;
     
     private final IpcCallScope scope;
     
+    private final IdempotencyCache idempotencyCache;
+    
+    private final CircuitBreakers circuitBreakers;
+    
+    private final UnknownMethods unknownMethods;
+    
+    private final MethodSignatures signatures;
+    
+    private final ErrorRendering errors;
+    
+    private final RequestLimits limits;
+    
+    private final AttachmentSpool attachmentSpool;
+    
+    private final RateLimiter rateLimiter;
+    
+    private final Bulkheads bulkheads;
+    
+    private final Subscriptions subscriptions;
+    
+    private final CallProbes probes;
+    
+    private final BulkCommands bulkCommands;
+    
+    private final ExecutionShards shards;
+    
+    private final WarmUp warmUp;
+    
+    private final TrafficCapture capture;
+    
+    private final MethodForwarding forwarding;
+    
     @Inject
     public JsonRpc2Protocol(Registry registry,
         @Proxy IpcCallCreateEvent createEvent, @SilentProxy IpcCallDestroyEvent destroyEvent,
-        IpcSessionProvider sessionProvider, IpcCommandExecutor commandExecutor, IpcCallScope scope) {
+        SessionAttachment sessionAttachment, IpcCommandExecutor commandExecutor, IpcCallScope scope,
+        IdempotencyCache idempotencyCache, CircuitBreakers circuitBreakers, UnknownMethods unknownMethods,
+        MethodSignatures signatures, ErrorRendering errors, RequestLimits limits,
+        AttachmentSpool attachmentSpool, RateLimiter rateLimiter,
+        Bulkheads bulkheads, Subscriptions subscriptions, CallProbes probes, BulkCommands bulkCommands,
+        ExecutionShards shards, WarmUp warmUp,
+        TrafficCapture capture, MethodForwarding forwarding) {
     
         this.registry = Preconditions.checkNotNull(registry, "Registry");
         this.createEvent = Preconditions.checkNotNull(createEvent, "CreateEvent");
         this.destroyEvent = Preconditions.checkNotNull(destroyEvent, "DestroyEvent");
-        this.sessionProvider = Preconditions.checkNotNull(sessionProvider, "SessionProvider");
+        this.sessionAttachment = Preconditions.checkNotNull(sessionAttachment, "SessionAttachment");
         this.commandExecutor = Preconditions.checkNotNull(commandExecutor, "CommandExecutor");
         this.scope = Preconditions.checkNotNull(scope, "Scope");
+        this.idempotencyCache = Preconditions.checkNotNull(idempotencyCache, "IdempotencyCache");
+        this.circuitBreakers = Preconditions.checkNotNull(circuitBreakers, "CircuitBreakers");
+        this.unknownMethods = Preconditions.checkNotNull(unknownMethods, "UnknownMethods");
+        this.signatures = Preconditions.checkNotNull(signatures, "Signatures");
+        this.errors = Preconditions.checkNotNull(errors, "Errors");
+        this.attachmentSpool = Preconditions.checkNotNull(attachmentSpool, "AttachmentSpool");
+        this.rateLimiter = Preconditions.checkNotNull(rateLimiter, "RateLimiter");
+        this.bulkheads = Preconditions.checkNotNull(bulkheads, "Bulkheads");
+        this.subscriptions = Preconditions.checkNotNull(subscriptions, "Subscriptions");
+        this.probes = Preconditions.checkNotNull(probes, "Probes");
+        this.bulkCommands = Preconditions.checkNotNull(bulkCommands, "BulkCommands");
+        this.shards = Preconditions.checkNotNull(shards, "Shards");
+        this.warmUp = Preconditions.checkNotNull(warmUp, "WarmUp");
+        this.capture = Preconditions.checkNotNull(capture, "Capture");
+        this.forwarding = Preconditions.checkNotNull(forwarding, "Forwarding");
+        this.limits = Preconditions.checkNotNull(limits, "Limits");
     }
     
     @Override
     public void initialize() throws LifecycleException {
+        if (warmUp.isEnabled()) {
+            runWarmUp();
+        }
         registry.register(Key.get(Protocol.class, Json.class), this);
         registry.register(IpcConnectionDestroyEvent.class, this);
     }
     
+    private void runWarmUp() {
+        final List<Map<String, Object>> requests = warmUp.requestsOf(VERSION);
+        final DetachedConnection connection = WarmUp.newWarmUpConnection();
+        warmUp.run("Json-RPC 2.0", new WarmUp.Round() {
+            
+            @Override
+            public void run() {
+                for (Map<String, Object> request : requests) {
+                    handle(request, connection);
+                }
+            }
+            
+        });
+        eventIpcConnectionDestroy(connection);
+    }
+    
     @Override
     public boolean supports(Map<?, ?> request) {
-        final int size = request.size();
         final Set<?> keys = request.keySet();
+        int size = request.size();
+        for (String extension : EXTENSIONS) {
+            if (keys.contains(extension)) {
+                size--;
+            }
+        }
         for (ImmutableSet<String> set : KEYS) {
             if (size == set.size() && keys.containsAll(set)) {
                 return true;
@@ -137,19 +278,88 @@ final class JsonRpc2Protocol extends MapProtocol implements IpcConnectionDestroy
 
     @Override
     public Object process(Map<?, ?> request, DetachedConnection connection) throws ProtocolException {
+        if (!capture.sample()) return route(request, connection);
+        // taken before processing, which may mutate the request
+        final Object snapshot = capture.snapshot(request);
+        final long arrival = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        try {
+            return route(request, connection);
+        } finally {
+            capture.record(snapshot, connection, arrival, start);
+        }
+    }
+    
+    private Object route(final Map<?, ?> request, final DetachedConnection connection) throws ProtocolException {
+        if (!forwarding.isEnabled() || forwarding.route(request) == null) return dispatch(request, connection);
+        // the caller's rate limit identity may live in its session
+        attach(connection);
+        return forwarding.forward(Collections.singletonList(request), connection, new MethodForwarding.Local() {
+            
+            @Override
+            public List<?> execute(List<?> calls) throws ProtocolException {
+                return Collections.singletonList(dispatch(request, connection));
+            }
+            
+        }).get(0);
+    }
+    
+    private Object dispatch(final Map<?, ?> request, final DetachedConnection connection) throws ProtocolException {
+        if (!shards.isEnabled()) return handle(request, connection);
+        return shards.execute(connection, new Callable<Object>() {
+            
+            @Override
+            public Object call() {
+                return handle(request, connection);
+            }
+            
+        });
+    }
+    
+    /**
+     * Attaches the specified connection to its lazy session, unless it is already
+     * attached, and marks it as a Json-RPC 2.0 connection.
+     *
+     * @param connection the connection
+     */
+    void attach(DetachedConnection connection) {
+        if (sessionAttachment.attach(connection)) {
+            connection.set(IDENTIFIER, IDENTIFIER_VALUE);
+        }
+    }
+    
+    /**
+     * Checks whether the specified id is either absent or of a legal type.
+     *
+     * @since 1.1
+     * @param id the id, may be null
+     * @return true if id is valid
+     */
+    static boolean isValidId(Object id) {
+        return id == null || VALID_ID_TYPES.contains(id.getClass());
+    }
+    
+    /**
+     * Processes the specified request on the current thread.
+     *
+     * @param request the request
+     * @param connection the connection
+     * @return the response
+     */
+    Object handle(Map<?, ?> request, DetachedConnection connection) {
         LOG.trace("Processing json-rpc 2.0 call: {}", request);
         
         final Object id = request.get(JsonRpc.ID);
         LOG.trace("Call id: {}", id);
         
-        if (id != null && !VALID_ID_TYPES.contains(id.getClass())) {
-            return ErrorCode.INVALID_REQUEST.newResponse(id, "id must be on of [string, number, boolean]");
+        if (!isValidId(id)) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, ID_ERROR);
         }
         
         final Object untypedJsonRpc = request.get(JsonRpc.JSON_RPC);
         
         if (!VERSION.equals(untypedJsonRpc)) {
-            return ErrorCode.INVALID_REQUEST.newResponse(id, "jsonrpc must be 2.0");
+            return ErrorCode.INVALID_REQUEST.newResponse(id, VERSION_ERROR);
         }
         
         final Object untypedMethod = request.get(JsonRpc.METHOD);
@@ -159,14 +369,41 @@ final class JsonRpc2Protocol extends MapProtocol implements IpcConnectionDestroy
             method = String.class.cast(untypedMethod);
             LOG.trace("Requested method: {}", method);
         } else {
-            return ErrorCode.INVALID_REQUEST.newResponse(id, "method must be a string");
+            return ErrorCode.INVALID_REQUEST.newResponse(id, METHOD_ERROR);
+        }
+        
+        if (unknownMethods.contains(method)) {
+            LOG.trace("{} is known to be unavailable", method);
+            return ErrorCode.METHOD_NOT_FOUND.newResponse(id, METHOD_NOT_FOUND_ERROR);
+        }
+        
+        if (request.containsKey(JsonRpc.BULK)) {
+            return bulk(id, method, request, connection);
         }
         
         final Object untypedParams = request.get(JsonRpc.PARAMS);
         
+        final Map<String, Object> limitError = limits.checkParams(untypedParams);
+        
+        if (limitError != null) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, limitError);
+        }
+        
+        if (subscriptions.handles(method)) {
+            return subscribe(id, method, untypedParams, connection);
+        }
+        
+        final MethodSignature signature = signatures.of(method);
+        
         final IpcArguments arguments;
         
-        if (untypedParams == null && !request.containsKey(JsonRpc.PARAMS)) {
+        if (signature != null) {
+            try {
+                arguments = signature.bind(untypedParams);
+            } catch (IllegalArgumentException e) {
+                return ErrorCode.INVALID_PARAMS.newResponse(id, e.getMessage());
+            }
+        } else if (untypedParams == null && !request.containsKey(JsonRpc.PARAMS)) {
             LOG.trace("No params, using empty map");
             arguments = new MapIpcArguments(Maps.<String, Object>newHashMap());
         } else if (untypedParams instanceof List<?>) {
@@ -179,44 +416,461 @@ final class JsonRpc2Protocol extends MapProtocol implements IpcConnectionDestroy
             LOG.trace("Incoming named params: {}", untypedParams);
             arguments = new MapIpcArguments(params);
         } else {
-            return ErrorCode.INVALID_PARAMS.newResponse(id, "params must be either an array or an object");
+            return ErrorCode.INVALID_PARAMS.newResponse(id, PARAMS_ERROR);
         }
         
-        if (!connection.isAttached()) {
-            final IpcSession session = sessionProvider.getSession(connection.getConnectionId(), null);
-            connection.attachTo(session);
-            connection.set(IDENTIFIER, IDENTIFIER_VALUE);
+        final Object untypedIdempotencyKey = request.get(JsonRpc.IDEMPOTENCY_KEY);
+        
+        if (untypedIdempotencyKey != null && !(untypedIdempotencyKey instanceof String)) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, IDEMPOTENCY_KEY_ERROR);
+        }
+        
+        final Object untypedFields = request.get(JsonRpc.FIELDS);
+        
+        final FieldProjection projection;
+        
+        if (untypedFields == null) {
+            projection = null;
+        } else if (untypedFields instanceof List<?>) {
+            try {
+                projection = FieldProjection.parse(List.class.cast(untypedFields));
+            } catch (IllegalArgumentException e) {
+                return ErrorCode.INVALID_REQUEST.newResponse(id, e.getMessage());
+            }
+        } else {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, FIELDS_ERROR);
+        }
+        
+        final Object untypedIfNoneMatch = request.get(JsonRpc.IF_NONE_MATCH);
+        
+        if (untypedIfNoneMatch != null && !(untypedIfNoneMatch instanceof String)) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, IF_NONE_MATCH_ERROR);
+        }
+        
+        final Object untypedAttachments = request.get(JsonRpc.ATTACHMENTS);
+        
+        if (untypedAttachments != null && !(untypedAttachments instanceof Map<?, ?> && attachmentSpool.isEnabled())) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, ATTACHMENTS_ERROR);
+        }
+        
+        attach(connection);
+        
+        final Map<String, Object> rateLimitError = rateLimiter.acquire(method, connection,
+            request.get(JsonRpc.FORWARDED), 1);
+        
+        if (rateLimitError != null) {
+            return ErrorCode.RATE_LIMITED.newResponse(id, rateLimitError);
+        }
+        
+        final IpcCall call = new JsonRpcCall(
+            untypedAttachments == null ? arguments : Attachments.copyOf(arguments),
+            sessionAttachment.connectionOf(method, connection));
+        
+        if (projection != null) {
+            call.set(FieldProjection.class, projection);
+        }
+        
+        if (untypedIfNoneMatch != null) {
+            call.set(ConditionalCall.class, new ConditionalCall(String.class.cast(untypedIfNoneMatch), projection));
+        }
+        
+        final Map<?, ?> attachments = Map.class.cast(untypedAttachments);
+        final String key = idempotencyCache.keyOf(connection, method, id, (String) untypedIdempotencyKey);
+        
+        try {
+            if (key == null) {
+                return execute(id, method, call, attachments);
+            } else {
+                // everything which may change the response must match on replay
+                final List<Object> fingerprinted = Arrays.asList(
+                    untypedParams, untypedAttachments, untypedFields, untypedIfNoneMatch);
+                return replay(key, id, method, fingerprinted, call, attachments);
+            }
+        } finally {
+            // usually released by the destroy event already, but calls failing
+            // after spooling and before their creation never fire one
+            final Attachments spooled = call.get(Attachments.class);
+            if (spooled != null) {
+                spooled.release();
+            }
+        }
+    }
+    
+    private Object bulk(Object id, String method, Map<?, ?> request, DetachedConnection connection) {
+        final Object untypedBulk = request.get(JsonRpc.BULK);
+        
+        if (!bulkCommands.isEnabled() || !(untypedBulk instanceof List<?>)) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, BULK_ERROR);
+        }
+        
+        for (String extension : EXTENSIONS) {
+            // forwarded bulks are legal, the marker only prevents forwarding them again
+            if (request.containsKey(extension) && !JsonRpc.FORWARDED.equals(extension)) {
+                return ErrorCode.INVALID_REQUEST.newResponse(id, BULK_EXTENSIONS_ERROR);
+            }
         }
         
-        final IpcCall call = new JsonRpcCall(arguments, connection);
+        final List<?> bulk = List.class.cast(untypedBulk);
+        LOG.trace("Incoming bulk of {} argument sets", bulk.size());
         
-        return execute(id, method, call);
+        final Map<String, Object> batchError = limits.checkBatch(bulk);
+        
+        if (batchError != null) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, batchError);
+        }
+        
+        final Map<String, Object> limitError = limits.checkParams(bulk);
+        
+        if (limitError != null) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, limitError);
+        }
+        
+        final MethodSignature signature = signatures.of(method);
+        final List<IpcArguments> arguments = Lists.newArrayListWithCapacity(bulk.size());
+        
+        for (int index = 0; index < bulk.size(); index++) {
+            try {
+                arguments.add(argumentsOf(signature, bulk.get(index)));
+            } catch (IllegalArgumentException e) {
+                return ErrorCode.INVALID_PARAMS.newResponse(id,
+                    String.format("%s[%s]: %s", JsonRpc.BULK, index, e.getMessage()));
+            }
+        }
+        
+        attach(connection);
+        
+        final Map<String, Object> rateLimitError = rateLimiter.acquire(method, connection,
+            request.get(JsonRpc.FORWARDED), Math.max(1, bulk.size()));
+        
+        if (rateLimitError != null) {
+            return ErrorCode.RATE_LIMITED.newResponse(id, rateLimitError);
+        }
+        
+        if (!probes.isEnabled()) return invokeBulk(id, method, arguments, connection);
+        final long start = System.nanoTime();
+        Object response = null;
+        try {
+            response = invokeBulk(id, method, arguments, connection);
+            return response;
+        } finally {
+            probes.call(VERSION, method, response, start);
+        }
     }
     
-    private Object execute(Object id, String method, final IpcCall call) {
+    private static IpcArguments argumentsOf(MethodSignature signature, Object params) {
+        if (signature != null) {
+            return signature.bind(params);
+        } else if (params instanceof List<?>) {
+            return new JsonRpcArguments(List.class.cast(params));
+        } else if (params instanceof Map<?, ?>) {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> map = Map.class.cast(params);
+            return new MapIpcArguments(map);
+        } else {
+            throw new IllegalArgumentException("params must be either an array or an object");
+        }
+    }
+    
+    private Object invokeBulk(Object id, String method, List<IpcArguments> arguments, DetachedConnection connection) {
+        final long permit = circuitBreakers.tryAcquire(method, connection);
+        
+        if (permit == CircuitBreaker.DENIED) {
+            LOG.debug("Circuit breaker of {} is open, failing fast", method);
+            return ErrorCode.CIRCUIT_OPEN.newResponse(id, CIRCUIT_OPEN_ERROR);
+        }
+        
+        if (!bulkheads.tryAcquire(method)) {
+            circuitBreakers.release(method, permit, CircuitBreaker.Outcome.IGNORED, 0);
+            return ErrorCode.BULKHEAD_FULL.newResponse(id, BULKHEAD_FULL_ERROR);
+        }
+        
+        final IpcConnection view = sessionAttachment.connectionOf(method, connection);
+        final boolean notification = id == null;
+        final long start = System.nanoTime();
+        CircuitBreaker.Outcome outcome = CircuitBreaker.Outcome.FAILURE;
+        
+        try {
+            final List<?> results;
+            Map<String, Object> failures = null;
+            
+            if (arguments.isEmpty()) {
+                results = arguments;
+            } else if (bulkCommands.isBulk(method)) {
+                LOG.trace("Executing {} once for {} argument sets", method, arguments.size());
+                final IpcCall call = new JsonRpcCall(new MapIpcArguments(Maps.<String, Object>newHashMap()), view);
+                BulkCommand.bind(call, arguments);
+                results = BulkCommand.resultsOf(executeOnce(method, call, notification));
+                if (results == null) {
+                    return ErrorCode.INTERNAL_ERROR.newResponse(id, BULK_RESULT_ERROR);
+                }
+            } else {
+                LOG.trace("Executing {} for each of {} argument sets", method, arguments.size());
+                final List<Object> each = Lists.newArrayListWithCapacity(arguments.size());
+                for (int index = 0; index < arguments.size(); index++) {
+                    try {
+                        each.add(executeOnce(method, new JsonRpcCall(arguments.get(index), view), notification));
+                    } catch (IpcCommandNotAvailableException e) {
+                        throw e;
+                    } catch (IpcCommandExecutionException e) {
+                        each.add(null);
+                        if (failures == null) {
+                            failures = Maps.newHashMap();
+                        }
+                        failures.put(String.valueOf(index), errors.newError(ErrorCode.INTERNAL_ERROR, causeOf(e)));
+                    }
+                }
+                results = each;
+            }
+            
+            outcome = failures == null ? CircuitBreaker.Outcome.SUCCESS : CircuitBreaker.Outcome.FAILURE;
+            
+            if (notification) {
+                LOG.trace("Request was notification, returning no result");
+                return Protocol.NO_RESPONSE;
+            }
+            
+            final Map<String, Object> response = newResult(results, id);
+            if (failures != null) {
+                response.put(JsonRpc.ERRORS, failures);
+            }
+            return response;
+        } catch (IpcCommandNotAvailableException e) {
+            outcome = CircuitBreaker.Outcome.IGNORED;
+            unknownMethods.add(method);
+            return errors.newResponse(ErrorCode.METHOD_NOT_FOUND, id, causeOf(e));
+        } catch (IpcCommandExecutionException e) {
+            return errors.newResponse(ErrorCode.INTERNAL_ERROR, id, causeOf(e));
+        } finally {
+            circuitBreakers.release(method, permit, outcome, System.nanoTime() - start);
+            bulkheads.release(method);
+        }
+    }
+    
+    private Map<String, Object> executeOnce(String method, IpcCall call, boolean notification)
+        throws IpcCommandExecutionException {
+        
         createEvent.eventIpcCallCreate(call);
         scope.enter(call);
+        
+        try {
+            final Map<String, Object> result = commandExecutor.execute(method, call);
+            final StreamedResult stream = StreamedResult.in(result);
+            if (stream == null) {
+                LOG.trace("Returning {}", result);
+            } else if (notification) {
+                stream.close();
+            } else {
+                stream.track(SessionAttachment.unwrap(call.getConnection()));
+            }
+            return result;
+        } finally {
+            destroyEvent.eventIpcCallDestroy(call);
+            scope.exit();
+        }
+    }
+    
+    private Object subscribe(Object id, String method, Object params, DetachedConnection connection) {
+        final boolean subscribe = JsonRpc.SUBSCRIBE.equals(method);
+        final Object argument;
+        
+        if (params instanceof List<?> && List.class.cast(params).size() == 1) {
+            argument = List.class.cast(params).get(0);
+        } else if (params instanceof Map<?, ?>) {
+            argument = Map.class.cast(params).get(subscribe ? JsonRpc.TOPIC : JsonRpc.SUBSCRIPTION_ID);
+        } else {
+            argument = null;
+        }
+        
+        final Object result;
+        
+        try {
+            if (subscribe) {
+                if (!(argument instanceof String)) {
+                    throw new IllegalArgumentException(String.format("%s must be a string", JsonRpc.TOPIC));
+                }
+                // marks the connection, so its destruction refuses racing subscriptions
+                attach(connection);
+                result = subscriptions.subscribe(connection, String.class.cast(argument));
+            } else {
+                if (!(argument instanceof Number)) {
+                    throw new IllegalArgumentException(String.format("%s must be a number", JsonRpc.SUBSCRIPTION_ID));
+                }
+                result = subscriptions.unsubscribe(connection, Number.class.cast(argument).intValue());
+            }
+        } catch (IllegalArgumentException e) {
+            return ErrorCode.INVALID_PARAMS.newResponse(id, e.getMessage());
+        }
+        
+        return id == null ? Protocol.NO_RESPONSE : newResult(result, id);
+    }
+    
+    private Object replay(String key, Object id, String method, Object fingerprinted, IpcCall call,
+        Map<?, ?> attachments) {
+        final IdempotencyCache.Entry entry;
+        
+        try {
+            entry = idempotencyCache.begin(key, fingerprinted);
+        } catch (IllegalArgumentException e) {
+            return ErrorCode.INVALID_REQUEST.newResponse(id, e.getMessage());
+        } catch (IllegalStateException e) {
+            return ErrorCode.INTERNAL_ERROR.newResponse(id, e.getMessage());
+        }
+        
+        if (entry == null) {
+            boolean completed = false;
+            try {
+                final Object response = execute(id, method, call, attachments);
+                if (StreamedResult.isStreamed(response, JsonRpc.RESULT)) {
+                    // streams can't be consumed twice, let waiting duplicates execute again
+                    idempotencyCache.abort(key);
+                } else {
+                    final boolean success = response instanceof Map<?, ?> &&
+                        Map.class.cast(response).containsKey(JsonRpc.RESULT);
+                    idempotencyCache.complete(key, response, success);
+                }
+                completed = true;
+                return response;
+            } finally {
+                if (!completed) {
+                    idempotencyCache.abort(key);
+                }
+            }
+        }
+        
+        final Object response;
+        
+        try {
+            response = idempotencyCache.await(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return errors.newResponse(ErrorCode.INTERNAL_ERROR, id, e);
+        } catch (TimeoutException e) {
+            LOG.debug("Original call for idempotency key {} did not complete in time", key);
+            return ErrorCode.INTERNAL_ERROR.newResponse(id, IN_PROGRESS_ERROR);
+        }
+        
+        if (response == null) {
+            LOG.debug("Original call for idempotency key {} was aborted, executing again", key);
+            return execute(id, method, call, attachments);
+        } else if (response instanceof Map<?, ?>) {
+            LOG.trace("Replaying response for idempotency key {}", key);
+            final Map<?, ?> original = Map.class.cast(response);
+            final Map<Object, Object> replayed = Maps.newHashMap();
+            replayed.putAll(original);
+            replayed.put(JsonRpc.ID, id);
+            return replayed;
+        } else {
+            return response;
+        }
+    }
+    
+    private Object execute(Object id, String method, IpcCall call, Map<?, ?> attachments) {
+        if (!probes.isEnabled()) return invoke(id, method, call, attachments);
+        final long start = System.nanoTime();
+        Object response = null;
+        try {
+            response = invoke(id, method, call, attachments);
+            return response;
+        } finally {
+            probes.call(VERSION, method, response, start);
+        }
+    }
+    
+    private Object invoke(Object id, String method, final IpcCall call, Map<?, ?> attachments) {
+        final long permit = circuitBreakers.tryAcquire(method, call.getConnection());
+        
+        if (permit == CircuitBreaker.DENIED) {
+            LOG.debug("Circuit breaker of {} is open, failing fast", method);
+            return ErrorCode.CIRCUIT_OPEN.newResponse(id, CIRCUIT_OPEN_ERROR);
+        }
+        
+        if (!bulkheads.tryAcquire(method)) {
+            circuitBreakers.release(method, permit, CircuitBreaker.Outcome.IGNORED, 0);
+            return ErrorCode.BULKHEAD_FULL.newResponse(id, BULKHEAD_FULL_ERROR);
+        }
+        
+        // admitted calls only, rejected ones must not cost any disk io
+        final Object spoolError = attachments == null ? null : spool(id, attachments, call);
+        
+        if (spoolError != null) {
+            circuitBreakers.release(method, permit, CircuitBreaker.Outcome.IGNORED, 0);
+            bulkheads.release(method);
+            return spoolError;
+        }
+        
+        createEvent.eventIpcCallCreate(call);
+        scope.enter(call);
+        
+        final long start = System.nanoTime();
+        CircuitBreaker.Outcome outcome = CircuitBreaker.Outcome.FAILURE;
 
         try {
             final Map<String, Object> result = commandExecutor.execute(method, call);
+            outcome = CircuitBreaker.Outcome.SUCCESS;
+            final StreamedResult stream = StreamedResult.in(result);
                 
             if (id == null) {
                 LOG.trace("Request was notification, returning no result");
+                if (stream != null) stream.close();
                 return Protocol.NO_RESPONSE;
-            } else {
+            } else if (stream == null) {
                 LOG.trace("Returning {}", result);
-                return newResult(result, id);
+                final FieldProjection projection = FieldProjection.of(call);
+                final Object projected = projection == null ? result : projection.apply(result);
+                final ConditionalCall conditional = ConditionalCall.of(call);
+                if (conditional == null) {
+                    return newResult(projected, id);
+                } else {
+                    final String fingerprint = conditional.fingerprintOf(projected);
+                    final Map<String, Object> response;
+                    if (conditional.matches(fingerprint)) {
+                        LOG.trace("Result of {} has not been modified", method);
+                        response = newResult(null, id);
+                        response.put(JsonRpc.NOT_MODIFIED, Boolean.TRUE);
+                    } else {
+                        response = newResult(projected, id);
+                    }
+                    response.put(JsonRpc.FINGERPRINT, fingerprint);
+                    return response;
+                }
+            } else {
+                LOG.trace("Returning {}", stream);
+                stream.track(SessionAttachment.unwrap(call.getConnection()));
+                return newResult(stream, id);
             }
         } catch (IpcCommandNotAvailableException e) {
-            return ErrorCode.METHOD_NOT_FOUND.newResponse(id, e.getCause());
+            outcome = CircuitBreaker.Outcome.IGNORED;
+            unknownMethods.add(method);
+            return errors.newResponse(ErrorCode.METHOD_NOT_FOUND, id, causeOf(e));
         } catch (IpcCommandExecutionException e) {
-            return ErrorCode.INTERNAL_ERROR.newResponse(id, e.getCause());
+            return errors.newResponse(ErrorCode.INTERNAL_ERROR, id, causeOf(e));
         } finally {
+            circuitBreakers.release(method, permit, outcome, System.nanoTime() - start);
             destroyEvent.eventIpcCallDestroy(call);
             scope.exit();
+            bulkheads.release(method);
         }
     }
     
+    private Object spool(Object id, Map<?, ?> untypedAttachments, IpcCall call) {
+        final Attachments attachments;
+        try {
+            attachments = attachmentSpool.spool(untypedAttachments, call.getArguments());
+        } catch (IllegalArgumentException e) {
+            return ErrorCode.INVALID_PARAMS.newResponse(id, e.getMessage());
+        } catch (IOException e) {
+            LOG.error("Unable to spool attachments", e);
+            return errors.newResponse(ErrorCode.INTERNAL_ERROR, id, e);
+        }
+        call.set(Attachments.class, attachments);
+        attachments.mergeInto(call.getArguments());
+        return null;
+    }
+    
+    private static Throwable causeOf(Throwable t) {
+        return t.getCause() == null ? t : t.getCause();
+    }
+    
     private Map<String, Object> newResult(Object result, Object id) {
         return newHashMap(
             JsonRpc.JSON_RPC, VERSION,
@@ -235,16 +889,18 @@ final class JsonRpc2Protocol extends MapProtocol implements IpcConnectionDestroy
     
     @Override
     public Object onError(Throwable t, Map<?, ?> request) {
-        return ErrorCode.INTERNAL_ERROR.newResponse(request.get(JsonRpc.ID), t);
+        return errors.newResponse(ErrorCode.INTERNAL_ERROR, request.get(JsonRpc.ID), t);
     }
     
     @Override
     public void eventIpcConnectionDestroy(IpcConnection connection) {
+        StreamedResult.closeAll(connection);
         final String identifier = connection.get(IDENTIFIER);
+        subscriptions.unsubscribeAll(connection, identifier != null);
         if (identifier == null) return;
         // is the given connection one of ours?
         if (identifier.equals(IDENTIFIER_VALUE)) {
-            connection.getSession().clear();
+            sessionAttachment.clear(connection);
         }
     }
     
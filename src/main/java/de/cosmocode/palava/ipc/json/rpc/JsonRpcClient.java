@@ -0,0 +1,315 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A Json-RPC 2.0 client which coalesces concurrent calls into batches. Calls
+ * issued within the configured window are sent together as soon as the window
+ * closes or the batch is full, responses are dispatched to the calls' futures
+ * by id. Batches are sent on the given executor, so several of them may be in
+ * flight at once.
+ *
+ * <pre>
+ * final JsonRpcClient client = new JsonRpcClient(transport, executor, 2, TimeUnit.MILLISECONDS, 100);
+ * final Future&lt;Object&gt; user = client.call("com.example.LoadUser", ImmutableList.of(42));
+ * </pre>
+ *
+ * <p>
+ *   Error responses fail the future with a {@link JsonRpcException}, transport
+ *   failures with the transport's {@link IOException}.
+ * </p>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class JsonRpcClient implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JsonRpcClient.class);
+
+    private final JsonRpcTransport transport;
+
+    private final ScheduledExecutorService executor;
+
+    private final long window;
+
+    private final int maxBatchSize;
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final Object lock = new Object();
+
+    private List<Pending> queue = Lists.newArrayList();
+
+    private long generation;
+
+    private boolean closed;
+
+    /**
+     * Creates a new client.
+     *
+     * @param transport the transport batches are sent with
+     * @param executor the executor used to close windows and send batches
+     * @param window the time calls wait for other calls to join their batch
+     * @param windowUnit the unit of window
+     * @param maxBatchSize the number of calls which closes a window early
+     * @throws NullPointerException if transport, executor or windowUnit is null
+     * @throws IllegalArgumentException if window is negative or maxBatchSize is not positive
+     */
+    public JsonRpcClient(JsonRpcTransport transport, ScheduledExecutorService executor,
+        long window, TimeUnit windowUnit, int maxBatchSize) {
+        this.transport = Preconditions.checkNotNull(transport, "Transport");
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+        Preconditions.checkArgument(window >= 0, "Window must not be negative");
+        Preconditions.checkNotNull(windowUnit, "WindowUnit");
+        Preconditions.checkArgument(maxBatchSize > 0, "MaxBatchSize must be positive");
+        this.window = windowUnit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Calls the specified method.
+     *
+     * @param method the method name
+     * @param params the params, either a list, a map or null
+     * @return a future of the call's result
+     * @throws NullPointerException if method is null
+     * @throws IllegalStateException if this client has been closed
+     */
+    public Future<Object> call(String method, Object params) {
+        final Pending pending = new Pending(ids.incrementAndGet(), method, params);
+        enqueue(pending);
+        return pending;
+    }
+
+    /**
+     * Sends a notification to the specified method. Notifications are batched
+     * like calls but never answered.
+     *
+     * @param method the method name
+     * @param params the params, either a list, a map or null
+     * @throws NullPointerException if method is null
+     * @throws IllegalStateException if this client has been closed
+     */
+    public void sendNotification(String method, Object params) {
+        enqueue(new Pending(null, method, params));
+    }
+
+    private void enqueue(Pending pending) {
+        final List<Pending> batch;
+        synchronized (lock) {
+            Preconditions.checkState(!closed, "Client has been closed");
+            queue.add(pending);
+            if (queue.size() >= maxBatchSize) {
+                batch = drain();
+            } else {
+                if (queue.size() == 1) {
+                    executor.schedule(new Flush(generation), window, TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+        }
+        dispatch(batch);
+    }
+
+    private List<Pending> drain() {
+        final List<Pending> batch = queue;
+        queue = Lists.newArrayList();
+        generation++;
+        return batch;
+    }
+
+    private void dispatch(final List<Pending> batch) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                send(batch);
+            }
+
+        });
+    }
+
+    private void send(List<Pending> batch) {
+        final List<Map<String, Object>> requests = Lists.newArrayListWithCapacity(batch.size());
+        final Map<Long, Pending> calls = Maps.newHashMap();
+        for (Pending pending : batch) {
+            requests.add(pending.request);
+            if (pending.id != null) {
+                calls.put(pending.id, pending);
+            }
+        }
+
+        LOG.trace("Sending batch of {} calls", requests.size());
+        final Object response;
+
+        try {
+            response = transport.send(requests);
+        } catch (IOException e) {
+            failAll(calls, e);
+            return;
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            failAll(calls, e);
+            return;
+        }
+
+        if (response instanceof List<?>) {
+            final List<?> responses = List.class.cast(response);
+            for (Object element : responses) {
+                if (!(element instanceof Map<?, ?>)) continue;
+                final Map<?, ?> map = Map.class.cast(element);
+                final Object id = map.get(JsonRpc.ID);
+                // decoders differ in their choice of number types
+                final Pending pending = id instanceof Number ? calls.remove(Number.class.cast(id).longValue()) : null;
+                if (pending == null) {
+                    LOG.warn("Received response for unknown call: {}", map);
+                } else {
+                    pending.complete(map);
+                }
+            }
+        } else if (response instanceof Map<?, ?>) {
+            LOG.debug("Batch has been rejected: {}", response);
+            failAll(calls, JsonRpcException.of(Map.class.cast(response).get(JsonRpc.ERROR)));
+        }
+
+        if (!calls.isEmpty()) {
+            failAll(calls, new JsonRpcException(0, "no response received", null));
+        }
+    }
+
+    private void failAll(Map<Long, Pending> calls, Throwable cause) {
+        for (Pending pending : calls.values()) {
+            pending.fail(cause);
+        }
+        calls.clear();
+    }
+
+    /**
+     * Sends all calls waiting for their window to close and rejects further calls.
+     * Batches already in flight are not awaited.
+     */
+    @Override
+    public void close() {
+        final List<Pending> batch;
+        synchronized (lock) {
+            closed = true;
+            if (queue.isEmpty()) return;
+            batch = drain();
+        }
+        dispatch(batch);
+    }
+
+    /**
+     * Closes the window of a specific generation of the queue.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private final class Flush implements Runnable {
+
+        private final long expected;
+
+        public Flush(long expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public void run() {
+            final List<Pending> batch;
+            synchronized (lock) {
+                // the window has been closed early because the batch was full
+                if (generation != expected || queue.isEmpty()) return;
+                batch = drain();
+            }
+            send(batch);
+        }
+
+    }
+
+    /**
+     * A call waiting for its response.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class Pending extends FutureTask<Object> {
+
+        private static final Callable<Object> UNUSED = new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+
+        private final Long id;
+
+        private final Map<String, Object> request = Maps.newHashMap();
+
+        public Pending(Long id, String method, Object params) {
+            super(UNUSED);
+            this.id = id;
+            request.put(JsonRpc.JSON_RPC, JsonRpc2Protocol.VERSION);
+            request.put(JsonRpc.METHOD, Preconditions.checkNotNull(method, "Method"));
+            if (params != null) {
+                request.put(JsonRpc.PARAMS, params);
+            }
+            if (id != null) {
+                request.put(JsonRpc.ID, id);
+            }
+        }
+
+        private void complete(Map<?, ?> response) {
+            if (response.containsKey(JsonRpc.ERROR)) {
+                setException(JsonRpcException.of(response.get(JsonRpc.ERROR)));
+            } else {
+                set(response.get(JsonRpc.RESULT));
+            }
+        }
+
+        private void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        @Override
+        public void run() {
+            // completed by responses only
+        }
+
+    }
+
+}
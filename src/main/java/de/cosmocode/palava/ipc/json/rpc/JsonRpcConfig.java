@@ -0,0 +1,212 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * Static constant holder class for Json-RPC config key names.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class JsonRpcConfig {
+
+    public static final String PREFIX = "ipc.json.rpc.";
+
+    public static final String IDEMPOTENCY = PREFIX + "idempotency.";
+
+    public static final String IDEMPOTENCY_ENABLED = IDEMPOTENCY + "enabled";
+
+    public static final String IDEMPOTENCY_DERIVE_FROM_ID = IDEMPOTENCY + "deriveFromId";
+
+    public static final String IDEMPOTENCY_MAX_SIZE = IDEMPOTENCY + "maxSize";
+
+    public static final String IDEMPOTENCY_EXPIRATION_TIME = IDEMPOTENCY + "expirationTime";
+
+    public static final String IDEMPOTENCY_EXPIRATION_TIME_UNIT = IDEMPOTENCY + "expirationTimeUnit";
+
+    public static final String IDEMPOTENCY_WAIT_TIME = IDEMPOTENCY + "waitTime";
+
+    public static final String IDEMPOTENCY_WAIT_TIME_UNIT = IDEMPOTENCY + "waitTimeUnit";
+
+    public static final String CIRCUIT_BREAKER = PREFIX + "circuitBreaker.";
+
+    public static final String CIRCUIT_BREAKER_ENABLED = CIRCUIT_BREAKER + "enabled";
+
+    public static final String CIRCUIT_BREAKER_WINDOW_SIZE = CIRCUIT_BREAKER + "windowSize";
+
+    public static final String CIRCUIT_BREAKER_MINIMUM_CALLS = CIRCUIT_BREAKER + "minimumCalls";
+
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = CIRCUIT_BREAKER + "failureRateThreshold";
+
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD = CIRCUIT_BREAKER + "slowCallThreshold";
+
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD_UNIT = CIRCUIT_BREAKER + "slowCallThresholdUnit";
+
+    public static final String CIRCUIT_BREAKER_OPEN_DURATION = CIRCUIT_BREAKER + "openDuration";
+
+    public static final String CIRCUIT_BREAKER_OPEN_DURATION_UNIT = CIRCUIT_BREAKER + "openDurationUnit";
+
+    public static final String SESSION = PREFIX + "session.";
+
+    public static final String SESSION_STATELESS_METHODS = SESSION + "statelessMethods";
+
+    public static final String SESSION_CLEANUP = SESSION + "cleanup.";
+
+    public static final String SESSION_CLEANUP_ASYNC = SESSION_CLEANUP + "async";
+
+    public static final String SESSION_CLEANUP_QUEUE_CAPACITY = SESSION_CLEANUP + "queueCapacity";
+
+    public static final String SESSION_CLEANUP_BATCH_SIZE = SESSION_CLEANUP + "batchSize";
+
+    public static final String SESSION_CLEANUP_INTERVAL = SESSION_CLEANUP + "interval";
+
+    public static final String SESSION_CLEANUP_INTERVAL_UNIT = SESSION_CLEANUP + "intervalUnit";
+
+    public static final String SESSION_CLEANUP_MAX_RETRIES = SESSION_CLEANUP + "maxRetries";
+
+    public static final String BATCH = PREFIX + "batch.";
+
+    public static final String BATCH_DEDUPLICATED_METHODS = BATCH + "deduplicatedMethods";
+
+    public static final String UNKNOWN_METHODS = PREFIX + "unknownMethods.";
+
+    public static final String UNKNOWN_METHODS_ENABLED = UNKNOWN_METHODS + "enabled";
+
+    public static final String UNKNOWN_METHODS_MAX_SIZE = UNKNOWN_METHODS + "maxSize";
+
+    public static final String UNKNOWN_METHODS_EXPIRATION_TIME = UNKNOWN_METHODS + "expirationTime";
+
+    public static final String UNKNOWN_METHODS_EXPIRATION_TIME_UNIT = UNKNOWN_METHODS + "expirationTimeUnit";
+
+    public static final String ERROR = PREFIX + "error.";
+
+    public static final String ERROR_POLICY = ERROR + "policy";
+
+    public static final String ERROR_MAX_STACK_DEPTH = ERROR + "maxStackDepth";
+
+    public static final String LIMITS = PREFIX + "limits.";
+
+    public static final String LIMITS_MAX_BATCH_SIZE = LIMITS + "maxBatchSize";
+
+    public static final String LIMITS_MAX_PARAMS_ELEMENTS = LIMITS + "maxParamsElements";
+
+    public static final String LIMITS_MAX_PARAMS_DEPTH = LIMITS + "maxParamsDepth";
+
+    public static final String ATTACHMENTS = PREFIX + "attachments.";
+
+    public static final String ATTACHMENTS_ENABLED = ATTACHMENTS + "enabled";
+
+    public static final String ATTACHMENTS_DIRECTORY = ATTACHMENTS + "directory";
+
+    public static final String ATTACHMENTS_SPOOL_THRESHOLD = ATTACHMENTS + "spoolThreshold";
+
+    public static final String ATTACHMENTS_MAX_SIZE = ATTACHMENTS + "maxSize";
+
+    public static final String RATE_LIMIT = PREFIX + "rateLimit.";
+
+    public static final String RATE_LIMIT_ENABLED = RATE_LIMIT + "enabled";
+
+    public static final String RATE_LIMIT_SCOPE = RATE_LIMIT + "scope";
+
+    public static final String RATE_LIMIT_METHODS = RATE_LIMIT + "methods";
+
+    public static final String RATE_LIMIT_PERMITS = RATE_LIMIT + "permits";
+
+    public static final String RATE_LIMIT_PERIOD = RATE_LIMIT + "period";
+
+    public static final String RATE_LIMIT_PERIOD_UNIT = RATE_LIMIT + "periodUnit";
+
+    public static final String RATE_LIMIT_BURST = RATE_LIMIT + "burst";
+
+    public static final String RATE_LIMIT_IDLE_TIME = RATE_LIMIT + "idleTime";
+
+    public static final String RATE_LIMIT_IDLE_TIME_UNIT = RATE_LIMIT + "idleTimeUnit";
+
+    public static final String SUBSCRIPTIONS = PREFIX + "subscriptions.";
+
+    public static final String SUBSCRIPTIONS_ENABLED = SUBSCRIPTIONS + "enabled";
+
+    public static final String SUBSCRIPTIONS_TOPICS = SUBSCRIPTIONS + "topics";
+
+    public static final String SUBSCRIPTIONS_MAX_PER_CONNECTION = SUBSCRIPTIONS + "maxPerConnection";
+
+    public static final String PROBE_THRESHOLD = PREFIX + "probe.threshold";
+
+    public static final String PROBE_THRESHOLD_UNIT = PREFIX + "probe.thresholdUnit";
+
+    public static final String BATCH_CHAINING_ENABLED = BATCH + "chaining.enabled";
+
+    public static final String BATCH_CHAINING_THREADS = BATCH + "chaining.threads";
+
+    public static final String BULK_ENABLED = PREFIX + "bulk.enabled";
+
+    public static final String SHARDS = PREFIX + "shards.";
+
+    public static final String SHARDS_ENABLED = SHARDS + "enabled";
+
+    /**
+     * The number of shard threads, which caps the number of requests executed concurrently.
+     */
+    public static final String SHARDS_COUNT = SHARDS + "count";
+
+    public static final String SHARDS_WAIT_TIME = SHARDS + "waitTime";
+
+    public static final String SHARDS_WAIT_TIME_UNIT = SHARDS + "waitTimeUnit";
+
+    public static final String WARM_UP = PREFIX + "warmUp.";
+
+    public static final String WARM_UP_MAX_ROUNDS = WARM_UP + "maxRounds";
+
+    public static final String WARM_UP_MAX_DURATION = WARM_UP + "maxDuration";
+
+    public static final String WARM_UP_MAX_DURATION_UNIT = WARM_UP + "maxDurationUnit";
+
+    public static final String WARM_UP_TOLERANCE = WARM_UP + "tolerance";
+
+    public static final String CAPTURE = PREFIX + "capture.";
+
+    public static final String CAPTURE_FILE = CAPTURE + "file";
+
+    public static final String CAPTURE_SAMPLE_INTERVAL = CAPTURE + "sampleInterval";
+
+    public static final String CAPTURE_REDACTED_MEMBERS = CAPTURE + "redactedMembers";
+
+    public static final String CAPTURE_QUEUE_CAPACITY = CAPTURE + "queueCapacity";
+
+    public static final String CAPTURE_INTERVAL = CAPTURE + "interval";
+
+    public static final String CAPTURE_INTERVAL_UNIT = CAPTURE + "intervalUnit";
+
+    public static final String FORWARDING = PREFIX + "forwarding.";
+
+    public static final String FORWARDING_NODE = FORWARDING + "node";
+
+    public static final String FORWARDING_METHODS = FORWARDING + "methods";
+
+    public static final String FORWARDING_VIRTUAL_NODES = FORWARDING + "virtualNodes";
+
+    public static final String FORWARDING_THREADS = FORWARDING + "threads";
+
+    public static final String FORWARDING_RETRY_AFTER = FORWARDING + "retryAfter";
+
+    public static final String FORWARDING_RETRY_AFTER_UNIT = FORWARDING + "retryAfterUnit";
+
+    private JsonRpcConfig() {
+
+    }
+
+}
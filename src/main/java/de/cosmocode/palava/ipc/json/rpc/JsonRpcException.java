@@ -0,0 +1,80 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Map;
+
+/**
+ * Signals a Json-RPC error response received by a {@link JsonRpcClient}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class JsonRpcException extends Exception {
+
+    private static final long serialVersionUID = -2659170851386414839L;
+
+    private final int code;
+
+    private final transient Object data;
+
+    public JsonRpcException(int code, String message, Object data) {
+        super(message);
+        this.code = code;
+        this.data = data;
+    }
+
+    /**
+     * Creates an exception from the specified error object.
+     *
+     * @param error the error member of a response
+     * @return a new exception
+     */
+    static JsonRpcException of(Object error) {
+        if (error instanceof Map<?, ?>) {
+            final Map<?, ?> map = Map.class.cast(error);
+            final Object code = map.get(JsonRpc.CODE);
+            final Object message = map.get(JsonRpc.MESSAGE);
+            return new JsonRpcException(
+                code instanceof Number ? Number.class.cast(code).intValue() : 0,
+                message == null ? null : message.toString(),
+                map.get(JsonRpc.DATA));
+        } else {
+            return new JsonRpcException(0, String.valueOf(error), null);
+        }
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Provides the known error code of this exception. Negative codes, as used
+     * by other Json-RPC 2.0 implementations, are matched as well.
+     *
+     * @return the error code or null if the code is unknown
+     */
+    public ErrorCode getErrorCode() {
+        final ErrorCode errorCode = ErrorCode.of(code);
+        return errorCode == null ? ErrorCode.of(-code) : errorCode;
+    }
+
+    public Object getData() {
+        return data;
+    }
+
+}
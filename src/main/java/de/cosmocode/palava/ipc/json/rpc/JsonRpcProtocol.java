@@ -19,11 +19,13 @@ package de.cosmocode.palava.ipc.json.rpc;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.inject.Inject;
 import com.google.inject.internal.Maps;
@@ -42,10 +44,9 @@ import de.cosmocode.palava.ipc.IpcCallDestroyEvent;
 import de.cosmocode.palava.ipc.IpcCallScope;
 import de.cosmocode.palava.ipc.IpcCommandExecutionException;
 import de.cosmocode.palava.ipc.IpcCommandExecutor;
+import de.cosmocode.palava.ipc.IpcCommandNotAvailableException;
 import de.cosmocode.palava.ipc.IpcConnection;
 import de.cosmocode.palava.ipc.IpcConnectionDestroyEvent;
-import de.cosmocode.palava.ipc.IpcSession;
-import de.cosmocode.palava.ipc.IpcSessionProvider;
 import de.cosmocode.palava.ipc.json.Json;
 import de.cosmocode.palava.ipc.protocol.DetachedConnection;
 import de.cosmocode.palava.ipc.protocol.MapProtocol;
@@ -66,8 +67,19 @@ final class JsonRpcProtocol extends MapProtocol implements IpcConnectionDestroyE
     private static final String METHOD_ERROR = String.format("%s must be a string", JsonRpc.METHOD);
     private static final String PARAMS_ERROR = String.format("%s must be an array", JsonRpc.PARAMS);
     
+    private static final Map<String, Object> METHOD_NOT_FOUND_ERROR = ImmutableMap.copyOf(
+        ErrorCode.METHOD_NOT_FOUND.newError(String.format("%s not found", JsonRpc.METHOD)));
+    
+    private static final Map<String, Object> CIRCUIT_OPEN_ERROR = ImmutableMap.copyOf(
+        ErrorCode.CIRCUIT_OPEN.newError(String.format("%s is temporarily unavailable", JsonRpc.METHOD)));
+    
+    private static final Map<String, Object> BULKHEAD_FULL_ERROR = ImmutableMap.copyOf(
+        ErrorCode.BULKHEAD_FULL.newError("too many concurrent calls"));
+    
     private static final ImmutableSet<String> KEYS = ImmutableSet.of(JsonRpc.METHOD, JsonRpc.PARAMS, JsonRpc.ID);
     
+    private static final String VERSION = "1.0";
+    
     private static final UUID IDENTIFIER = UUID.randomUUID();
     private static final String IDENTIFIER_VALUE = "Json-RPC 1.0";
     
@@ -77,38 +89,102 @@ final class JsonRpcProtocol extends MapProtocol implements IpcConnectionDestroyE
     
     private final IpcCallDestroyEvent destroyEvent;
     
-    private final IpcSessionProvider sessionProvider;
+    private final SessionAttachment sessionAttachment;
     
     private final IpcCommandExecutor commandExecutor;
     
     private final IpcCallScope scope;
     
+    private final CircuitBreakers circuitBreakers;
+    
+    private final UnknownMethods unknownMethods;
+    
+    private final MethodSignatures signatures;
+    
+    private final ErrorRendering errors;
+    
+    private final RequestLimits limits;
+    
+    private final RateLimiter rateLimiter;
+    
+    private final Bulkheads bulkheads;
+    
+    private final CallProbes probes;
+    
+    private final ExecutionShards shards;
+    
+    private final WarmUp warmUp;
+    
     @Inject
     public JsonRpcProtocol(Registry registry,
         @Proxy IpcCallCreateEvent createEvent, @SilentProxy IpcCallDestroyEvent destroyEvent, 
-        IpcSessionProvider sessionProvider, IpcCommandExecutor commandExecutor, IpcCallScope scope) {
+        SessionAttachment sessionAttachment, IpcCommandExecutor commandExecutor, IpcCallScope scope,
+        CircuitBreakers circuitBreakers, UnknownMethods unknownMethods,
+        MethodSignatures signatures, ErrorRendering errors, RequestLimits limits, RateLimiter rateLimiter,
+        Bulkheads bulkheads, CallProbes probes, ExecutionShards shards, WarmUp warmUp) {
     
         this.registry = Preconditions.checkNotNull(registry, "Registry");
         this.createEvent = Preconditions.checkNotNull(createEvent, "CreateEvent");
         this.destroyEvent = Preconditions.checkNotNull(destroyEvent, "DestroyEvent");
-        this.sessionProvider = Preconditions.checkNotNull(sessionProvider, "SessionProvider");
+        this.sessionAttachment = Preconditions.checkNotNull(sessionAttachment, "SessionAttachment");
         this.commandExecutor = Preconditions.checkNotNull(commandExecutor, "CommandExecutor");
         this.scope = Preconditions.checkNotNull(scope, "Scope");
+        this.circuitBreakers = Preconditions.checkNotNull(circuitBreakers, "CircuitBreakers");
+        this.unknownMethods = Preconditions.checkNotNull(unknownMethods, "UnknownMethods");
+        this.signatures = Preconditions.checkNotNull(signatures, "Signatures");
+        this.errors = Preconditions.checkNotNull(errors, "Errors");
+        this.limits = Preconditions.checkNotNull(limits, "Limits");
+        this.rateLimiter = Preconditions.checkNotNull(rateLimiter, "RateLimiter");
+        this.bulkheads = Preconditions.checkNotNull(bulkheads, "Bulkheads");
+        this.probes = Preconditions.checkNotNull(probes, "Probes");
+        this.shards = Preconditions.checkNotNull(shards, "Shards");
+        this.warmUp = Preconditions.checkNotNull(warmUp, "WarmUp");
     }
     
     @Override
     public void initialize() throws LifecycleException {
+        if (warmUp.isEnabled()) {
+            runWarmUp();
+        }
         registry.register(Key.get(Protocol.class, Json.class), this);
         registry.register(IpcConnectionDestroyEvent.class, this);
     }
     
+    private void runWarmUp() {
+        final List<Map<String, Object>> requests = warmUp.requestsOf(VERSION);
+        final DetachedConnection connection = WarmUp.newWarmUpConnection();
+        warmUp.run("Json-RPC 1.0", new WarmUp.Round() {
+            
+            @Override
+            public void run() throws ProtocolException {
+                for (Map<String, Object> request : requests) {
+                    invoke(request, connection);
+                }
+            }
+            
+        });
+        eventIpcConnectionDestroy(connection);
+    }
+    
     @Override
     public boolean supports(Map<?, ?> request) {
         return request.size() == KEYS.size() && request.keySet().containsAll(KEYS);
     }
     
     @Override
-    public Object process(Map<?, ?> request, DetachedConnection connection) throws ProtocolException {
+    public Object process(final Map<?, ?> request, final DetachedConnection connection) throws ProtocolException {
+        if (!shards.isEnabled()) return invoke(request, connection);
+        return shards.execute(connection, new Callable<Object>() {
+            
+            @Override
+            public Object call() throws ProtocolException {
+                return invoke(request, connection);
+            }
+            
+        });
+    }
+    
+    private Object invoke(Map<?, ?> request, DetachedConnection connection) throws ProtocolException {
         LOG.trace("Processing json-rpc 1.0 call: {}", request);
         
         final Object untypedMethod = request.get(JsonRpc.METHOD);
@@ -134,36 +210,109 @@ final class JsonRpcProtocol extends MapProtocol implements IpcConnectionDestroyE
         final Object id = request.get(JsonRpc.ID);
         LOG.trace("Call id: {}", id);
         
-        final IpcArguments arguments = new JsonRpcArguments(params);
+        final Map<String, Object> limitError = limits.checkParams(params);
+        
+        if (limitError != null) {
+            return newError(limitError, id);
+        }
+        
+        if (unknownMethods.contains(method)) {
+            LOG.trace("{} is known to be unavailable", method);
+            return newError(METHOD_NOT_FOUND_ERROR, id);
+        }
+        
+        final MethodSignature signature = signatures.of(method);
+        
+        final IpcArguments arguments;
+        
+        if (signature == null) {
+            arguments = new JsonRpcArguments(params);
+        } else {
+            try {
+                arguments = signature.bind(params);
+            } catch (IllegalArgumentException e) {
+                return newError(ErrorCode.INVALID_PARAMS.newError(e.getMessage()), id);
+            }
+        }
 
-        if (!connection.isAttached()) {
-            final IpcSession session = sessionProvider.getSession(connection.getConnectionId(), null);
-            connection.attachTo(session);
+        if (sessionAttachment.attach(connection)) {
             connection.set(IDENTIFIER, IDENTIFIER_VALUE);
         }
         
-        final IpcCall call = new JsonRpcCall(arguments, connection);
+        final Map<String, Object> rateLimitError = rateLimiter.acquire(method, connection);
+        
+        if (rateLimitError != null) {
+            return newError(rateLimitError, id);
+        }
+        
+        final IpcCall call = new JsonRpcCall(arguments, sessionAttachment.connectionOf(method, connection));
+        
+        return execute(id, method, call);
+    }
+    
+    private Object execute(Object id, String method, IpcCall call) {
+        // probed at the same boundary as json-rpc 2.0 calls, early rejections are not reported
+        final long probeStart = probes.isEnabled() ? System.nanoTime() : 0L;
+        final long permit = circuitBreakers.tryAcquire(method, call.getConnection());
+        
+        if (permit == CircuitBreaker.DENIED) {
+            LOG.debug("Circuit breaker of {} is open, failing fast", method);
+            probe(method, ErrorCode.CIRCUIT_OPEN, probeStart);
+            return newError(CIRCUIT_OPEN_ERROR, id);
+        }
+        
+        if (!bulkheads.tryAcquire(method)) {
+            circuitBreakers.release(method, permit, CircuitBreaker.Outcome.IGNORED, 0);
+            probe(method, ErrorCode.BULKHEAD_FULL, probeStart);
+            return newError(BULKHEAD_FULL_ERROR, id);
+        }
         
         createEvent.eventIpcCallCreate(call);
         scope.enter(call);
         
+        final long start = System.nanoTime();
+        CircuitBreaker.Outcome outcome = CircuitBreaker.Outcome.FAILURE;
+        // the legacy error policy renders raw exceptions, so the code can't be derived from the response
+        ErrorCode code = ErrorCode.INTERNAL_ERROR;
+        
         try {
             final Map<String, Object> result = commandExecutor.execute(method, call);
+            outcome = CircuitBreaker.Outcome.SUCCESS;
+            code = null;
+            final StreamedResult stream = StreamedResult.in(result);
             if (id == null) {
                 LOG.trace("Request was notification, returning no result");
+                if (stream != null) stream.close();
                 return Protocol.NO_RESPONSE;
-            } else {
+            } else if (stream == null) {
                 LOG.trace("Returning {}", result);
                 return newResult(result, id);
+            } else {
+                LOG.trace("Returning {}", stream);
+                stream.track(SessionAttachment.unwrap(call.getConnection()));
+                return newResult(stream, id);
             }
+        } catch (IpcCommandNotAvailableException e) {
+            outcome = CircuitBreaker.Outcome.IGNORED;
+            code = ErrorCode.METHOD_NOT_FOUND;
+            unknownMethods.add(method);
+            return newError(ErrorCode.METHOD_NOT_FOUND, e, id);
         } catch (IpcCommandExecutionException e) {
-            return newError(e, id);
+            return newError(ErrorCode.INTERNAL_ERROR, e, id);
         } finally {
+            circuitBreakers.release(method, permit, outcome, System.nanoTime() - start);
             destroyEvent.eventIpcCallDestroy(call);
             scope.exit();
+            bulkheads.release(method);
+            probe(method, code, probeStart);
         }
     }
     
+    private void probe(String method, ErrorCode outcome, long start) {
+        if (!probes.isEnabled()) return;
+        probes.call(VERSION, method, outcome, start);
+    }
+    
     private Map<String, Object> newResult(Object result, Object id) {
         return newHashMap(
             JsonRpc.RESULT, result,
@@ -172,10 +321,14 @@ final class JsonRpcProtocol extends MapProtocol implements IpcConnectionDestroyE
         );
     }
     
-    private Map<String, Object> newError(Throwable t, Object id) {
+    private Map<String, Object> newError(ErrorCode code, Throwable t, Object id) {
+        return newError(errors.isRaw() ? t : errors.newError(code, t), id);
+    }
+    
+    private Map<String, Object> newError(Object error, Object id) {
         return newHashMap(
             JsonRpc.RESULT, null,
-            JsonRpc.ERROR, t,
+            JsonRpc.ERROR, error,
             JsonRpc.ID, id
         );
     }
@@ -190,16 +343,17 @@ final class JsonRpcProtocol extends MapProtocol implements IpcConnectionDestroyE
     
     @Override
     public Object onError(Throwable t, Map<?, ?> request) {
-        return newError(t, request.get(JsonRpc.ID));
+        return newError(ErrorCode.INTERNAL_ERROR, t, request.get(JsonRpc.ID));
     }
     
     @Override
     public void eventIpcConnectionDestroy(IpcConnection connection) {
+        StreamedResult.closeAll(connection);
         final String identifier = connection.get(IDENTIFIER);
         if (identifier == null) return;
         // is the given connection one of ours?
         if (identifier.equals(IDENTIFIER_VALUE)) {
-            connection.getSession().clear();
+            sessionAttachment.clear(connection);
         }
     }
     
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries Json-RPC 2.0 batches of a {@link JsonRpcClient} to a server, e.g. over
+ * a persistent http connection. Transports encode requests and decode responses
+ * themselves and may be called by several threads at once, so independent
+ * batches can be pipelined.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface JsonRpcTransport {
+
+    /**
+     * Sends the specified batch and waits for the server's answer.
+     *
+     * @param batch the batch requests
+     * @return the decoded response, usually a list of response objects, a single
+     *         error object if the batch was rejected as a whole or null if the
+     *         batch consisted of notifications only
+     * @throws java.net.ConnectException if the batch has not been sent at all, e.g.
+     *         because no connection could be established, so it is safe to send it
+     *         elsewhere
+     * @throws IOException if sending or receiving fails, the server may have
+     *         executed the batch
+     */
+    Object send(List<Map<String, Object>> batch) throws IOException;
+
+}
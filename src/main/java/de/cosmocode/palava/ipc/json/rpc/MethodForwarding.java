@@ -0,0 +1,523 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.net.ConnectException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.protocol.Protocol;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Routes Json-RPC 2.0 calls to peer nodes by method name, so every node only
+ * has to keep the caches of its share of the commands warm. Methods are placed
+ * on a consistent hash ring of this node and all peers, adding or removing a
+ * node only moves the methods next to it. Batches are split per node, remote
+ * sub-batches are sent in parallel while the local share executes on the
+ * caller's thread, and the responses are reassembled in request order.
+ * <p>
+ * Every node is able to execute every command. A peer which fails is skipped
+ * for {@link JsonRpcConfig#FORWARDING_RETRY_AFTER}. If the calls never reached it,
+ * see {@link JsonRpcTransport#send(List)}, they move on to the next node on the
+ * ring, ultimately this one. Otherwise they may have been executed already and
+ * fail with an internal error instead. Forwarded calls carry the
+ * {@link JsonRpc#FORWARDED} member and are never forwarded again. Peers are bound
+ * as a map of node names to {@link JsonRpcTransport}s, see {@link PooledTransport}
+ * for connection pooling. Disabled unless {@link JsonRpcConfig#FORWARDING_NODE}
+ * and {@link JsonRpcConfig#FORWARDING_METHODS} are configured and at least one
+ * peer is bound, only matching methods are forwarded.
+ * </p>
+ * <p>
+ * Peers execute forwarded calls on a pooled connection shared by all callers of
+ * this node, so only session-free methods are forwarded: forwarding refuses to
+ * start unless {@link JsonRpcConfig#SESSION_STATELESS_METHODS} is configured and
+ * methods not matching it always stay on this node. Forwarded calls carry the
+ * caller's rate limit identity, see {@link RateLimiter#identityOf(IpcConnection)},
+ * as their {@link JsonRpc#FORWARDED} member and the peer charges them to it.
+ * All nodes must therefore share the same session store and rate limit
+ * configuration. Peers trust the member, clients able to reach a node directly
+ * can send it to pick the quota they are charged to.
+ * </p>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class MethodForwarding implements MethodForwardingMBean, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodForwarding.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=MethodForwarding";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Map<String, Object> PEER_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INTERNAL_ERROR.newError("peer returned no response"));
+
+    private static final Map<String, Object> PEER_FAILED_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INTERNAL_ERROR.newError("peer failed, the call may have been executed"));
+
+    private final MBeanServer mBeanServer;
+
+    private final SessionAttachment sessionAttachment;
+
+    private final RateLimiter rateLimiter;
+
+    private String node;
+
+    private Map<String, JsonRpcTransport> transports = ImmutableMap.of();
+
+    private Pattern methods;
+
+    private int virtualNodes = 128;
+
+    private int threads = 4;
+
+    private long retryAfter = 10;
+
+    private TimeUnit retryAfterUnit = TimeUnit.SECONDS;
+
+    private final Map<String, Peer> peers = Maps.newHashMap();
+
+    private final NavigableMap<Long, String> ring = Maps.newTreeMap();
+
+    private ExecutorService executor;
+
+    private final AtomicLong forwardedCalls = new AtomicLong();
+
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * Executes calls which stay on this node.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    interface Local {
+
+        /**
+         * Executes the specified calls.
+         *
+         * @param calls the calls
+         * @return one response per call, in the same order
+         * @throws ProtocolException if execution fails
+         */
+        List<?> execute(List<?> calls) throws ProtocolException;
+
+    }
+
+    @Inject
+    public MethodForwarding(MBeanServer mBeanServer, SessionAttachment sessionAttachment, RateLimiter rateLimiter) {
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+        this.sessionAttachment = Preconditions.checkNotNull(sessionAttachment, "SessionAttachment");
+        this.rateLimiter = Preconditions.checkNotNull(rateLimiter, "RateLimiter");
+    }
+
+    @Inject(optional = true)
+    void setNode(@Named(JsonRpcConfig.FORWARDING_NODE) String node) {
+        this.node = Preconditions.checkNotNull(node, "Node");
+    }
+
+    @Inject(optional = true)
+    void setPeers(Map<String, JsonRpcTransport> peers) {
+        this.transports = ImmutableMap.copyOf(peers);
+    }
+
+    @Inject(optional = true)
+    void setMethods(@Named(JsonRpcConfig.FORWARDING_METHODS) String methods) {
+        this.methods = Pattern.compile(methods);
+    }
+
+    @Inject(optional = true)
+    void setVirtualNodes(@Named(JsonRpcConfig.FORWARDING_VIRTUAL_NODES) int virtualNodes) {
+        Preconditions.checkArgument(virtualNodes > 0, "VirtualNodes must be positive");
+        this.virtualNodes = virtualNodes;
+    }
+
+    @Inject(optional = true)
+    void setThreads(@Named(JsonRpcConfig.FORWARDING_THREADS) int threads) {
+        Preconditions.checkArgument(threads > 0, "Threads must be positive");
+        this.threads = threads;
+    }
+
+    @Inject(optional = true)
+    void setRetryAfter(@Named(JsonRpcConfig.FORWARDING_RETRY_AFTER) long retryAfter) {
+        Preconditions.checkArgument(retryAfter >= 0, "RetryAfter must not be negative");
+        this.retryAfter = retryAfter;
+    }
+
+    @Inject(optional = true)
+    void setRetryAfterUnit(@Named(JsonRpcConfig.FORWARDING_RETRY_AFTER_UNIT) TimeUnit retryAfterUnit) {
+        this.retryAfterUnit = Preconditions.checkNotNull(retryAfterUnit, "RetryAfterUnit");
+    }
+
+    boolean isEnabled() {
+        return executor != null;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (node == null || methods == null || transports.isEmpty()) return;
+        Preconditions.checkState(!transports.containsKey(node), "%s must not be its own peer", node);
+        Preconditions.checkState(sessionAttachment.hasStatelessMethods(),
+            "Forwarding requires %s, peers must not share sessions of different callers",
+            JsonRpcConfig.SESSION_STATELESS_METHODS);
+        place(node);
+        for (Map.Entry<String, JsonRpcTransport> entry : transports.entrySet()) {
+            peers.put(entry.getKey(), new Peer(entry.getValue()));
+            place(entry.getKey());
+        }
+        executor = Executors.newFixedThreadPool(threads);
+        try {
+            mBeanServer.registerMBean(new StandardMBean(this, MethodForwardingMBean.class),
+                ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+        LOG.info("Node {} forwards calls to {}", node, peers.keySet());
+    }
+
+    private void place(String name) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(name + "#" + i), name);
+        }
+    }
+
+    private static long hash(String key) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] bytes = digest.digest(key.getBytes(UTF_8));
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | bytes[i] & 0xFF;
+        }
+        return value;
+    }
+
+    /**
+     * Finds the node the specified call should be executed on.
+     *
+     * @param call the call
+     * @return the name of the peer or null if the call stays on this node
+     */
+    String route(Object call) {
+        return route(call, Collections.<String>emptySet());
+    }
+
+    private String route(Object call, Set<String> failed) {
+        if (!(call instanceof Map<?, ?>)) return null;
+        final Map<?, ?> map = Map.class.cast(call);
+        if (map.containsKey(JsonRpc.FORWARDED)) return null;
+        // malformed calls are rejected locally, positional ids would hide invalid ones
+        if (!JsonRpc2Protocol.isValidId(map.get(JsonRpc.ID))) return null;
+        final Object untypedMethod = map.get(JsonRpc.METHOD);
+        if (!(untypedMethod instanceof String)) return null;
+        final String method = String.class.cast(untypedMethod);
+        if (methods == null || !methods.matcher(method).matches()) return null;
+        if (!sessionAttachment.isStateless(method)) return null;
+
+        final Long position = hash(method);
+        for (String candidate : Iterables.concat(ring.tailMap(position).values(), ring.headMap(position).values())) {
+            if (candidate.equals(node)) return null;
+            if (!failed.contains(candidate) && peers.get(candidate).isAvailable()) return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * Executes the specified calls on their nodes.
+     *
+     * @param calls the calls
+     * @param connection the caller's connection, attached to its session
+     * @param local executes calls which stay on this node
+     * @return one response per call, in the same order
+     * @throws ProtocolException if local execution fails
+     */
+    List<?> forward(List<?> calls, IpcConnection connection, Local local) throws ProtocolException {
+        final Object[] responses = new Object[calls.size()];
+        final Set<String> failed = Sets.newHashSet();
+        // resolved once some calls actually leave this node
+        Object identity = null;
+        List<Integer> pending = Lists.newArrayListWithCapacity(calls.size());
+        for (int index = 0; index < calls.size(); index++) {
+            pending.add(index);
+        }
+
+        while (!pending.isEmpty()) {
+            final List<Integer> locals = Lists.newArrayList();
+            final Map<String, List<Integer>> remotes = Maps.newLinkedHashMap();
+            for (Integer index : pending) {
+                final String target = route(calls.get(index), failed);
+                if (target == null) {
+                    locals.add(index);
+                } else {
+                    List<Integer> indices = remotes.get(target);
+                    if (indices == null) {
+                        indices = Lists.newArrayList();
+                        remotes.put(target, indices);
+                    }
+                    indices.add(index);
+                }
+            }
+
+            if (locals.size() == calls.size()) {
+                return local.execute(calls);
+            }
+
+            if (identity == null) {
+                final String key = rateLimiter.identityOf(connection);
+                identity = key == null ? Boolean.TRUE : key;
+            }
+
+            final Map<String, Future<Object>> futures = Maps.newLinkedHashMap();
+            for (Map.Entry<String, List<Integer>> entry : remotes.entrySet()) {
+                LOG.trace("Forwarding {} calls to {}", entry.getValue().size(), entry.getKey());
+                futures.put(entry.getKey(), executor.submit(send(entry.getKey(), calls, entry.getValue(), identity)));
+            }
+
+            if (!locals.isEmpty()) {
+                final List<Object> selected = Lists.newArrayListWithCapacity(locals.size());
+                for (Integer index : locals) {
+                    selected.add(calls.get(index));
+                }
+                final List<?> results = local.execute(selected);
+                for (int i = 0; i < locals.size(); i++) {
+                    responses[locals.get(i)] = results.get(i);
+                }
+            }
+
+            pending = Lists.newArrayList();
+            for (Map.Entry<String, Future<Object>> entry : futures.entrySet()) {
+                final List<Integer> indices = remotes.get(entry.getKey());
+                try {
+                    assemble(calls, indices, getUninterruptibly(entry.getValue()), responses);
+                    forwardedCalls.addAndGet(indices.size());
+                } catch (ExecutionException e) {
+                    peers.get(entry.getKey()).fail(retryAfterUnit.toNanos(retryAfter));
+                    if (e.getCause() instanceof ConnectException) {
+                        LOG.warn("Peer {} is unreachable, rerouting {} calls: {}", new Object[] {
+                            entry.getKey(), indices.size(), e.getCause()
+                        });
+                        failed.add(entry.getKey());
+                        failovers.incrementAndGet();
+                        pending.addAll(indices);
+                    } else {
+                        // the peer may have executed them, running them again could duplicate side effects
+                        LOG.warn("Peer {} failed, failing {} calls: {}", new Object[] {
+                            entry.getKey(), indices.size(), e.getCause()
+                        });
+                        for (Integer index : indices) {
+                            final Object id = idOf(calls.get(index));
+                            responses[index] = id == null ? Protocol.NO_RESPONSE :
+                                ErrorCode.INTERNAL_ERROR.newResponse(id, PEER_FAILED_ERROR);
+                        }
+                    }
+                }
+            }
+        }
+
+        return Arrays.asList(responses);
+    }
+
+    private Callable<Object> send(String name, List<?> calls, List<Integer> indices, Object identity) {
+        final JsonRpcTransport transport = peers.get(name).transport;
+        final List<Map<String, Object>> batch = Lists.newArrayListWithCapacity(indices.size());
+        for (int i = 0; i < indices.size(); i++) {
+            final Map<?, ?> call = Map.class.cast(calls.get(indices.get(i)));
+            final Map<String, Object> copy = Maps.newLinkedHashMap();
+            for (Map.Entry<?, ?> entry : call.entrySet()) {
+                copy.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            // positions are unique even if the client's ids are not
+            if (call.get(JsonRpc.ID) != null) {
+                copy.put(JsonRpc.ID, i);
+            }
+            copy.put(JsonRpc.FORWARDED, identity);
+            batch.add(copy);
+        }
+        return new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                return transport.send(batch);
+            }
+
+        };
+    }
+
+    private void assemble(List<?> calls, List<Integer> indices, Object response, Object[] responses) {
+        if (response instanceof List<?>) {
+            for (Object element : List.class.cast(response)) {
+                if (!(element instanceof Map<?, ?>)) continue;
+                final Object position = Map.class.cast(element).get(JsonRpc.ID);
+                if (!(position instanceof Number)) continue;
+                final int i = Number.class.cast(position).intValue();
+                if (i < 0 || i >= indices.size()) continue;
+                final int index = indices.get(i);
+                responses[index] = withId(element, idOf(calls.get(index)));
+            }
+        }
+
+        for (Integer index : indices) {
+            if (responses[index] != null) continue;
+            final Object id = idOf(calls.get(index));
+            if (id == null) {
+                responses[index] = Protocol.NO_RESPONSE;
+            } else if (response instanceof Map<?, ?>) {
+                // the peer rejected the batch as a whole
+                responses[index] = withId(response, id);
+            } else {
+                responses[index] = ErrorCode.INTERNAL_ERROR.newResponse(id, PEER_ERROR);
+            }
+        }
+    }
+
+    private static Object idOf(Object call) {
+        return Map.class.cast(call).get(JsonRpc.ID);
+    }
+
+    private static Object withId(Object response, Object id) {
+        final Map<?, ?> original = Map.class.cast(response);
+        final Map<Object, Object> copy = Maps.newHashMap();
+        copy.putAll(original);
+        copy.put(JsonRpc.ID, id);
+        return copy;
+    }
+
+    private static Object getUninterruptibly(Future<Object> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String getNode() {
+        return node;
+    }
+
+    @Override
+    public long getForwardedCalls() {
+        return forwardedCalls.get();
+    }
+
+    @Override
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    @Override
+    public String[] getUnavailablePeers() {
+        final List<String> unavailable = Lists.newArrayList();
+        for (Map.Entry<String, Peer> entry : peers.entrySet()) {
+            if (!entry.getValue().isAvailable()) {
+                unavailable.add(entry.getKey());
+            }
+        }
+        return unavailable.toArray(new String[unavailable.size()]);
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            mBeanServer.unregisterMBean(ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * A peer node and its health.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class Peer {
+
+        private final JsonRpcTransport transport;
+
+        private volatile long availableAt = System.nanoTime();
+
+        Peer(JsonRpcTransport transport) {
+            this.transport = Preconditions.checkNotNull(transport, "Transport");
+        }
+
+        boolean isAvailable() {
+            return System.nanoTime() - availableAt >= 0;
+        }
+
+        void fail(long retryAfterNanos) {
+            availableAt = System.nanoTime() + retryAfterNanos;
+        }
+
+    }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of the method-sharded Json-RPC 2.0 forwarding.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface MethodForwardingMBean {
+
+    /**
+     * Provides the name of this node.
+     *
+     * @return the node name
+     */
+    String getNode();
+
+    /**
+     * Provides the number of calls forwarded to peers so far.
+     *
+     * @return the forwarded calls
+     */
+    long getForwardedCalls();
+
+    /**
+     * Provides the number of times a failed peer's calls were rerouted.
+     *
+     * @return the failovers
+     */
+    long getFailovers();
+
+    /**
+     * Provides the names of all peers which are currently considered down.
+     *
+     * @return the unavailable peers
+     */
+    String[] getUnavailablePeers();
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.ipc.IpcArguments;
+import de.cosmocode.palava.ipc.MapIpcArguments;
+
+/**
+ * Describes the parameters of a single Json-RPC method. Signatures are bound
+ * as a {@code Set<MethodSignature>} and allow the protocols to bind positional
+ * and named params to the same named layout and to reject malformed calls with
+ * {@link ErrorCode#INVALID_PARAMS} before the command is executed.
+ *
+ * <pre>
+ * MethodSignature.of("com.example.Search").
+ *     required("query", String.class).
+ *     optional("limit", Number.class);
+ * </pre>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class MethodSignature {
+
+    private final String method;
+
+    private final ImmutableList<Parameter> parameters;
+
+    private final ImmutableMap<String, Parameter> index;
+
+    private MethodSignature(String method, ImmutableList<Parameter> parameters) {
+        this.method = method;
+        this.parameters = parameters;
+        final ImmutableMap.Builder<String, Parameter> builder = ImmutableMap.builder();
+        for (Parameter parameter : parameters) {
+            builder.put(parameter.name, parameter);
+        }
+        this.index = builder.build();
+    }
+
+    /**
+     * Creates a new signature without any parameters for the specified method.
+     *
+     * @param method the method name
+     * @return a new signature
+     * @throws NullPointerException if method is null
+     */
+    public static MethodSignature of(String method) {
+        return new MethodSignature(Preconditions.checkNotNull(method, "Method"), ImmutableList.<Parameter>of());
+    }
+
+    /**
+     * Creates a copy of this signature with an additional required parameter.
+     *
+     * @param name the parameter name
+     * @param type the expected type of the parameter's value
+     * @return a new signature
+     * @throws NullPointerException if name or type is null
+     * @throws IllegalArgumentException if a parameter with the same name already exists
+     */
+    public MethodSignature required(String name, Class<?> type) {
+        return with(new Parameter(name, type, true));
+    }
+
+    /**
+     * Creates a copy of this signature with an additional optional parameter.
+     *
+     * @param name the parameter name
+     * @param type the expected type of the parameter's value
+     * @return a new signature
+     * @throws NullPointerException if name or type is null
+     * @throws IllegalArgumentException if a parameter with the same name already exists
+     */
+    public MethodSignature optional(String name, Class<?> type) {
+        return with(new Parameter(name, type, false));
+    }
+
+    private MethodSignature with(Parameter parameter) {
+        Preconditions.checkArgument(!index.containsKey(parameter.name), "Duplicate parameter %s", parameter.name);
+        return new MethodSignature(method, ImmutableList.<Parameter>builder().
+            addAll(parameters).add(parameter).build());
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Binds the specified params to this signature.
+     *
+     * @param params the raw params, either a list, a map or null if params were omitted
+     * @return named arguments in declaration order
+     * @throws IllegalArgumentException if params don't match this signature
+     */
+    IpcArguments bind(Object params) {
+        final Map<String, Object> arguments = Maps.newLinkedHashMap();
+
+        if (params instanceof List<?>) {
+            final List<?> list = List.class.cast(params);
+            if (list.size() > parameters.size()) {
+                throw new IllegalArgumentException(String.format(
+                    "%s takes at most %s params, got %s", method, parameters.size(), list.size()));
+            }
+            int position = 0;
+            for (Object value : list) {
+                final Parameter parameter = parameters.get(position++);
+                arguments.put(parameter.name, parameter.check(value));
+            }
+        } else if (params instanceof Map<?, ?>) {
+            final Map<?, ?> map = Map.class.cast(params);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                final Parameter parameter = index.get(entry.getKey());
+                if (parameter == null) {
+                    throw new IllegalArgumentException(String.format("unknown param %s", entry.getKey()));
+                }
+                arguments.put(parameter.name, parameter.check(entry.getValue()));
+            }
+        } else if (params != null) {
+            throw new IllegalArgumentException("params must be either an array or an object");
+        }
+
+        if (arguments.size() < parameters.size()) {
+            for (Parameter parameter : parameters) {
+                if (parameter.required && !arguments.containsKey(parameter.name)) {
+                    throw new IllegalArgumentException(String.format("missing param %s", parameter.name));
+                }
+            }
+        }
+
+        return new MapIpcArguments(arguments);
+    }
+
+    @Override
+    public String toString() {
+        return method + parameters;
+    }
+
+    /**
+     * A single declared parameter.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class Parameter {
+
+        private final String name;
+
+        private final Class<?> type;
+
+        private final boolean required;
+
+        public Parameter(String name, Class<?> type, boolean required) {
+            this.name = Preconditions.checkNotNull(name, "Name");
+            this.type = Preconditions.checkNotNull(type, "Type");
+            this.required = required;
+        }
+
+        private Object check(Object value) {
+            if (value == null) {
+                if (required) {
+                    throw new IllegalArgumentException(String.format("%s must not be null", name));
+                }
+            } else if (!type.isInstance(value)) {
+                throw new IllegalArgumentException(String.format(
+                    "%s must be of type %s", name, type.getSimpleName()));
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return (required ? "" : "[") + name + ":" + type.getSimpleName() + (required ? "" : "]");
+        }
+
+    }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Index of all bound {@link MethodSignature}s, built once at startup.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class MethodSignatures {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MethodSignatures.class);
+
+    private Map<String, MethodSignature> signatures = ImmutableMap.of();
+
+    @Inject(optional = true)
+    void setSignatures(Set<MethodSignature> signatures) {
+        Preconditions.checkNotNull(signatures, "Signatures");
+        final ImmutableMap.Builder<String, MethodSignature> builder = ImmutableMap.builder();
+        for (MethodSignature signature : signatures) {
+            LOG.debug("Registering signature {}", signature);
+            builder.put(signature.getMethod(), signature);
+        }
+        this.signatures = builder.build();
+    }
+
+    /**
+     * Provides the signature of the specified method.
+     *
+     * @param method the method name
+     * @return the signature or null if none has been declared
+     */
+    MethodSignature of(String method) {
+        return signatures.get(method);
+    }
+
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link JsonRpcTransport} which keeps a bounded pool of idle connections to
+ * a single server. Each send borrows a connection, or opens a new one if none
+ * is idle. Connections which failed are closed instead of being returned.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class PooledTransport implements JsonRpcTransport, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledTransport.class);
+
+    private final Factory factory;
+
+    private final BlockingQueue<JsonRpcTransport> idle;
+
+    private volatile boolean closed;
+
+    /**
+     * Opens single connections to a server.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    public interface Factory {
+
+        /**
+         * Opens a new connection. Connections implementing {@link Closeable}
+         * are closed once they are discarded.
+         *
+         * @return a transport which is used by one thread at a time
+         * @throws IOException if connecting fails
+         */
+        JsonRpcTransport open() throws IOException;
+
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param factory the connection factory
+     * @param maxIdle the maximum number of idle connections kept open
+     * @throws NullPointerException if factory is null
+     * @throws IllegalArgumentException if maxIdle is not positive
+     */
+    public PooledTransport(Factory factory, int maxIdle) {
+        this.factory = Preconditions.checkNotNull(factory, "Factory");
+        Preconditions.checkArgument(maxIdle > 0, "MaxIdle must be positive");
+        this.idle = new LinkedBlockingQueue<JsonRpcTransport>(maxIdle);
+    }
+
+    @Override
+    public Object send(List<Map<String, Object>> batch) throws IOException {
+        Preconditions.checkState(!closed, "Transport has been closed");
+        final JsonRpcTransport borrowed = idle.poll();
+        final JsonRpcTransport connection = borrowed == null ? open() : borrowed;
+        boolean success = false;
+        try {
+            final Object response = connection.send(batch);
+            success = true;
+            return response;
+        } finally {
+            if (success && !closed && idle.offer(connection)) {
+                // a concurrent close may have missed the returned connection
+                if (closed) close();
+            } else {
+                close(connection);
+            }
+        }
+    }
+
+    private JsonRpcTransport open() throws IOException {
+        try {
+            return factory.open();
+        } catch (ConnectException e) {
+            throw e;
+        } catch (IOException e) {
+            // nothing has been sent yet, callers may safely try elsewhere
+            final ConnectException exception = new ConnectException(e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /**
+     * Provides the number of connections which are currently idle.
+     *
+     * @return the idle connections
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+
+    private void close(JsonRpcTransport connection) {
+        if (!(connection instanceof Closeable)) return;
+        try {
+            Closeable.class.cast(connection).close();
+        } catch (IOException e) {
+            LOG.debug("Unable to close {}: {}", connection, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        JsonRpcTransport connection;
+        while ((connection = idle.poll()) != null) {
+            close(connection);
+        }
+    }
+
+}
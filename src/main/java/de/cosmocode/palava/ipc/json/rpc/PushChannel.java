@@ -0,0 +1,43 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.IOException;
+import java.util.Map;
+
+import de.cosmocode.palava.ipc.IpcConnection;
+
+/**
+ * Writes server initiated Json-RPC notifications to a connection. Connectors
+ * supporting push bind an implementation to enable subscriptions.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface PushChannel {
+
+    /**
+     * Writes the specified notification to the specified connection.
+     *
+     * @param connection the receiving connection
+     * @param notification the notification, ready to be encoded
+     * @throws IOException if the notification could not be written, which
+     *         cancels the subscription the notification belongs to
+     */
+    void push(IpcConnection connection, Map<String, Object> notification) throws IOException;
+
+}
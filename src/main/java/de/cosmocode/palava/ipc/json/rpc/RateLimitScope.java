@@ -0,0 +1,38 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * Defines who shares a rate limit quota.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public enum RateLimitScope {
+
+    /**
+     * All calls of one connection share a quota.
+     */
+    CONNECTION,
+
+    /**
+     * All calls of one session share a quota, regardless of the connection.
+     * Resolves the session of every limited call.
+     */
+    SESSION;
+
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.concurrent.BackgroundScheduler;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.IpcSession;
+
+/**
+ * Throttles calls per connection or session using the generic cell rate algorithm,
+ * a token bucket variant whose whole state is a single theoretical arrival time.
+ * Buckets are updated lock-free and buckets which refilled completely and stayed
+ * idle for {@link JsonRpcConfig#RATE_LIMIT_IDLE_TIME} are evicted by the background
+ * scheduler. Every call counts, including each element of a batch.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class RateLimiter implements RateLimiterMBean, Runnable, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RateLimiter.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=RateLimiter";
+
+    private static final String RETRY_AFTER = "retryAfter";
+
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final MBeanServer mBeanServer;
+
+    private boolean enabled;
+
+    private RateLimitScope scope = RateLimitScope.CONNECTION;
+
+    private Pattern methods;
+
+    private int permits = 100;
+
+    private long period = 1;
+
+    private TimeUnit periodUnit = TimeUnit.SECONDS;
+
+    private int burst;
+
+    private long idleTime = 5;
+
+    private TimeUnit idleTimeUnit = TimeUnit.MINUTES;
+
+    private long interval;
+
+    private long tolerance;
+
+    private ScheduledFuture<?> future;
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    @Inject
+    public RateLimiter(@BackgroundScheduler ScheduledExecutorService scheduler, MBeanServer mBeanServer) {
+        this.scheduler = Preconditions.checkNotNull(scheduler, "Scheduler");
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+    }
+
+    @Inject(optional = true)
+    void setEnabled(@Named(JsonRpcConfig.RATE_LIMIT_ENABLED) boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject(optional = true)
+    void setScope(@Named(JsonRpcConfig.RATE_LIMIT_SCOPE) RateLimitScope scope) {
+        this.scope = Preconditions.checkNotNull(scope, "Scope");
+    }
+
+    @Inject(optional = true)
+    void setMethods(@Named(JsonRpcConfig.RATE_LIMIT_METHODS) String methods) {
+        this.methods = Pattern.compile(methods);
+    }
+
+    @Inject(optional = true)
+    void setPermits(@Named(JsonRpcConfig.RATE_LIMIT_PERMITS) int permits) {
+        Preconditions.checkArgument(permits > 0, "Permits must be positive");
+        this.permits = permits;
+    }
+
+    @Inject(optional = true)
+    void setPeriod(@Named(JsonRpcConfig.RATE_LIMIT_PERIOD) long period) {
+        Preconditions.checkArgument(period > 0, "Period must be positive");
+        this.period = period;
+    }
+
+    @Inject(optional = true)
+    void setPeriodUnit(@Named(JsonRpcConfig.RATE_LIMIT_PERIOD_UNIT) TimeUnit periodUnit) {
+        this.periodUnit = Preconditions.checkNotNull(periodUnit, "PeriodUnit");
+    }
+
+    @Inject(optional = true)
+    void setBurst(@Named(JsonRpcConfig.RATE_LIMIT_BURST) int burst) {
+        Preconditions.checkArgument(burst > 0, "Burst must be positive");
+        this.burst = burst;
+    }
+
+    @Inject(optional = true)
+    void setIdleTime(@Named(JsonRpcConfig.RATE_LIMIT_IDLE_TIME) long idleTime) {
+        Preconditions.checkArgument(idleTime > 0, "IdleTime must be positive");
+        this.idleTime = idleTime;
+    }
+
+    @Inject(optional = true)
+    void setIdleTimeUnit(@Named(JsonRpcConfig.RATE_LIMIT_IDLE_TIME_UNIT) TimeUnit idleTimeUnit) {
+        this.idleTimeUnit = Preconditions.checkNotNull(idleTimeUnit, "IdleTimeUnit");
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (!enabled) return;
+        interval = Math.max(1, periodUnit.toNanos(period) / permits);
+        // burst defaults to the number of permits per period
+        tolerance = interval * (burst == 0 ? permits : burst);
+        future = scheduler.scheduleWithFixedDelay(this, idleTime, idleTime, idleTimeUnit);
+        try {
+            mBeanServer.registerMBean(new StandardMBean(this, RateLimiterMBean.class),
+                ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * Takes a permit for the specified call.
+     *
+     * @param method the requested method
+     * @param connection the caller's connection
+     * @return an error object containing a retry-after hint if the call has to be rejected,
+     *         null otherwise
+     */
+    Map<String, Object> acquire(String method, IpcConnection connection) {
+        return acquire(method, connection, 1);
+    }
+
+    /**
+     * Takes the specified number of permits for the specified call at once.
+     * Either all permits are granted or none. More permits than the burst are
+     * never granted, the error object carries no retry-after hint then.
+     *
+     * @param method the requested method
+     * @param connection the caller's connection
+     * @param permits the number of permits, e.g. the number of bulk elements
+     * @return an error object containing a retry-after hint if the call has to be rejected,
+     *         null otherwise
+     */
+    Map<String, Object> acquire(String method, IpcConnection connection, int permits) {
+        return acquire(method, connection, null, permits);
+    }
+
+    /**
+     * Takes the specified number of permits for the specified call at once, see
+     * {@link #acquire(String, IpcConnection, int)}. Calls forwarded by a peer are
+     * charged to the caller's identity they carry instead of the connection they
+     * arrived on, which is shared by all callers of that peer.
+     *
+     * @param method the requested method
+     * @param connection the caller's connection
+     * @param forwarded the {@link JsonRpc#FORWARDED} member of the call, null if absent
+     * @param permits the number of permits, e.g. the number of bulk elements
+     * @return an error object containing a retry-after hint if the call has to be rejected,
+     *         null otherwise
+     */
+    Map<String, Object> acquire(String method, IpcConnection connection, Object forwarded, int permits) {
+        if (!enabled) return null;
+        if (methods != null && !methods.matcher(method).matches()) return null;
+        if (WarmUp.isWarmUp(connection)) return null;
+
+        final String key = forwarded instanceof String ? String.class.cast(forwarded) : keyOf(connection);
+        if (key == null) return null;
+
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            final AtomicLong created = new AtomicLong(System.nanoTime());
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) bucket = created;
+        }
+
+        // anything larger than the burst would never fit, retrying can't help
+        if (permits > tolerance / interval) {
+            throttled.incrementAndGet();
+            LOG.trace("Rejecting {} permits for {} of {}", new Object[] {permits, method, key});
+            return ErrorCode.RATE_LIMITED.newError(String.format("%s calls exceed the burst of %s",
+                permits, tolerance / interval));
+        }
+
+        final long cost = interval * permits;
+
+        while (true) {
+            final long now = System.nanoTime();
+            final long arrival = bucket.get();
+            final long next = (arrival - now < 0 ? now : arrival) + cost;
+            final long excess = next - now - tolerance;
+            if (excess > 0) {
+                throttled.incrementAndGet();
+                LOG.trace("Throttling {} of {}", method, key);
+                final long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toMillis(excess));
+                return ErrorCode.RATE_LIMITED.newError("rate limit exceeded",
+                    ImmutableMap.of(RETRY_AFTER, retryAfter));
+            } else if (bucket.compareAndSet(arrival, next)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Provides the identity calls of the specified connection are charged to, so
+     * peers executing them on behalf of this node can charge the same quota.
+     *
+     * @param connection the caller's connection
+     * @return the identity or null if calls are not limited or have no identity
+     */
+    String identityOf(IpcConnection connection) {
+        return enabled ? keyOf(connection) : null;
+    }
+
+    private String keyOf(IpcConnection connection) {
+        switch (scope) {
+            case CONNECTION: {
+                return connection.getConnectionId();
+            }
+            case SESSION: {
+                final IpcSession session = connection.getSession();
+                return session == null ? null : session.getSessionId();
+            }
+            default: {
+                throw new AssertionError("Unknown scope " + scope);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        final long threshold = System.nanoTime() - idleTimeUnit.toNanos(idleTime);
+        final Iterator<Map.Entry<String, AtomicLong>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, AtomicLong> entry = iterator.next();
+            final long arrival = entry.getValue().get();
+            // a bucket refilled completely once its arrival time lies in the past,
+            // so losing a concurrent update to an evicted bucket costs at most one permit
+            if (arrival - threshold < 0 && buckets.remove(entry.getKey(), entry.getValue())) {
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int getBuckets() {
+        return buckets.size();
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    @Override
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (!enabled) return;
+        future.cancel(false);
+        buckets.clear();
+        try {
+            mBeanServer.unregisterMBean(ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of the Json-RPC rate limiter.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface RateLimiterMBean {
+
+    /**
+     * Provides the number of buckets currently held in memory.
+     *
+     * @return the number of buckets
+     */
+    int getBuckets();
+
+    /**
+     * Provides the number of calls rejected because their quota was exhausted.
+     *
+     * @return the number of throttled calls
+     */
+    long getThrottled();
+
+    /**
+     * Provides the number of idle buckets evicted so far.
+     *
+     * @return the number of evicted buckets
+     */
+    long getEvicted();
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Enforces configurable limits on batch length, params size and params nesting
+ * depth. Params are walked at most once and the walk stops as soon as a limit
+ * is exceeded. Unconfigured limits cost nothing.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class RequestLimits implements RequestLimitsMBean, Initializable, Disposable {
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=RequestLimits";
+
+    private static final Map<String, Object> BATCH_SIZE_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("batch exceeds the maximum number of calls"));
+
+    private static final Map<String, Object> PARAMS_ELEMENTS_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("params exceed the maximum number of elements"));
+
+    private static final Map<String, Object> PARAMS_DEPTH_ERROR = ImmutableMap.copyOf(
+        ErrorCode.INVALID_REQUEST.newError("params exceed the maximum nesting depth"));
+
+    private static final int OK = 0;
+
+    private static final int ELEMENTS_EXCEEDED = 1;
+
+    private static final int DEPTH_EXCEEDED = 2;
+
+    private final MBeanServer mBeanServer;
+
+    private int maxBatchSize = Integer.MAX_VALUE;
+
+    private int maxParamsElements = Integer.MAX_VALUE;
+
+    private int maxParamsDepth = Integer.MAX_VALUE;
+
+    private final AtomicLong rejectedBatches = new AtomicLong();
+
+    private final AtomicLong rejectedParamsElements = new AtomicLong();
+
+    private final AtomicLong rejectedParamsDepth = new AtomicLong();
+
+    @Inject
+    public RequestLimits(MBeanServer mBeanServer) {
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+    }
+
+    @Inject(optional = true)
+    void setMaxBatchSize(@Named(JsonRpcConfig.LIMITS_MAX_BATCH_SIZE) int maxBatchSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "MaxBatchSize must be positive");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Inject(optional = true)
+    void setMaxParamsElements(@Named(JsonRpcConfig.LIMITS_MAX_PARAMS_ELEMENTS) int maxParamsElements) {
+        Preconditions.checkArgument(maxParamsElements >= 0, "MaxParamsElements must not be negative");
+        this.maxParamsElements = maxParamsElements;
+    }
+
+    @Inject(optional = true)
+    void setMaxParamsDepth(@Named(JsonRpcConfig.LIMITS_MAX_PARAMS_DEPTH) int maxParamsDepth) {
+        Preconditions.checkArgument(maxParamsDepth > 0, "MaxParamsDepth must be positive");
+        this.maxParamsDepth = maxParamsDepth;
+    }
+
+    private boolean isEnabled() {
+        return maxBatchSize != Integer.MAX_VALUE ||
+            maxParamsElements != Integer.MAX_VALUE ||
+            maxParamsDepth != Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (!isEnabled()) return;
+        try {
+            mBeanServer.registerMBean(new StandardMBean(this, RequestLimitsMBean.class),
+                ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * Checks the length of the specified batch.
+     *
+     * @param batch the batch request
+     * @return an error object if the batch is too long, null otherwise
+     */
+    Map<String, Object> checkBatch(List<?> batch) {
+        if (batch.size() <= maxBatchSize) {
+            return null;
+        } else {
+            rejectedBatches.incrementAndGet();
+            return BATCH_SIZE_ERROR;
+        }
+    }
+
+    /**
+     * Checks the size and nesting depth of the specified params.
+     *
+     * @param params the params, may be null
+     * @return an error object if a limit is exceeded, null otherwise
+     */
+    Map<String, Object> checkParams(Object params) {
+        if (maxParamsElements == Integer.MAX_VALUE && maxParamsDepth == Integer.MAX_VALUE) return null;
+        final int[] elements = new int[1];
+        final int result = walk(params, 1, elements);
+        if (result == ELEMENTS_EXCEEDED) {
+            rejectedParamsElements.incrementAndGet();
+            return PARAMS_ELEMENTS_ERROR;
+        } else if (result == DEPTH_EXCEEDED) {
+            rejectedParamsDepth.incrementAndGet();
+            return PARAMS_DEPTH_ERROR;
+        } else {
+            return null;
+        }
+    }
+
+    private int walk(Object value, int depth, int[] elements) {
+        final Iterable<?> children;
+        if (value instanceof List<?>) {
+            children = List.class.cast(value);
+        } else if (value instanceof Map<?, ?>) {
+            final Map<?, ?> map = Map.class.cast(value);
+            children = map.values();
+        } else {
+            return OK;
+        }
+
+        if (depth > maxParamsDepth) return DEPTH_EXCEEDED;
+
+        for (Object child : children) {
+            if (++elements[0] > maxParamsElements) return ELEMENTS_EXCEEDED;
+            final int result = walk(child, depth + 1, elements);
+            if (result != OK) return result;
+        }
+        return OK;
+    }
+
+    @Override
+    public long getRejectedBatches() {
+        return rejectedBatches.get();
+    }
+
+    @Override
+    public long getRejectedParamsElements() {
+        return rejectedParamsElements.get();
+    }
+
+    @Override
+    public long getRejectedParamsDepth() {
+        return rejectedParamsDepth.get();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (!isEnabled()) return;
+        try {
+            mBeanServer.unregisterMBean(ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+}
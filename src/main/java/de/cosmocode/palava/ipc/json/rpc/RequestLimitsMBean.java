@@ -0,0 +1,48 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of the Json-RPC request limits.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface RequestLimitsMBean {
+
+    /**
+     * Provides the number of batches rejected due to their length.
+     *
+     * @return the number of rejected batches
+     */
+    long getRejectedBatches();
+
+    /**
+     * Provides the number of calls rejected due to the number of their params elements.
+     *
+     * @return the number of calls with too many params elements
+     */
+    long getRejectedParamsElements();
+
+    /**
+     * Provides the number of calls rejected due to the nesting depth of their params.
+     *
+     * @return the number of calls with too deeply nested params
+     */
+    long getRejectedParamsDepth();
+
+}
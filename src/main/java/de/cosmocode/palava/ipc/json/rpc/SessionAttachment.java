@@ -0,0 +1,248 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.IpcSession;
+import de.cosmocode.palava.ipc.IpcSessionProvider;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+
+/**
+ * Attaches sessions to Json-RPC connections lazily. Connections are attached to a
+ * proxy which asks the {@link IpcSessionProvider} for the real session on first access,
+ * so calls which never touch their session cause no session store traffic at all.
+ * Methods matching {@link JsonRpcConfig#SESSION_STATELESS_METHODS} are not allowed
+ * to access the session.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class SessionAttachment {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionAttachment.class);
+
+    private final IpcSessionProvider sessionProvider;
+
+    private final SessionCleaner cleaner;
+
+    private Pattern statelessMethods;
+
+    @Inject
+    public SessionAttachment(IpcSessionProvider sessionProvider, SessionCleaner cleaner) {
+        this.sessionProvider = Preconditions.checkNotNull(sessionProvider, "SessionProvider");
+        this.cleaner = Preconditions.checkNotNull(cleaner, "Cleaner");
+    }
+
+    @Inject(optional = true)
+    void setStatelessMethods(@Named(JsonRpcConfig.SESSION_STATELESS_METHODS) String statelessMethods) {
+        this.statelessMethods = Pattern.compile(statelessMethods);
+    }
+
+    /**
+     * Attaches the specified connection to a lazy session, unless it is already attached.
+     *
+     * @param connection the connection
+     * @return true if the connection has been attached by this call, false if it was already attached
+     */
+    boolean attach(DetachedConnection connection) {
+        if (connection.isAttached()) return false;
+        synchronized (connection) {
+            if (connection.isAttached()) return false;
+            final LazySession handler = new LazySession(connection.getConnectionId());
+            final IpcSession session = IpcSession.class.cast(Proxy.newProxyInstance(
+                IpcSession.class.getClassLoader(), new Class<?>[] {IpcSession.class}, handler));
+            connection.attachTo(session);
+            return true;
+        }
+    }
+
+    /**
+     * Checks whether calls to the specified method are denied session access.
+     *
+     * @param method the requested method
+     * @return true if the method matches {@link JsonRpcConfig#SESSION_STATELESS_METHODS}
+     */
+    boolean isStateless(String method) {
+        return statelessMethods != null && statelessMethods.matcher(method).matches();
+    }
+
+    /**
+     * Checks whether any methods are denied session access.
+     *
+     * @return true if {@link JsonRpcConfig#SESSION_STATELESS_METHODS} is configured
+     */
+    boolean hasStatelessMethods() {
+        return statelessMethods != null;
+    }
+
+    /**
+     * Provides the connection view a call to the specified method should see.
+     *
+     * @param method the requested method
+     * @param connection the attached connection
+     * @return the given connection or a view which denies session access for stateless methods,
+     *         views are equal to their connection
+     */
+    IpcConnection connectionOf(String method, DetachedConnection connection) {
+        if (!isStateless(method)) {
+            return connection;
+        } else {
+            return IpcConnection.class.cast(Proxy.newProxyInstance(
+                IpcConnection.class.getClassLoader(), new Class<?>[] {IpcConnection.class},
+                new StatelessConnection(method, connection)));
+        }
+    }
+
+    /**
+     * Looks through views created by {@link #connectionOf(String, DetachedConnection)}.
+     *
+     * @param connection the connection a call has seen
+     * @return the attached connection behind the view or the given connection itself
+     */
+    static IpcConnection unwrap(IpcConnection connection) {
+        if (!Proxy.isProxyClass(connection.getClass())) return connection;
+        final InvocationHandler handler = Proxy.getInvocationHandler(connection);
+        return handler instanceof StatelessConnection ? StatelessConnection.class.cast(handler).connection : connection;
+    }
+
+    /**
+     * Clears the session of the specified connection using the {@link SessionCleaner},
+     * unless it has never been used.
+     *
+     * @param connection the connection
+     */
+    void clear(IpcConnection connection) {
+        final IpcSession session = connection.getSession();
+        if (session == null) return;
+        if (Proxy.isProxyClass(session.getClass())) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(session);
+            if (handler instanceof LazySession && !LazySession.class.cast(handler).isResolved()) {
+                LOG.trace("Session of {} has never been used, skipping clear", connection);
+                return;
+            }
+        }
+        cleaner.clear(session);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Handler of lazily resolved session proxies.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private final class LazySession implements InvocationHandler {
+
+        private final String connectionId;
+
+        private volatile IpcSession session;
+
+        public LazySession(String connectionId) {
+            this.connectionId = connectionId;
+        }
+
+        boolean isResolved() {
+            return session != null;
+        }
+
+        private IpcSession resolve() {
+            if (session == null) {
+                synchronized (this) {
+                    if (session == null) {
+                        LOG.trace("Resolving session for connection {}", connectionId);
+                        session = sessionProvider.getSession(connectionId, null);
+                    }
+                }
+            }
+            return session;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(method.getName())) {
+                    return session == null ? "LazySession [connectionId=" + connectionId + "]" : session.toString();
+                }
+            }
+            return SessionAttachment.invoke(resolve(), method, args);
+        }
+
+    }
+
+    /**
+     * Handler of connection proxies which deny session access.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class StatelessConnection implements InvocationHandler {
+
+        private final String name;
+
+        private final IpcConnection connection;
+
+        public StatelessConnection(String name, IpcConnection connection) {
+            this.name = name;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                // views are interchangeable with their connection, e.g. as map keys
+                if ("equals".equals(method.getName())) {
+                    return args[0] instanceof IpcConnection &&
+                        connection.equals(unwrap(IpcConnection.class.cast(args[0])));
+                } else if ("hashCode".equals(method.getName())) {
+                    return connection.hashCode();
+                }
+            }
+            if ("getSession".equals(method.getName()) && method.getParameterTypes().length == 0) {
+                throw new IllegalStateException(String.format("%s is stateless and must not access the session", name));
+            }
+            return SessionAttachment.invoke(connection, method, args);
+        }
+
+    }
+
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.concurrent.BackgroundScheduler;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcSession;
+
+/**
+ * Clears sessions of destroyed Json-RPC connections. If enabled, sessions are queued
+ * and cleared in batches by the background scheduler, so tearing down a connection
+ * never blocks on session store I/O. The queue is bounded; sessions which don't fit
+ * are cleared synchronously.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class SessionCleaner implements SessionCleanerMBean, Runnable, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionCleaner.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=SessionCleaner";
+
+    private final ScheduledExecutorService scheduler;
+
+    private final MBeanServer mBeanServer;
+
+    private boolean async;
+
+    private int queueCapacity = 10000;
+
+    private int batchSize = 100;
+
+    private long interval = 1;
+
+    private TimeUnit intervalUnit = TimeUnit.SECONDS;
+
+    private int maxRetries = 3;
+
+    private BlockingQueue<Task> queue;
+
+    private ScheduledFuture<?> future;
+
+    private final AtomicLong cleared = new AtomicLong();
+
+    private final AtomicLong retried = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong overflows = new AtomicLong();
+
+    @Inject
+    public SessionCleaner(@BackgroundScheduler ScheduledExecutorService scheduler, MBeanServer mBeanServer) {
+        this.scheduler = Preconditions.checkNotNull(scheduler, "Scheduler");
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+    }
+
+    @Inject(optional = true)
+    void setAsync(@Named(JsonRpcConfig.SESSION_CLEANUP_ASYNC) boolean async) {
+        this.async = async;
+    }
+
+    @Inject(optional = true)
+    void setQueueCapacity(@Named(JsonRpcConfig.SESSION_CLEANUP_QUEUE_CAPACITY) int queueCapacity) {
+        Preconditions.checkArgument(queueCapacity > 0, "QueueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Inject(optional = true)
+    void setBatchSize(@Named(JsonRpcConfig.SESSION_CLEANUP_BATCH_SIZE) int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "BatchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    @Inject(optional = true)
+    void setInterval(@Named(JsonRpcConfig.SESSION_CLEANUP_INTERVAL) long interval) {
+        Preconditions.checkArgument(interval > 0, "Interval must be positive");
+        this.interval = interval;
+    }
+
+    @Inject(optional = true)
+    void setIntervalUnit(@Named(JsonRpcConfig.SESSION_CLEANUP_INTERVAL_UNIT) TimeUnit intervalUnit) {
+        this.intervalUnit = Preconditions.checkNotNull(intervalUnit, "IntervalUnit");
+    }
+
+    @Inject(optional = true)
+    void setMaxRetries(@Named(JsonRpcConfig.SESSION_CLEANUP_MAX_RETRIES) int maxRetries) {
+        Preconditions.checkArgument(maxRetries >= 0, "MaxRetries must not be negative");
+        this.maxRetries = maxRetries;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (!async) return;
+        queue = new LinkedBlockingQueue<Task>(queueCapacity);
+        try {
+            mBeanServer.registerMBean(new StandardMBean(this, SessionCleanerMBean.class),
+                ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+        future = scheduler.scheduleWithFixedDelay(this, interval, interval, intervalUnit);
+    }
+
+    /**
+     * Clears the specified session, either immediately or asynchronously.
+     *
+     * @param session the session to clear
+     */
+    void clear(IpcSession session) {
+        if (queue == null) {
+            session.clear();
+        } else if (!queue.offer(new Task(session))) {
+            LOG.debug("Cleanup queue is full, clearing {} synchronously", session);
+            overflows.incrementAndGet();
+            session.clear();
+        }
+    }
+
+    @Override
+    public void run() {
+        final List<Task> batch = Lists.newArrayListWithCapacity(batchSize);
+        queue.drainTo(batch, batchSize);
+        if (batch.isEmpty()) return;
+        LOG.trace("Clearing {} sessions", batch.size());
+        final List<Task> retries = Lists.newArrayList();
+        for (Task task : batch) {
+            try {
+                task.session.clear();
+                cleared.incrementAndGet();
+            /* CHECKSTYLE:OFF */
+            } catch (RuntimeException e) {
+            /* CHECKSTYLE:ON */
+                if (task.attempts++ < maxRetries) {
+                    LOG.debug("Clearing {} failed, retrying later: {}", task.session, e.getMessage());
+                    retried.incrementAndGet();
+                    retries.add(task);
+                } else {
+                    LOG.warn("Clearing " + task.session + " failed, giving up", e);
+                    failed.incrementAndGet();
+                }
+            }
+        }
+        for (Task task : retries) {
+            if (!queue.offer(task)) {
+                LOG.warn("Cleanup queue is full, dropping retry of {}", task.session);
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (queue == null) return;
+        while (!queue.isEmpty()) {
+            run();
+        }
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public long getLag() {
+        final Task head = queue == null ? null : queue.peek();
+        return head == null ? 0L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.enqueued);
+    }
+
+    @Override
+    public long getCleared() {
+        return cleared.get();
+    }
+
+    @Override
+    public long getRetried() {
+        return retried.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (queue == null) return;
+        future.cancel(false);
+        LOG.info("Flushing {} pending session cleanups", queue.size());
+        flush();
+        try {
+            mBeanServer.unregisterMBean(ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * A queued session.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class Task {
+
+        private final IpcSession session;
+
+        private final long enqueued = System.nanoTime();
+
+        private int attempts;
+
+        public Task(IpcSession session) {
+            this.session = session;
+        }
+
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of the asynchronous Json-RPC session cleaner.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface SessionCleanerMBean {
+
+    /**
+     * Provides the number of sessions waiting to be cleared.
+     *
+     * @return the current queue size
+     */
+    int getQueueSize();
+
+    /**
+     * Provides the age of the oldest session waiting to be cleared.
+     *
+     * @return the current cleanup lag in milliseconds
+     */
+    long getLag();
+
+    /**
+     * Provides the number of sessions cleared so far.
+     *
+     * @return the number of cleared sessions
+     */
+    long getCleared();
+
+    /**
+     * Provides the number of failed clear attempts which have been retried.
+     *
+     * @return the number of retries
+     */
+    long getRetried();
+
+    /**
+     * Provides the number of sessions given up on after all retries failed.
+     *
+     * @return the number of failed sessions
+     */
+    long getFailed();
+
+    /**
+     * Provides the number of sessions which were cleared synchronously
+     * because the queue was full.
+     *
+     * @return the number of overflows
+     */
+    long getOverflows();
+
+    /**
+     * Clears all queued sessions immediately.
+     */
+    void flush();
+
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.ipc.IpcConnection;
+
+/**
+ * A lazily produced sequence which is returned as the result of a Json-RPC call
+ * instead of a fully built map. The encoder pulls elements while writing the
+ * response, so memory stays bounded by what the encoder buffers and a slow
+ * connection throttles the producer. The underlying resource is closed once the
+ * sequence is exhausted, iteration fails, the call turns out to be a notification
+ * or the connection is destroyed, whichever happens first.
+ *
+ * <pre>
+ * public void execute(IpcCall call, Map&lt;String, Object&gt; result) {
+ *     final Cursor cursor = dao.openCursor();
+ *     StreamedResult.of(cursor.iterator(), cursor).putInto(result);
+ * }
+ * </pre>
+ *
+ * <p>
+ *   A streamed result can be iterated only once. Responses containing one are
+ *   neither replayed for idempotency keys nor shared between identical batch calls.
+ * </p>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class StreamedResult implements Iterable<Object>, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamedResult.class);
+
+    private static final String KEY = StreamedResult.class.getName();
+
+    private static final Object OPEN = StreamedResult.class;
+
+    private final Iterator<?> iterator;
+
+    private final Closeable resource;
+
+    private final AtomicBoolean consumed = new AtomicBoolean();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Set<StreamedResult> owner;
+
+    private StreamedResult(Iterator<?> iterator, Closeable resource) {
+        this.iterator = Preconditions.checkNotNull(iterator, "Iterator");
+        this.resource = Preconditions.checkNotNull(resource, "Resource");
+    }
+
+    /**
+     * Creates a new streamed result.
+     *
+     * @param iterator the lazily produced elements
+     * @param resource the resource backing the iterator, closed after iteration
+     * @return a new streamed result
+     * @throws NullPointerException if iterator or resource is null
+     */
+    public static StreamedResult of(Iterator<?> iterator, Closeable resource) {
+        return new StreamedResult(iterator, resource);
+    }
+
+    /**
+     * Marks the specified command result as streamed. The result must not contain
+     * any other entries.
+     *
+     * @param result the command's result map
+     * @throws NullPointerException if result is null
+     */
+    public void putInto(Map<String, Object> result) {
+        Preconditions.checkNotNull(result, "Result");
+        Preconditions.checkState(result.isEmpty(), "A streamed result must be the only result");
+        result.put(KEY, this);
+    }
+
+    /**
+     * Looks up the streamed result of the specified command result.
+     *
+     * @param result the command's result map
+     * @return the streamed result or null if the result is a regular map
+     */
+    static StreamedResult in(Map<String, Object> result) {
+        if (result == null || result.size() != 1) return null;
+        final Object value = result.get(KEY);
+        return value instanceof StreamedResult ? StreamedResult.class.cast(value) : null;
+    }
+
+    /**
+     * Checks whether the specified response carries a streamed result.
+     *
+     * @param response the response
+     * @param member the name of the result member
+     * @return true if the result is streamed
+     */
+    static boolean isStreamed(Object response, String member) {
+        return response instanceof Map<?, ?> && Map.class.cast(response).get(member) instanceof StreamedResult;
+    }
+
+    /**
+     * Registers this result with the specified connection, so it gets closed
+     * in case the connection is destroyed before the response was written.
+     *
+     * @param connection the connection
+     */
+    void track(IpcConnection connection) {
+        final Set<StreamedResult> open;
+        // a per-connection lock, so unrelated connections never contend
+        synchronized (connection) {
+            final Set<StreamedResult> current = connection.get(OPEN);
+            if (current == null) {
+                open = Collections.newSetFromMap(new ConcurrentHashMap<StreamedResult, Boolean>());
+                connection.set(OPEN, open);
+            } else {
+                open = current;
+            }
+            synchronized (this) {
+                owner = open;
+            }
+            open.add(this);
+        }
+        if (closed.get()) {
+            open.remove(this);
+        }
+    }
+
+    /**
+     * Closes all results of the specified connection which are still open.
+     *
+     * @param connection the destroyed connection
+     */
+    static void closeAll(IpcConnection connection) {
+        final Set<StreamedResult> open;
+        synchronized (connection) {
+            open = connection.remove(OPEN);
+        }
+        if (open == null) return;
+        for (StreamedResult result : open) {
+            LOG.debug("Closing abandoned {}", result);
+            result.close();
+        }
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        Preconditions.checkState(consumed.compareAndSet(false, true), "%s can only be iterated once", this);
+        return new Iterator<Object>() {
+
+            @Override
+            public boolean hasNext() {
+                if (closed.get()) return false;
+                boolean hasNext = false;
+                try {
+                    hasNext = iterator.hasNext();
+                    return hasNext;
+                } finally {
+                    // on failure as well as on exhaustion
+                    if (!hasNext) close();
+                }
+            }
+
+            @Override
+            public Object next() {
+                if (closed.get()) throw new NoSuchElementException();
+                boolean success = false;
+                try {
+                    final Object next = iterator.next();
+                    success = true;
+                    return next;
+                } finally {
+                    if (!success) close();
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
+    /**
+     * Closes the underlying resource. Subsequent calls have no effect.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        final Set<StreamedResult> open;
+        synchronized (this) {
+            open = owner;
+        }
+        if (open != null) {
+            open.remove(this);
+        }
+        try {
+            resource.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close " + resource, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StreamedResult [resource=" + resource + ", closed=" + closed.get() + "]";
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * Notifies Json-RPC clients which subscribed to a topic using
+ * {@code rpc.subscribe} about changed data.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface SubscriptionPublisher {
+
+    /**
+     * Pushes the specified data to all subscribers of the specified topic.
+     *
+     * @param topic the changed topic
+     * @param data the new data, sent as the notification's result
+     * @throws NullPointerException if topic is null
+     */
+    void publish(String topic, Object data);
+
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+
+/**
+ * Manages topic subscriptions of Json-RPC 2.0 connections created by
+ * {@link JsonRpc#SUBSCRIBE} and pushes {@link JsonRpc#SUBSCRIPTION} notifications
+ * through the bound {@link PushChannel}. Each connection holds its own subscriptions,
+ * identified by small per-connection numbers, which are dropped together with
+ * the connection.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class Subscriptions implements SubscriptionPublisher, Initializable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Subscriptions.class);
+
+    private static final Object KEY = Subscriptions.class;
+
+    private final ConcurrentMap<String, Set<Subscription>> topics = new ConcurrentHashMap<String, Set<Subscription>>();
+
+    private PushChannel channel;
+
+    private boolean enabled;
+
+    private Pattern allowedTopics;
+
+    private int maxPerConnection = 100;
+
+    @Inject(optional = true)
+    void setChannel(PushChannel channel) {
+        this.channel = Preconditions.checkNotNull(channel, "Channel");
+    }
+
+    @Inject(optional = true)
+    void setEnabled(@Named(JsonRpcConfig.SUBSCRIPTIONS_ENABLED) boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject(optional = true)
+    void setAllowedTopics(@Named(JsonRpcConfig.SUBSCRIPTIONS_TOPICS) String allowedTopics) {
+        this.allowedTopics = Pattern.compile(allowedTopics);
+    }
+
+    @Inject(optional = true)
+    void setMaxPerConnection(@Named(JsonRpcConfig.SUBSCRIPTIONS_MAX_PER_CONNECTION) int maxPerConnection) {
+        Preconditions.checkArgument(maxPerConnection > 0, "MaxPerConnection must be positive");
+        this.maxPerConnection = maxPerConnection;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (enabled && channel == null) {
+            throw new LifecycleException(new IllegalStateException(
+                "Subscriptions require a bound " + PushChannel.class.getName()));
+        }
+    }
+
+    /**
+     * Checks whether the specified method is handled by this class instead of a command.
+     *
+     * @param method the requested method
+     * @return true if method is {@link JsonRpc#SUBSCRIBE} or {@link JsonRpc#UNSUBSCRIBE}
+     *         and subscriptions are enabled
+     */
+    boolean handles(String method) {
+        return enabled && (JsonRpc.SUBSCRIBE.equals(method) || JsonRpc.UNSUBSCRIBE.equals(method));
+    }
+
+    /**
+     * Subscribes the specified connection to the specified topic.
+     *
+     * @param connection the subscribing connection
+     * @param topic the topic
+     * @return the subscription id, unique per connection
+     * @throws IllegalArgumentException if the topic is not allowed or the connection
+     *         has too many subscriptions
+     * @throws IllegalStateException if the connection has already been destroyed
+     */
+    int subscribe(IpcConnection connection, String topic) {
+        if (allowedTopics != null && !allowedTopics.matcher(topic).matches()) {
+            throw new IllegalArgumentException(String.format("%s is not a valid topic", topic));
+        }
+
+        final Registrations registrations = registrationsOf(connection);
+        final Subscription subscription;
+
+        // unsubscribeAll either sees this subscription or this call sees the closed flag
+        synchronized (registrations) {
+            if (registrations.closed) {
+                throw new IllegalStateException(String.format("%s has been destroyed", connection));
+            } else if (registrations.active.size() >= maxPerConnection) {
+                throw new IllegalArgumentException(String.format("at most %s subscriptions allowed", maxPerConnection));
+            }
+
+            subscription = new Subscription(connection, registrations.ids.incrementAndGet(), topic);
+            registrations.active.put(subscription.id, subscription);
+
+            while (true) {
+                Set<Subscription> subscribers = topics.get(topic);
+                if (subscribers == null) {
+                    final Set<Subscription> created = Collections.newSetFromMap(
+                        new ConcurrentHashMap<Subscription, Boolean>());
+                    subscribers = topics.putIfAbsent(topic, created);
+                    if (subscribers == null) subscribers = created;
+                }
+                subscribers.add(subscription);
+                // the set might have been dropped concurrently after its last subscriber left
+                if (topics.get(topic) == subscribers) break;
+                subscribers.remove(subscription);
+            }
+        }
+
+        LOG.trace("{} subscribed to {}", connection, topic);
+        return subscription.id;
+    }
+
+    /**
+     * Cancels the specified subscription of the specified connection.
+     *
+     * @param connection the subscribed connection
+     * @param id the subscription id
+     * @return true if the subscription existed
+     */
+    boolean unsubscribe(IpcConnection connection, int id) {
+        final Registrations registrations = connection.get(KEY);
+        if (registrations == null) return false;
+        final Subscription subscription = registrations.active.remove(id);
+        if (subscription == null) return false;
+        remove(subscription);
+        return true;
+    }
+
+    /**
+     * Cancels all subscriptions of the specified destroyed connection and
+     * refuses any further ones. Connections which never subscribed are left
+     * untouched, unless calls of them may still be subscribing concurrently.
+     *
+     * @param connection the connection
+     * @param handled whether the connection has been handled by the protocol, i.e. might be subscribing
+     */
+    void unsubscribeAll(IpcConnection connection, boolean handled) {
+        if (!enabled) return;
+        Registrations registrations = connection.get(KEY);
+        if (registrations == null) {
+            if (!handled) return;
+            // closed right away, so a racing subscribe can't register on the destroyed connection
+            registrations = registrationsOf(connection);
+        }
+        synchronized (registrations) {
+            if (registrations.closed) return;
+            registrations.closed = true;
+        }
+        for (Subscription subscription : registrations.active.values()) {
+            remove(subscription);
+        }
+        LOG.trace("Removed {} subscriptions of {}", registrations.active.size(), connection);
+        registrations.active.clear();
+    }
+
+    private Registrations registrationsOf(IpcConnection connection) {
+        // a per-connection lock, so unrelated connections never contend
+        synchronized (connection) {
+            final Registrations current = connection.get(KEY);
+            if (current != null) return current;
+            final Registrations created = new Registrations();
+            connection.set(KEY, created);
+            return created;
+        }
+    }
+
+    private void remove(Subscription subscription) {
+        final Set<Subscription> subscribers = topics.get(subscription.topic);
+        if (subscribers == null) return;
+        subscribers.remove(subscription);
+        if (subscribers.isEmpty()) {
+            topics.remove(subscription.topic, subscribers);
+        }
+    }
+
+    private void cancel(Subscription subscription) {
+        final Registrations registrations = subscription.connection.get(KEY);
+        if (registrations != null) {
+            registrations.active.remove(subscription.id, subscription);
+        }
+        remove(subscription);
+    }
+
+    @Override
+    public void publish(String topic, Object data) {
+        Preconditions.checkNotNull(topic, "Topic");
+        final Set<Subscription> subscribers = topics.get(topic);
+        if (subscribers == null) return;
+        for (Subscription subscription : subscribers) {
+            final Map<String, Object> params = Maps.newHashMap();
+            params.put(JsonRpc.SUBSCRIPTION_ID, subscription.id);
+            params.put(JsonRpc.TOPIC, topic);
+            params.put(JsonRpc.RESULT, data);
+
+            final Map<String, Object> notification = Maps.newHashMap();
+            notification.put(JsonRpc.JSON_RPC, JsonRpc2Protocol.VERSION);
+            notification.put(JsonRpc.METHOD, JsonRpc.SUBSCRIPTION);
+            notification.put(JsonRpc.PARAMS, params);
+
+            try {
+                channel.push(subscription.connection, notification);
+            } catch (IOException e) {
+                LOG.debug("Unable to push to {}, cancelling subscription {}", subscription.connection, subscription.id);
+                cancel(subscription);
+            }
+        }
+    }
+
+    /**
+     * Per-connection subscription state.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class Registrations {
+
+        private final AtomicInteger ids = new AtomicInteger();
+
+        private final ConcurrentMap<Integer, Subscription> active = new ConcurrentHashMap<Integer, Subscription>(4);
+
+        // guarded by this
+        private boolean closed;
+
+    }
+
+    /**
+     * A single subscription.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class Subscription {
+
+        private final IpcConnection connection;
+
+        private final int id;
+
+        private final String topic;
+
+        public Subscription(IpcConnection connection, int id, String topic) {
+            this.connection = connection;
+            this.id = id;
+            this.topic = topic;
+        }
+
+    }
+
+}
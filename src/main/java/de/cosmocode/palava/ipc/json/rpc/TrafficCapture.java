@@ -0,0 +1,388 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.concurrent.BackgroundScheduler;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+
+/**
+ * Samples inbound Json-RPC 2.0 requests and batches into an append-only, gzip
+ * compressed capture file which can be fed into a {@link TrafficReplay}. Sampled
+ * requests are copied and redacted on the calling thread before they are
+ * processed, so commands mutating their params can't alter or race with the
+ * capture; encoding and I/O happen on the background scheduler. Every flush
+ * appends a complete gzip member, so the file stays readable while it grows
+ * and after a crash.
+ * Disabled unless {@link JsonRpcConfig#CAPTURE_FILE} is configured.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class TrafficCapture implements TrafficCaptureMBean, Runnable, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrafficCapture.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=TrafficCapture";
+
+    private static final String REDACTED = "<redacted>";
+
+    private final ScheduledExecutorService scheduler;
+
+    private final MBeanServer mBeanServer;
+
+    private File file;
+
+    private int sampleInterval = 1;
+
+    private Pattern redactedMembers;
+
+    private int queueCapacity = 10000;
+
+    private long interval = 1;
+
+    private TimeUnit intervalUnit = TimeUnit.SECONDS;
+
+    private BlockingQueue<Record> queue;
+
+    private ScheduledFuture<?> future;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong captured = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    @Inject
+    public TrafficCapture(@BackgroundScheduler ScheduledExecutorService scheduler, MBeanServer mBeanServer) {
+        this.scheduler = Preconditions.checkNotNull(scheduler, "Scheduler");
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+    }
+
+    @Inject(optional = true)
+    void setFile(@Named(JsonRpcConfig.CAPTURE_FILE) String file) {
+        this.file = new File(Preconditions.checkNotNull(file, "File"));
+    }
+
+    @Inject(optional = true)
+    void setSampleInterval(@Named(JsonRpcConfig.CAPTURE_SAMPLE_INTERVAL) int sampleInterval) {
+        Preconditions.checkArgument(sampleInterval > 0, "SampleInterval must be positive");
+        this.sampleInterval = sampleInterval;
+    }
+
+    @Inject(optional = true)
+    void setRedactedMembers(@Named(JsonRpcConfig.CAPTURE_REDACTED_MEMBERS) String redactedMembers) {
+        this.redactedMembers = Pattern.compile(redactedMembers);
+    }
+
+    @Inject(optional = true)
+    void setQueueCapacity(@Named(JsonRpcConfig.CAPTURE_QUEUE_CAPACITY) int queueCapacity) {
+        Preconditions.checkArgument(queueCapacity > 0, "QueueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+    }
+
+    @Inject(optional = true)
+    void setInterval(@Named(JsonRpcConfig.CAPTURE_INTERVAL) long interval) {
+        Preconditions.checkArgument(interval > 0, "Interval must be positive");
+        this.interval = interval;
+    }
+
+    @Inject(optional = true)
+    void setIntervalUnit(@Named(JsonRpcConfig.CAPTURE_INTERVAL_UNIT) TimeUnit intervalUnit) {
+        this.intervalUnit = Preconditions.checkNotNull(intervalUnit, "IntervalUnit");
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (file == null) return;
+        queue = new LinkedBlockingQueue<Record>(queueCapacity);
+        try {
+            mBeanServer.registerMBean(new StandardMBean(this, TrafficCaptureMBean.class),
+                ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+        future = scheduler.scheduleWithFixedDelay(this, interval, interval, intervalUnit);
+        LOG.info("Capturing every {}. request to {}", sampleInterval, file);
+    }
+
+    /**
+     * Decides whether the next request should be captured.
+     *
+     * @return true if the caller should pass the request to {@link #snapshot(Object)}
+     */
+    boolean sample() {
+        return queue != null && requests.getAndIncrement() % sampleInterval == 0;
+    }
+
+    /**
+     * Copies the specified request before it is processed. Redacted members are
+     * replaced and values of unknown types are converted to the strings they
+     * would be captured as, the snapshot shares no mutable state with the request.
+     *
+     * @param request the request, a map or a list
+     * @return the snapshot to pass to {@link #record(Object, IpcConnection, long, long)}
+     */
+    Object snapshot(Object request) {
+        if (request instanceof Map<?, ?>) {
+            final Map<?, ?> map = Map.class.cast(request);
+            final Map<Object, Object> copy = Maps.newLinkedHashMap();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                final boolean redacted = redactedMembers != null &&
+                    redactedMembers.matcher(String.valueOf(entry.getKey())).matches();
+                copy.put(entry.getKey(), redacted ? REDACTED : snapshot(entry.getValue()));
+            }
+            return copy;
+        } else if (request instanceof List<?>) {
+            final List<?> list = List.class.cast(request);
+            final List<Object> copy = Lists.newArrayListWithCapacity(list.size());
+            for (Object element : list) {
+                copy.add(snapshot(element));
+            }
+            return copy;
+        } else if (request == null || request instanceof String || request instanceof Number ||
+            request instanceof Boolean) {
+            return request;
+        } else {
+            return request.toString();
+        }
+    }
+
+    /**
+     * Queues the specified snapshot of a fully processed request for capturing.
+     * Records are queued in completion order, the writer sorts every flush by
+     * arrival and {@link TrafficReplay} sorts the whole capture again, so slow
+     * requests straddling a flush are still replayed in arrival order.
+     *
+     * @param snapshot the request as returned by {@link #snapshot(Object)}
+     * @param connection the connection the request came from
+     * @param arrival the {@link System#currentTimeMillis()} the request arrived at
+     * @param start the {@link System#nanoTime()} processing started at
+     */
+    void record(Object snapshot, IpcConnection connection, long arrival, long start) {
+        final String connectionId = connection.getConnectionId();
+        final long duration = System.nanoTime() - start;
+        final Record record = new Record(arrival, duration,
+            connectionId == null ? 0 : connectionId.hashCode(), snapshot);
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        if (queue.isEmpty()) return;
+        final List<Record> records = Lists.newArrayListWithCapacity(queue.size());
+        queue.drainTo(records);
+        Collections.sort(records, Record.ARRIVAL);
+        LOG.trace("Writing {} captured requests", records.size());
+        int skipped = 0;
+        try {
+            final OutputStream out = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file, true)));
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                for (Record record : records) {
+                    bytes.reset();
+                    try {
+                        record.writeTo(new DataOutputStream(bytes));
+                    /* CHECKSTYLE:OFF */
+                    } catch (RuntimeException e) {
+                    /* CHECKSTYLE:ON */
+                        // a partially written record would corrupt all following ones
+                        LOG.warn("Unable to encode captured request", e);
+                        skipped++;
+                        continue;
+                    }
+                    bytes.writeTo(out);
+                }
+            } finally {
+                out.close();
+            }
+            captured.addAndGet(records.size() - skipped);
+            dropped.addAndGet(skipped);
+        } catch (IOException e) {
+            LOG.warn("Unable to write " + records.size() + " captured requests to " + file, e);
+            dropped.addAndGet(records.size());
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            // must not escape, the scheduler would silently stop capturing
+            LOG.warn("Unable to write " + records.size() + " captured requests to " + file, e);
+            dropped.addAndGet(records.size());
+        }
+    }
+
+    @Override
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (file == null) return;
+        future.cancel(false);
+        run();
+        try {
+            mBeanServer.unregisterMBean(ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * A single captured request or batch.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    static final class Record {
+
+        /**
+         * Orders records by arrival, keeping records which arrived in the same
+         * millisecond in their current order when used for a stable sort.
+         */
+        static final Comparator<Record> ARRIVAL = new Comparator<Record>() {
+
+            @Override
+            public int compare(Record left, Record right) {
+                return left.timestamp < right.timestamp ? -1 : left.timestamp == right.timestamp ? 0 : 1;
+            }
+
+        };
+
+        private final long timestamp;
+
+        private final long duration;
+
+        private final int connection;
+
+        private final Object request;
+
+        Record(long timestamp, long duration, int connection, Object request) {
+            this.timestamp = timestamp;
+            this.duration = duration;
+            this.connection = connection;
+            this.request = request;
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @param in the input
+         * @return the record
+         * @throws java.io.EOFException if there are no more records
+         * @throws IOException if reading fails
+         */
+        static Record readFrom(DataInput in) throws IOException {
+            final long timestamp = in.readLong();
+            final long duration = in.readLong();
+            final int connection = in.readInt();
+            return new Record(timestamp, duration, connection, CaptureCodec.read(in));
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeLong(timestamp);
+            out.writeLong(duration);
+            out.writeInt(connection);
+            CaptureCodec.write(out, request);
+        }
+
+        /**
+         * Provides the wall clock time the request arrived at.
+         *
+         * @return the timestamp in milliseconds
+         */
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Provides the time the original request took.
+         *
+         * @return the duration in nanoseconds
+         */
+        long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Provides a hash of the original connection id. Records sharing it
+         * came from the same connection.
+         *
+         * @return the connection hash
+         */
+        int getConnection() {
+            return connection;
+        }
+
+        Object getRequest() {
+            return request;
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of the Json-RPC traffic capture.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface TrafficCaptureMBean {
+
+    /**
+     * Provides the number of requests written to the capture file.
+     *
+     * @return the number of captured requests
+     */
+    long getCaptured();
+
+    /**
+     * Provides the number of sampled requests which were dropped because the
+     * queue was full or writing failed.
+     *
+     * @return the number of dropped requests
+     */
+    long getDropped();
+
+    /**
+     * Provides the number of sampled requests waiting to be written.
+     *
+     * @return the queue size
+     */
+    int getQueueSize();
+
+}
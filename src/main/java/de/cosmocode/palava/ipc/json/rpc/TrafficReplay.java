@@ -0,0 +1,326 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Feeds a capture written by the traffic capture through the locally wired
+ * Json-RPC 2.0 protocols and reports throughput and latency. The whole capture
+ * is read into memory and sorted by arrival first. Every captured connection
+ * gets a connection and a worker thread of its own, workers replay concurrently.
+ * <p>
+ * Preserved are the order of requests within a connection, the concurrency
+ * between connections and, at original speed, the offset of every request from
+ * the first one. Not preserved are overlapping requests of a single connection,
+ * which are replayed one after another and may therefore start late, the order
+ * between connections within the same millisecond, sessions and anything the
+ * capture left out, i.e. unsampled, dropped or redacted data.
+ * Capturing should be disabled while replaying.
+ * </p>
+ *
+ * <pre>
+ * final TrafficReplay.Report report = framework.getInstance(TrafficReplay.class).
+ *     replay(new File("capture.gz"), false);
+ * </pre>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class TrafficReplay {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrafficReplay.class);
+
+    private final JsonRpc2Protocol protocol;
+
+    private final JsonRpc2BatchProtocol batchProtocol;
+
+    @Inject
+    public TrafficReplay(JsonRpc2Protocol protocol, JsonRpc2BatchProtocol batchProtocol) {
+        this.protocol = Preconditions.checkNotNull(protocol, "Protocol");
+        this.batchProtocol = Preconditions.checkNotNull(batchProtocol, "BatchProtocol");
+    }
+
+    /**
+     * Replays the specified capture.
+     *
+     * @param capture the capture file
+     * @param originalSpeed true to keep the captured pace between requests,
+     *        false to replay as fast as possible
+     * @return the report
+     * @throws IOException if reading the capture fails
+     * @throws java.io.InterruptedIOException if the calling thread is interrupted while replaying
+     */
+    public Report replay(File capture, boolean originalSpeed) throws IOException {
+        Preconditions.checkNotNull(capture, "Capture");
+        final List<TrafficCapture.Record> records = read(capture);
+        // stable, records of the same millisecond stay in file order
+        Collections.sort(records, TrafficCapture.Record.ARRIVAL);
+
+        final Map<Integer, Worker> workers = Maps.newLinkedHashMap();
+        for (TrafficCapture.Record record : records) {
+            Worker worker = workers.get(record.getConnection());
+            if (worker == null) {
+                worker = new Worker();
+                workers.put(record.getConnection(), worker);
+            }
+            worker.records.add(record);
+        }
+
+        final long first = records.isEmpty() ? 0 : records.get(0).getTimestamp();
+        final long begin = System.nanoTime();
+        for (Worker worker : workers.values()) {
+            worker.first = first;
+            worker.begin = begin;
+            worker.originalSpeed = originalSpeed;
+        }
+
+        if (!workers.isEmpty()) {
+            final ExecutorService executor = Executors.newFixedThreadPool(workers.size());
+            try {
+                for (Future<Void> future : executor.invokeAll(workers.values())) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying " + capture);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+                for (Worker worker : workers.values()) {
+                    protocol.eventIpcConnectionDestroy(worker.connection);
+                }
+            }
+        }
+
+        final long duration = System.nanoTime() - begin;
+        final long[] latencies = new long[records.size()];
+        int calls = 0;
+        int errors = 0;
+        for (Worker worker : workers.values()) {
+            System.arraycopy(worker.latencies, 0, latencies, calls, worker.latencies.length);
+            calls += worker.latencies.length;
+            errors += worker.errors;
+        }
+
+        final Report report = new Report(latencies, errors, duration);
+        LOG.info("Replayed {}: {}", capture, report);
+        return report;
+    }
+
+    private List<TrafficCapture.Record> read(File capture) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(new FileInputStream(capture))));
+        final List<TrafficCapture.Record> records = Lists.newArrayList();
+        try {
+            while (true) {
+                try {
+                    records.add(TrafficCapture.Record.readFrom(in));
+                } catch (EOFException e) {
+                    return records;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replays the records of a single captured connection in order.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private final class Worker implements Callable<Void> {
+
+        private final List<TrafficCapture.Record> records = Lists.newArrayList();
+
+        private final DetachedConnection connection = WarmUp.newConnection();
+
+        private long first;
+
+        private long begin;
+
+        private boolean originalSpeed;
+
+        private long[] latencies;
+
+        private int errors;
+
+        @Override
+        public Void call() throws InterruptedException {
+            latencies = new long[records.size()];
+            for (int i = 0; i < latencies.length; i++) {
+                final TrafficCapture.Record record = records.get(i);
+                if (originalSpeed) {
+                    final long due = begin + TimeUnit.MILLISECONDS.toNanos(record.getTimestamp() - first);
+                    TimeUnit.NANOSECONDS.sleep(due - System.nanoTime());
+                }
+                final long start = System.nanoTime();
+                errors += execute(record.getRequest(), connection);
+                latencies[i] = System.nanoTime() - start;
+            }
+            return null;
+        }
+
+    }
+
+    private int execute(Object request, DetachedConnection connection) {
+        final Object response;
+        try {
+            if (request instanceof List<?>) {
+                response = batchProtocol.process(List.class.cast(request), connection);
+            } else if (request instanceof Map<?, ?>) {
+                response = protocol.process(Map.class.cast(request), connection);
+            } else {
+                LOG.warn("Skipping unknown request {}", request);
+                return 1;
+            }
+        } catch (ProtocolException e) {
+            LOG.debug("Replaying {} failed: {}", request, e.getMessage());
+            return 1;
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            LOG.debug("Replaying {} failed: {}", request, e.getMessage());
+            return 1;
+        }
+
+        if (response instanceof List<?>) {
+            int errors = 0;
+            for (Object element : List.class.cast(response)) {
+                if (isError(element)) errors++;
+            }
+            return errors;
+        } else {
+            return isError(response) ? 1 : 0;
+        }
+    }
+
+    private static boolean isError(Object response) {
+        return response instanceof Map<?, ?> && Map.class.cast(response).containsKey(JsonRpc.ERROR);
+    }
+
+    /**
+     * Throughput and latency of a replay. Batches count as a single request.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    public static final class Report {
+
+        private final long[] latencies;
+
+        private final int errors;
+
+        private final long duration;
+
+        Report(long[] latencies, int errors, long duration) {
+            this.latencies = latencies;
+            Arrays.sort(latencies);
+            this.errors = errors;
+            this.duration = duration;
+        }
+
+        public int getRequests() {
+            return latencies.length;
+        }
+
+        /**
+         * Provides the number of error responses, including failed batch elements.
+         *
+         * @return the number of errors
+         */
+        public int getErrors() {
+            return errors;
+        }
+
+        /**
+         * Provides the wall clock time of the whole replay.
+         *
+         * @param unit the desired unit
+         * @return the duration
+         */
+        public long getDuration(TimeUnit unit) {
+            return unit.convert(duration, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Provides the number of requests per second.
+         *
+         * @return the throughput
+         */
+        public double getThroughput() {
+            return duration == 0 ? 0 : latencies.length * 1e9 / duration;
+        }
+
+        /**
+         * Provides the latency at the specified percentile.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @param unit the desired unit
+         * @return the latency or 0 if nothing has been replayed
+         * @throws IllegalArgumentException if percentile is out of range
+         */
+        public long getLatency(double percentile, TimeUnit unit) {
+            Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "Percentile must be between 0 and 100");
+            if (latencies.length == 0) return 0;
+            final int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return unit.convert(latencies[Math.max(0, index)], TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Report [requests=%s, errors=%s, duration=%sms, throughput=%.1f/s, " +
+                "p50=%sus, p99=%sus, max=%sus]",
+                getRequests(), errors, getDuration(TimeUnit.MILLISECONDS), getThroughput(),
+                getLatency(50, TimeUnit.MICROSECONDS), getLatency(99, TimeUnit.MICROSECONDS),
+                getLatency(100, TimeUnit.MICROSECONDS));
+        }
+
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcCommandNotAvailableException;
+
+/**
+ * A bounded, time-expiring negative cache of method names which caused an
+ * {@link IpcCommandNotAvailableException}. Calls to cached names are rejected
+ * at the protocol boundary without asking the command executor again.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class UnknownMethods implements UnknownMethodsMBean, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UnknownMethods.class);
+
+    private static final String OBJECT_NAME = "de.cosmocode.palava.ipc.json.rpc:type=UnknownMethods";
+
+    private final ConcurrentMap<String, Long> methods = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final MBeanServer mBeanServer;
+
+    private boolean enabled;
+
+    private int maxSize = 1000;
+
+    private long expirationTime = 1;
+
+    private TimeUnit expirationTimeUnit = TimeUnit.MINUTES;
+
+    @Inject
+    public UnknownMethods(MBeanServer mBeanServer) {
+        this.mBeanServer = Preconditions.checkNotNull(mBeanServer, "MBeanServer");
+    }
+
+    @Inject(optional = true)
+    void setEnabled(@Named(JsonRpcConfig.UNKNOWN_METHODS_ENABLED) boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject(optional = true)
+    void setMaxSize(@Named(JsonRpcConfig.UNKNOWN_METHODS_MAX_SIZE) int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "MaxSize must be positive");
+        this.maxSize = maxSize;
+    }
+
+    @Inject(optional = true)
+    void setExpirationTime(@Named(JsonRpcConfig.UNKNOWN_METHODS_EXPIRATION_TIME) long expirationTime) {
+        Preconditions.checkArgument(expirationTime > 0, "ExpirationTime must be positive");
+        this.expirationTime = expirationTime;
+    }
+
+    @Inject(optional = true)
+    void setExpirationTimeUnit(@Named(JsonRpcConfig.UNKNOWN_METHODS_EXPIRATION_TIME_UNIT) TimeUnit unit) {
+        this.expirationTimeUnit = Preconditions.checkNotNull(unit, "ExpirationTimeUnit");
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (!enabled) return;
+        try {
+            mBeanServer.registerMBean(new StandardMBean(this, UnknownMethodsMBean.class),
+                ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    /**
+     * Checks whether the specified method is known to be unavailable.
+     *
+     * @param method the method name
+     * @return true if calls to this method should be rejected immediately
+     */
+    boolean contains(String method) {
+        if (!enabled) return false;
+        final Long expiresAt = methods.get(method);
+        if (expiresAt == null) {
+            return false;
+        } else if (expiresAt.longValue() - System.nanoTime() > 0) {
+            rejected.incrementAndGet();
+            return true;
+        } else {
+            methods.remove(method, expiresAt);
+            return false;
+        }
+    }
+
+    /**
+     * Remembers the specified method as being unavailable.
+     *
+     * @param method the method name
+     */
+    void add(String method) {
+        if (!enabled) return;
+        if (methods.size() >= maxSize) {
+            // scanners produce an unbounded number of names, starting over is cheaper than LRU bookkeeping
+            LOG.debug("Negative method cache is full, clearing {} entries", methods.size());
+            methods.clear();
+        }
+        methods.put(method, System.nanoTime() + expirationTimeUnit.toNanos(expirationTime));
+    }
+
+    @Override
+    public int getSize() {
+        return methods.size();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void invalidate() {
+        methods.clear();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (!enabled) return;
+        try {
+            mBeanServer.unregisterMBean(ObjectName.getInstance(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+}
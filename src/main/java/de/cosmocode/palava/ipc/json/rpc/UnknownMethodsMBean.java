@@ -0,0 +1,46 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+/**
+ * JMX interface of the Json-RPC negative method cache.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public interface UnknownMethodsMBean {
+
+    /**
+     * Provides the number of method names currently known to be unavailable.
+     *
+     * @return the number of cached method names
+     */
+    int getSize();
+
+    /**
+     * Provides the number of calls rejected without asking the command executor.
+     *
+     * @return the number of rejected calls
+     */
+    long getRejected();
+
+    /**
+     * Forgets all cached method names, e.g. after new commands have been deployed.
+     */
+    void invalidate();
+
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.IpcSession;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Replays the bound {@link WarmUpCall}s through a protocol before it registers
+ * itself, until the duration of a round stabilizes or a limit is reached. Warm-up
+ * is skipped unless at least one call is bound and never fails the startup.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class WarmUp {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarmUp.class);
+
+    /**
+     * Number of consecutive rounds within the tolerance which count as stable.
+     */
+    private static final int STABLE_ROUNDS = 3;
+
+    /**
+     * The connection context key marking warm-up connections.
+     */
+    static final Object KEY = WarmUp.class;
+
+    private Set<WarmUpCall> calls = ImmutableSet.of();
+
+    private int maxRounds = 100;
+
+    private long maxDuration = 30;
+
+    private TimeUnit maxDurationUnit = TimeUnit.SECONDS;
+
+    private int tolerance = 10;
+
+    @Inject(optional = true)
+    void setCalls(Set<WarmUpCall> calls) {
+        this.calls = ImmutableSet.copyOf(calls);
+    }
+
+    @Inject(optional = true)
+    void setMaxRounds(@Named(JsonRpcConfig.WARM_UP_MAX_ROUNDS) int maxRounds) {
+        Preconditions.checkArgument(maxRounds > 0, "MaxRounds must be positive");
+        this.maxRounds = maxRounds;
+    }
+
+    @Inject(optional = true)
+    void setMaxDuration(@Named(JsonRpcConfig.WARM_UP_MAX_DURATION) long maxDuration) {
+        Preconditions.checkArgument(maxDuration > 0, "MaxDuration must be positive");
+        this.maxDuration = maxDuration;
+    }
+
+    @Inject(optional = true)
+    void setMaxDurationUnit(@Named(JsonRpcConfig.WARM_UP_MAX_DURATION_UNIT) TimeUnit maxDurationUnit) {
+        this.maxDurationUnit = Preconditions.checkNotNull(maxDurationUnit, "MaxDurationUnit");
+    }
+
+    @Inject(optional = true)
+    void setTolerance(@Named(JsonRpcConfig.WARM_UP_TOLERANCE) int tolerance) {
+        Preconditions.checkArgument(tolerance >= 0, "Tolerance must not be negative");
+        this.tolerance = tolerance;
+    }
+
+    boolean isEnabled() {
+        return !calls.isEmpty();
+    }
+
+    /**
+     * Creates the requests of all bound calls for the specified protocol version.
+     *
+     * @param version the protocol version
+     * @return the requests, possibly empty
+     */
+    List<Map<String, Object>> requestsOf(String version) {
+        final List<Map<String, Object>> requests = Lists.newArrayListWithCapacity(calls.size());
+        int id = 0;
+        for (WarmUpCall call : calls) {
+            final Map<String, Object> request = call.toRequest(version, id++);
+            if (request != null) {
+                requests.add(request);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Creates a connection which is not backed by any client.
+     *
+     * @return a new connection
+     */
+    static DetachedConnection newConnection() {
+        return DetachedConnection.class.cast(Proxy.newProxyInstance(
+            DetachedConnection.class.getClassLoader(), new Class<?>[] {DetachedConnection.class},
+            new WarmUpConnection()));
+    }
+
+    /**
+     * Creates a connection for warm-up calls, marked using {@link #KEY}. Calls on it
+     * bypass the idempotency cache, the circuit breakers and the rate limiter, they
+     * must neither leave state behind nor be rejected by it.
+     *
+     * @return a new warm-up connection
+     */
+    static DetachedConnection newWarmUpConnection() {
+        final DetachedConnection connection = newConnection();
+        connection.set(KEY, Boolean.TRUE);
+        return connection;
+    }
+
+    /**
+     * Checks whether the specified connection, or the one behind a stateless view,
+     * has been created by {@link #newWarmUpConnection()}.
+     *
+     * @param connection the connection
+     * @return true if calls on this connection are warm-up calls
+     */
+    static boolean isWarmUp(IpcConnection connection) {
+        return Boolean.TRUE.equals(connection.get(KEY));
+    }
+
+    /**
+     * Runs the specified round until it stabilizes.
+     *
+     * @param name the name of the warmed up protocol, used for logging
+     * @param round the round
+     */
+    void run(String name, Round round) {
+        LOG.info("Warming up {} using {}", name, calls);
+        final long start = System.nanoTime();
+        final long deadline = start + maxDurationUnit.toNanos(maxDuration);
+        long previous = 0;
+        int rounds = 0;
+        int stable = 0;
+
+        try {
+            while (rounds < maxRounds && stable < STABLE_ROUNDS && System.nanoTime() - deadline < 0) {
+                final long roundStart = System.nanoTime();
+                round.run();
+                final long duration = System.nanoTime() - roundStart;
+                rounds++;
+                if (rounds > 1 && Math.abs(duration - previous) * 100 <= previous * tolerance) {
+                    stable++;
+                } else {
+                    stable = 0;
+                }
+                previous = duration;
+            }
+        } catch (ProtocolException e) {
+            LOG.warn("Warm-up of " + name + " failed, continuing cold", e);
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            LOG.warn("Warm-up of " + name + " failed, continuing cold", e);
+        }
+
+        LOG.info("Warmed up {} in {}ms, {} rounds, {}, last round took {} microseconds", new Object[] {
+            name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), rounds,
+            stable >= STABLE_ROUNDS ? "stable" : "not stable", TimeUnit.NANOSECONDS.toMicros(previous)
+        });
+    }
+
+    /**
+     * A single pass over all warm-up calls.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    interface Round {
+
+        /**
+         * Executes all warm-up calls once.
+         *
+         * @throws ProtocolException if the protocol fails
+         */
+        void run() throws ProtocolException;
+
+    }
+
+    /**
+     * Handler of warm-up connection proxies.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class WarmUpConnection implements InvocationHandler {
+
+        private final String connectionId = "warm-up-" + System.identityHashCode(this);
+
+        private final ConcurrentMap<Object, Object> context = new ConcurrentHashMap<Object, Object>();
+
+        private volatile IpcSession session;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if ("getConnectionId".equals(name)) {
+                return connectionId;
+            } else if ("getSession".equals(name)) {
+                return session;
+            } else if ("isAttached".equals(name)) {
+                return session != null;
+            } else if ("attachTo".equals(name)) {
+                session = IpcSession.class.cast(args[0]);
+                return null;
+            } else if ("set".equals(name)) {
+                context.put(args[0], args[1]);
+                return null;
+            } else if ("get".equals(name)) {
+                return context.get(args[0]);
+            } else if ("contains".equals(name)) {
+                return context.containsKey(args[0]);
+            } else if ("remove".equals(name)) {
+                return context.remove(args[0]);
+            } else if ("putAll".equals(name)) {
+                final Map<?, ?> map = Map.class.cast(args[0]);
+                context.putAll(map);
+                return null;
+            } else if ("clear".equals(name)) {
+                context.clear();
+                return null;
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return "WarmUpConnection [connectionId=" + connectionId + "]";
+            } else {
+                throw new UnsupportedOperationException(name);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Describes a synthetic call which is replayed during startup to warm up command
+ * resolution, class loading and the JIT before the protocols accept traffic.
+ * Warm-up calls are bound as a {@code Set<WarmUpCall>} and are executed many
+ * times against a connection of their own, so they should be cheap and free of
+ * side effects.
+ *
+ * <pre>
+ * WarmUpCall.of("com.example.Search").
+ *     params(ImmutableMap.of("query", "warm-up", "limit", 1));
+ * </pre>
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class WarmUpCall {
+
+    private final String method;
+
+    private final Object params;
+
+    private WarmUpCall(String method, Object params) {
+        this.method = method;
+        this.params = params;
+    }
+
+    /**
+     * Creates a new warm-up call without params.
+     *
+     * @param method the method name
+     * @return a new warm-up call
+     * @throws NullPointerException if method is null
+     */
+    public static WarmUpCall of(String method) {
+        return new WarmUpCall(Preconditions.checkNotNull(method, "Method"), null);
+    }
+
+    /**
+     * Creates a copy of this call with the specified positional params.
+     *
+     * @param positional the params
+     * @return a new warm-up call
+     * @throws NullPointerException if positional is null
+     */
+    public WarmUpCall params(List<?> positional) {
+        return new WarmUpCall(method, ImmutableList.copyOf(positional));
+    }
+
+    /**
+     * Creates a copy of this call with the specified named params. Calls with named
+     * params are skipped by the Json-RPC 1.0 protocol.
+     *
+     * @param named the params
+     * @return a new warm-up call
+     * @throws NullPointerException if named is null
+     */
+    public WarmUpCall params(Map<String, ?> named) {
+        return new WarmUpCall(method, ImmutableMap.copyOf(named));
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Creates the request of this call for the specified protocol version.
+     *
+     * @param version the protocol version, either 1.0 or 2.0
+     * @param id the request id
+     * @return a new request or null if this call can't be expressed in the given version
+     */
+    Map<String, Object> toRequest(String version, Object id) {
+        final Map<String, Object> request = Maps.newHashMap();
+        request.put(JsonRpc.METHOD, method);
+        request.put(JsonRpc.ID, id);
+        if (JsonRpc2Protocol.VERSION.equals(version)) {
+            request.put(JsonRpc.JSON_RPC, version);
+            if (params != null) {
+                request.put(JsonRpc.PARAMS, params);
+            }
+        } else if (params instanceof Map<?, ?>) {
+            return null;
+        } else {
+            request.put(JsonRpc.PARAMS, params == null ? ImmutableList.of() : params);
+        }
+        return request;
+    }
+
+    @Override
+    public String toString() {
+        return method + (params == null ? "" : params.toString());
+    }
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.ipc.IpcArguments;
+import de.cosmocode.palava.ipc.MapIpcArguments;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests {@link Attachments} and their integration into {@link JsonRpc2Protocol}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class AttachmentsTest {
+
+    private static final String ECHO = Echo.class.getName();
+
+    private Framework framework;
+
+    private JsonRpc2Protocol protocol;
+
+    /**
+     * Enables attachments.
+     */
+    @Before
+    public void before() {
+        framework = Palava.newFramework();
+        framework.getInstance(AttachmentSpool.class).setEnabled(true);
+        protocol = framework.getInstance(JsonRpc2Protocol.class);
+    }
+
+    private Map<String, Object> newCall(Object params, Map<String, Object> attachments) {
+        final Map<String, Object> call = Maps.newHashMap();
+        call.put(JsonRpc.JSON_RPC, "2.0");
+        call.put(JsonRpc.METHOD, ECHO);
+        call.put(JsonRpc.ID, 1);
+        call.put(JsonRpc.PARAMS, params);
+        call.put(JsonRpc.ATTACHMENTS, attachments);
+        return call;
+    }
+
+    private ErrorCode errorOf(Object response) {
+        final Map<?, ?> error = Map.class.cast(Map.class.cast(response).get(JsonRpc.ERROR));
+        return error == null ? null : ErrorCode.of(Number.class.cast(error.get(JsonRpc.CODE)).intValue());
+    }
+
+    /**
+     * Tests that copies of positional arguments stay positional.
+     */
+    @Test
+    public void copyOfPositional() {
+        final IpcArguments copy = Attachments.copyOf(new JsonRpcArguments(ImmutableList.of("a", "b")));
+        Assert.assertTrue(copy instanceof JsonRpcArguments);
+        Assert.assertEquals("b", copy.get(1));
+    }
+
+    /**
+     * Tests that copies of named arguments don't write through.
+     */
+    @Test
+    public void copyOfNamed() {
+        final Map<String, Object> params = Maps.newHashMap();
+        params.put("a", 1);
+        final IpcArguments copy = Attachments.copyOf(new MapIpcArguments(params));
+        copy.put("b", 2);
+        Assert.assertEquals(1, copy.get("a"));
+        Assert.assertFalse(params.containsKey("b"));
+    }
+
+    /**
+     * Tests that merged attachments are read-only.
+     */
+    @Test
+    public void mergeInto() {
+        final ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, 3});
+        final Attachments unit = new Attachments(ImmutableMap.of("file", buffer), ImmutableList.<File>of());
+        final IpcArguments arguments = Attachments.copyOf(new JsonRpcArguments(ImmutableList.of("a")));
+        unit.mergeInto(arguments);
+        final ByteBuffer merged = ByteBuffer.class.cast(arguments.get("file"));
+        Assert.assertTrue(merged.isReadOnly());
+        Assert.assertEquals(3, merged.remaining());
+        Assert.assertEquals("a", arguments.get(0));
+    }
+
+    /**
+     * Tests that attachments are passed next to positional params.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void positional() throws ProtocolException {
+        final Object response = protocol.process(newCall(ImmutableList.of(1, 2),
+            ImmutableMap.<String, Object>of("file", "YWJj")), WarmUp.newConnection());
+        final Map<?, ?> result = Map.class.cast(Map.class.cast(response).get(JsonRpc.RESULT));
+        Assert.assertEquals(1, result.get("0"));
+        Assert.assertEquals(2, result.get("1"));
+        final ByteBuffer file = ByteBuffer.class.cast(result.get("file"));
+        Assert.assertEquals(3, file.remaining());
+        Assert.assertEquals('a', file.get(0));
+    }
+
+    /**
+     * Tests that attachments of calls rejected by a bulkhead are never decoded.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void spoolAfterAdmission() throws ProtocolException {
+        final Bulkheads bulkheads = framework.getInstance(Bulkheads.class);
+        bulkheads.setBulkheads(ImmutableSet.of(Bulkhead.of("echo", ".*Echo").maxConcurrentCalls(1)));
+        Assert.assertTrue(bulkheads.tryAcquire(ECHO));
+        final Map<String, Object> malformed = ImmutableMap.<String, Object>of("file", "!!!!");
+
+        final Object rejected = protocol.process(newCall(ImmutableList.of(), malformed), WarmUp.newConnection());
+        Assert.assertEquals(ErrorCode.BULKHEAD_FULL, errorOf(rejected));
+
+        bulkheads.release(ECHO);
+        final Object admitted = protocol.process(newCall(ImmutableList.of(), malformed), WarmUp.newConnection());
+        Assert.assertEquals(ErrorCode.INVALID_PARAMS, errorOf(admitted));
+    }
+
+}
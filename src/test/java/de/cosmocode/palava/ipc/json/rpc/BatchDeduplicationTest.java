@@ -0,0 +1,174 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests the deduplication of identical calls in {@link JsonRpc2BatchProtocol}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class BatchDeduplicationTest implements UnitProvider<JsonRpc2BatchProtocol> {
+
+    private static final String COUNT = Count.class.getName();
+
+    @Override
+    public JsonRpc2BatchProtocol unit() {
+        final JsonRpc2BatchProtocol unit = Palava.newFramework().getInstance(JsonRpc2BatchProtocol.class);
+        unit.setDeduplicatedMethods(".*\\.Count");
+        return unit;
+    }
+
+    /**
+     * Resets the execution counter.
+     */
+    @Before
+    public void before() {
+        Count.EXECUTIONS.set(0);
+    }
+
+    private Map<String, Object> newCall(Object id, String method, Object params) {
+        final Map<String, Object> call = Maps.newHashMap();
+        call.put(JsonRpc.JSON_RPC, "2.0");
+        call.put(JsonRpc.METHOD, method);
+        if (id != null) {
+            call.put(JsonRpc.ID, id);
+        }
+        if (params != null) {
+            call.put(JsonRpc.PARAMS, params);
+        }
+        return call;
+    }
+
+    private Object resultOf(Object response) {
+        return Map.class.cast(Map.class.cast(response).get(JsonRpc.RESULT)).get("executions");
+    }
+
+    private Object idOf(Object response) {
+        return Map.class.cast(response).get(JsonRpc.ID);
+    }
+
+    /**
+     * Tests that identical calls are executed once and answered with their own ids.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void hit() throws ProtocolException {
+        final List<?> responses = List.class.cast(unit().process(ImmutableList.of(
+            newCall(1, COUNT, ImmutableMap.of("a", 1)),
+            newCall(2, COUNT, ImmutableMap.of("a", 1))
+        ), WarmUp.newConnection()));
+        Assert.assertEquals(1, Count.EXECUTIONS.get());
+        Assert.assertEquals(1, idOf(responses.get(0)));
+        Assert.assertEquals(2, idOf(responses.get(1)));
+        Assert.assertEquals(1, resultOf(responses.get(0)));
+        Assert.assertEquals(1, resultOf(responses.get(1)));
+    }
+
+    /**
+     * Tests that calls with different params are executed separately.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void differentParams() throws ProtocolException {
+        final List<?> responses = List.class.cast(unit().process(ImmutableList.of(
+            newCall(1, COUNT, ImmutableMap.of("a", 1)),
+            newCall(2, COUNT, ImmutableMap.of("a", 2))
+        ), WarmUp.newConnection()));
+        Assert.assertEquals(2, Count.EXECUTIONS.get());
+        Assert.assertEquals(1, resultOf(responses.get(0)));
+        Assert.assertEquals(2, resultOf(responses.get(1)));
+    }
+
+    /**
+     * Tests that calls with different attachments are executed separately.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void differentAttachments() throws ProtocolException {
+        final Framework framework = Palava.newFramework();
+        framework.getInstance(AttachmentSpool.class).setEnabled(true);
+        final JsonRpc2BatchProtocol unit = framework.getInstance(JsonRpc2BatchProtocol.class);
+        unit.setDeduplicatedMethods(".*\\.Count");
+        final Map<String, Object> first = newCall(1, COUNT, ImmutableMap.of("a", 1));
+        first.put(JsonRpc.ATTACHMENTS, ImmutableMap.of("file", "AAEC"));
+        final Map<String, Object> second = newCall(2, COUNT, ImmutableMap.of("a", 1));
+        second.put(JsonRpc.ATTACHMENTS, ImmutableMap.of("file", "AwQF"));
+        final Map<String, Object> third = newCall(3, COUNT, ImmutableMap.of("a", 1));
+        third.put(JsonRpc.ATTACHMENTS, ImmutableMap.of("file", "AAEC"));
+        final List<?> responses = List.class.cast(unit.process(ImmutableList.of(first, second, third),
+            WarmUp.newConnection()));
+        Assert.assertEquals(2, Count.EXECUTIONS.get());
+        Assert.assertEquals(1, resultOf(responses.get(0)));
+        Assert.assertEquals(2, resultOf(responses.get(1)));
+        Assert.assertEquals(1, resultOf(responses.get(2)));
+    }
+
+    /**
+     * Tests that notifications and calls carrying an idempotency key are always executed.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void excluded() throws ProtocolException {
+        final Map<String, Object> keyed = newCall(3, COUNT, ImmutableMap.of("a", 1));
+        keyed.put(JsonRpc.IDEMPOTENCY_KEY, "key");
+        unit().process(ImmutableList.of(
+            newCall(null, COUNT, ImmutableMap.of("a", 1)),
+            newCall(1, COUNT, ImmutableMap.of("a", 1)),
+            keyed
+        ), WarmUp.newConnection());
+        Assert.assertEquals(3, Count.EXECUTIONS.get());
+    }
+
+    /**
+     * Tests that calls to methods not matching the configured pattern are always executed.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void miss() throws ProtocolException {
+        final JsonRpc2BatchProtocol unit = unit();
+        unit.setDeduplicatedMethods(".*\\.Echo");
+        final List<?> responses = List.class.cast(unit.process(ImmutableList.of(
+            newCall(1, COUNT, null),
+            newCall(2, COUNT, null)
+        ), WarmUp.newConnection()));
+        Assert.assertEquals(2, Count.EXECUTIONS.get());
+        Assert.assertEquals(2, resultOf(responses.get(1)));
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.ipc.IpcArguments;
+import de.cosmocode.palava.ipc.IpcCall;
+import de.cosmocode.palava.ipc.IpcCommandExecutionException;
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.MapIpcArguments;
+
+/**
+ * Tests {@link BulkCommand}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class BulkCommandTest implements UnitProvider<BulkCommand> {
+
+    private final List<Integer> executions = Lists.newArrayList();
+    
+    @Override
+    public BulkCommand unit() {
+        return new BulkCommand() {
+            
+            @Override
+            protected List<? extends Map<String, Object>> executeAll(IpcCall call, List<IpcArguments> arguments) {
+                executions.add(arguments.size());
+                final List<Map<String, Object>> results = Lists.newArrayList();
+                for (IpcArguments argument : arguments) {
+                    results.add(ImmutableMap.<String, Object>of("value", argument.get("value")));
+                }
+                return results;
+            }
+            
+        };
+    }
+    
+    private IpcCall newCall(Object value) {
+        final IpcConnection connection = IpcConnection.class.cast(Proxy.newProxyInstance(
+            IpcConnection.class.getClassLoader(), new Class<?>[] {IpcConnection.class}, new InvocationHandler() {
+                
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return null;
+                }
+                
+            }));
+        final Map<String, Object> arguments = Maps.newHashMap();
+        arguments.put("value", value);
+        return new JsonRpcCall(new MapIpcArguments(arguments), connection);
+    }
+    
+    /**
+     * Tests that regular calls are executed as a bulk of one.
+     * 
+     * @throws IpcCommandExecutionException should not happen
+     */
+    @Test
+    public void single() throws IpcCommandExecutionException {
+        final Map<String, Object> result = Maps.newHashMap();
+        unit().execute(newCall(1), result);
+        Assert.assertEquals(ImmutableMap.of("value", 1), result);
+        Assert.assertNull(BulkCommand.resultsOf(result));
+        Assert.assertEquals(ImmutableList.of(1), executions);
+    }
+    
+    /**
+     * Tests that all argument sets of a bulk are passed at once and results keep their order.
+     * 
+     * @throws IpcCommandExecutionException should not happen
+     */
+    @Test
+    public void bulk() throws IpcCommandExecutionException {
+        final IpcCall call = newCall(null);
+        final List<IpcArguments> arguments = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            arguments.add(newCall(i).getArguments());
+        }
+        BulkCommand.bind(call, arguments);
+        final Map<String, Object> result = Maps.newHashMap();
+        unit().execute(call, result);
+        Assert.assertEquals(ImmutableList.of(
+            ImmutableMap.of("value", 0),
+            ImmutableMap.of("value", 1),
+            ImmutableMap.of("value", 2)
+        ), BulkCommand.resultsOf(result));
+        Assert.assertEquals(ImmutableList.of(3), executions);
+    }
+    
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link Bulkheads}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class BulkheadsTest implements UnitProvider<Bulkheads> {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Override
+    public Bulkheads unit() {
+        final Bulkheads unit = new Bulkheads(MBeanServerFactory.newMBeanServer());
+        unit.setBulkheads(ImmutableSet.of(Bulkhead.of("slow", "slow\\..*").maxConcurrentCalls(2)));
+        return unit;
+    }
+
+    /**
+     * Tests that calls are rejected once all permits are taken and admitted again after a release.
+     */
+    @Test
+    public void exhaustion() {
+        final Bulkheads unit = unit();
+        Assert.assertTrue(unit.tryAcquire("slow.Command"));
+        Assert.assertTrue(unit.tryAcquire("slow.Other"));
+        Assert.assertFalse(unit.tryAcquire("slow.Command"));
+        unit.release("slow.Other");
+        Assert.assertTrue(unit.tryAcquire("slow.Command"));
+        Assert.assertFalse(unit.tryAcquire("slow.Command"));
+    }
+
+    /**
+     * Tests that methods outside of any bulkhead are never limited.
+     */
+    @Test
+    public void unlimited() {
+        final Bulkheads unit = unit();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(unit.tryAcquire("fast.Command"));
+        }
+        Assert.assertTrue(unit.tryAcquire("slow.Command"));
+    }
+
+    /**
+     * Tests that waiting calls take the permit of a released call and surplus calls are rejected.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void waiting() throws Exception {
+        final MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+        final Bulkheads unit = new Bulkheads(mBeanServer);
+        unit.setBulkheads(ImmutableSet.of(Bulkhead.of("slow", "slow\\..*").
+            maxConcurrentCalls(1).maxWaitingCalls(1).maxWait(1, TimeUnit.MINUTES)));
+        unit.initialize();
+        final ObjectName name = ObjectName.getInstance(
+            "de.cosmocode.palava.ipc.json.rpc:type=Bulkhead,name=" + ObjectName.quote("slow"));
+        Assert.assertTrue(unit.tryAcquire("slow.Command"));
+
+        final Future<Boolean> waiter = executor.submit(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() {
+                return unit.tryAcquire("slow.Command");
+            }
+
+        });
+        while (Number.class.cast(mBeanServer.getAttribute(name, "WaitingCalls")).intValue() == 0) {
+            Thread.sleep(1);
+        }
+        Assert.assertFalse(unit.tryAcquire("slow.Command"));
+        unit.release("slow.Command");
+        Assert.assertTrue(waiter.get());
+        Assert.assertEquals(1, Number.class.cast(mBeanServer.getAttribute(name, "ActiveCalls")).intValue());
+        Assert.assertEquals(1L, mBeanServer.getAttribute(name, "Rejected"));
+        unit.dispose();
+    }
+
+    /**
+     * Shuts down the executor.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @After
+    public void after() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link CallChain}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class CallChainTest implements UnitProvider<CallChain> {
+
+    private static Map<String, Object> call(Object id, Object params) {
+        return ImmutableMap.of(
+            JsonRpc.JSON_RPC, "2.0",
+            JsonRpc.METHOD, Echo.class.getName(),
+            JsonRpc.PARAMS, params,
+            JsonRpc.ID, id
+        );
+    }
+    
+    private static Map<String, Object> call(Object id, Object params, Map<String, ?> refs) {
+        return ImmutableMap.of(
+            JsonRpc.JSON_RPC, "2.0",
+            JsonRpc.METHOD, Echo.class.getName(),
+            JsonRpc.PARAMS, params,
+            JsonRpc.ID, id,
+            JsonRpc.REFS, refs
+        );
+    }
+    
+    private static Map<String, Object> ref(Object id, String path) {
+        return ImmutableMap.<String, Object>of(JsonRpc.ID, id, JsonRpc.PATH, path);
+    }
+    
+    @Override
+    public CallChain unit() {
+        return CallChain.of(ImmutableList.of(
+            call("user", ImmutableMap.of("name", "jane")),
+            call("orders", ImmutableMap.of("userId", -1), ImmutableMap.of("userId", ref("user", "id"))),
+            call("first", ImmutableMap.of("order", ImmutableMap.of("id", -1, "full", true)), 
+                ImmutableMap.of("order.id", ref("orders", "items.0.id"))),
+            call("other", ImmutableMap.of())
+        ));
+    }
+    
+    /**
+     * Tests that independent calls share a level and dependent ones follow in order.
+     */
+    @Test
+    public void levels() {
+        Assert.assertEquals(ImmutableList.of(
+            ImmutableList.of(0, 3),
+            ImmutableList.of(1),
+            ImmutableList.of(2)
+        ), unit().getLevels());
+    }
+    
+    /**
+     * Tests {@link CallChain#resolve(int, Object[])} with nested paths.
+     */
+    @Test
+    public void resolve() {
+        final CallChain unit = unit();
+        final Object[] responses = new Object[4];
+        responses[0] = ImmutableMap.of(JsonRpc.RESULT, ImmutableMap.of("id", 42));
+        responses[1] = ImmutableMap.of(JsonRpc.RESULT, ImmutableMap.of(
+            "items", ImmutableList.of(ImmutableMap.of("id", 7))));
+        final Map<?, ?> orders = Map.class.cast(unit.resolve(1, responses));
+        Assert.assertEquals(ImmutableMap.of("userId", 42), orders.get(JsonRpc.PARAMS));
+        Assert.assertFalse(orders.containsKey(JsonRpc.REFS));
+        Assert.assertEquals(ImmutableMap.of("order", ImmutableMap.of("id", 7, "full", true)), 
+            Map.class.cast(unit.resolve(2, responses)).get(JsonRpc.PARAMS));
+    }
+    
+    /**
+     * Tests that references into positional params replace the element at that index.
+     */
+    @Test
+    public void resolvePositional() {
+        final CallChain unit = CallChain.of(ImmutableList.of(
+            call("user", ImmutableList.of()),
+            call("orders", ImmutableList.of("open", -1), ImmutableMap.of("1", ref("user", "id")))
+        ));
+        final Object[] responses = {ImmutableMap.of(JsonRpc.RESULT, ImmutableMap.of("id", 42)), null};
+        Assert.assertEquals(ImmutableList.of("open", 42), Map.class.cast(unit.resolve(1, responses)).get(JsonRpc.PARAMS));
+    }
+    
+    /**
+     * Tests that calls without references are passed on untouched.
+     */
+    @Test
+    public void resolveWithoutRefs() {
+        final Map<String, Object> call = ImmutableMap.<String, Object>of(
+            JsonRpc.JSON_RPC, "2.0",
+            JsonRpc.METHOD, Echo.class.getName(),
+            JsonRpc.ID, "plain"
+        );
+        final CallChain unit = CallChain.of(ImmutableList.of(
+            call,
+            call("dependent", ImmutableList.of(-1), ImmutableMap.of("0", ref("plain", "id")))
+        ));
+        Assert.assertSame(call, unit.resolve(0, new Object[2]));
+    }
+    
+    /**
+     * Tests that batches without references are not chained.
+     */
+    @Test
+    public void unchained() {
+        final List<?> batch = ImmutableList.of(call(1, ImmutableList.of()), call(2, ImmutableList.of()));
+        Assert.assertNull(CallChain.of(batch));
+    }
+    
+    /**
+     * Tests that params which merely look like references are ordinary data.
+     */
+    @Test
+    public void dataLookingLikeReference() {
+        final List<?> batch = ImmutableList.of(
+            call(1, ImmutableList.of()),
+            call(2, ImmutableList.of(ImmutableMap.of("$ref", 1, JsonRpc.PATH, "id")))
+        );
+        Assert.assertNull(CallChain.of(batch));
+    }
+    
+    /**
+     * Tests that duplicate ids are accepted as long as nobody refers to them.
+     */
+    @Test
+    public void unreferencedDuplicates() {
+        final CallChain unit = CallChain.of(ImmutableList.of(
+            call("user", ImmutableList.of()),
+            call("dup", ImmutableList.of()),
+            call("dup", ImmutableList.of()),
+            call("orders", ImmutableList.of(-1), ImmutableMap.of("0", ref("user", "id")))
+        ));
+        Assert.assertEquals(ImmutableList.of(
+            ImmutableList.of(0, 1, 2),
+            ImmutableList.of(3)
+        ), unit.getLevels());
+    }
+    
+    /**
+     * Tests that references to duplicate ids are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void referencedDuplicates() {
+        CallChain.of(ImmutableList.of(
+            call("dup", ImmutableList.of()),
+            call("dup", ImmutableList.of()),
+            call("orders", ImmutableList.of(-1), ImmutableMap.of("0", ref("dup", "id")))
+        ));
+    }
+    
+    /**
+     * Tests that a long linear chain yields one level per call.
+     */
+    @Test
+    public void linear() {
+        final List<Object> batch = Lists.newArrayList();
+        batch.add(call(0, ImmutableList.of()));
+        for (int i = 1; i < 5000; i++) {
+            batch.add(call(i, ImmutableList.of(-1), ImmutableMap.of("0", ref(i - 1, "id"))));
+        }
+        final List<List<Integer>> levels = CallChain.of(batch).getLevels();
+        Assert.assertEquals(5000, levels.size());
+        Assert.assertEquals(ImmutableList.of(4999), levels.get(4999));
+    }
+    
+    /**
+     * Tests that cyclic references are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void cycle() {
+        CallChain.of(ImmutableList.of(
+            call(1, ImmutableList.of(-1), ImmutableMap.of("0", ref(2, "id"))),
+            call(2, ImmutableList.of(-1), ImmutableMap.of("0", ref(1, "id")))
+        ));
+    }
+    
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests that both protocol versions report calls to {@link CallProbe}s alike.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class CallProbesTest {
+
+    private final List<String> reported = Lists.newArrayList();
+
+    private Framework framework;
+
+    /**
+     * Binds a recording probe.
+     */
+    @Before
+    public void before() {
+        framework = Palava.newFramework();
+        framework.getInstance(CallProbes.class).setProbe(new CallProbe() {
+
+            @Override
+            public void call(String version, String method, ErrorCode outcome, long duration) {
+                reported.add(version + " " + method.substring(method.lastIndexOf('.') + 1) + " " + outcome);
+            }
+
+            @Override
+            public void batch(int size, long duration) {
+                reported.add("batch " + size);
+            }
+
+        });
+    }
+
+    private Object process(String version, String method, List<?> params) throws ProtocolException {
+        final Map<String, Object> request = Maps.newHashMap();
+        request.put(JsonRpc.METHOD, method);
+        request.put(JsonRpc.PARAMS, params);
+        request.put(JsonRpc.ID, 1);
+        if ("1.0".equals(version)) {
+            return framework.getInstance(JsonRpcProtocol.class).process(request, WarmUp.newConnection());
+        } else {
+            request.put(JsonRpc.JSON_RPC, version);
+            return framework.getInstance(JsonRpc2Protocol.class).process(request, WarmUp.newConnection());
+        }
+    }
+
+    private void processAll(String version) throws ProtocolException {
+        process(version, Echo.class.getName(), ImmutableList.of());
+        process(version, Fail.class.getName(), ImmutableList.of());
+        process(version, "unknown.Method", ImmutableList.of());
+    }
+
+    /**
+     * Tests the reported outcomes of json-rpc 1.0 calls, whose errors are
+     * rendered as raw exceptions by default.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void version1() throws ProtocolException {
+        processAll("1.0");
+        Assert.assertEquals(ImmutableList.of(
+            "1.0 Echo null", "1.0 Fail INTERNAL_ERROR", "1.0 Method METHOD_NOT_FOUND"
+        ), reported);
+    }
+
+    /**
+     * Tests the reported outcomes of json-rpc 2.0 calls.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void version2() throws ProtocolException {
+        processAll("2.0");
+        Assert.assertEquals(ImmutableList.of(
+            "2.0 Echo null", "2.0 Fail INTERNAL_ERROR", "2.0 Method METHOD_NOT_FOUND"
+        ), reported);
+    }
+
+    /**
+     * Tests that calls rejected before admission are not reported by either version.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void earlyRejection() throws ProtocolException {
+        framework.getInstance(RequestLimits.class).setMaxParamsElements(0);
+        process("1.0", Echo.class.getName(), ImmutableList.of(1));
+        process("2.0", Echo.class.getName(), ImmutableList.of(1));
+        Assert.assertTrue(reported.isEmpty());
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link CircuitBreaker}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class CircuitBreakerTest implements UnitProvider<CircuitBreaker> {
+
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(1);
+    
+    private static final long OPEN = TimeUnit.SECONDS.toNanos(30);
+    
+    @Override
+    public CircuitBreaker unit() {
+        return new CircuitBreaker(10, 4, 50, SLOW, OPEN);
+    }
+    
+    /**
+     * Tests that a breaker stays closed until the minimum number of calls is reached.
+     */
+    @Test
+    public void minimumCalls() {
+        final CircuitBreaker unit = unit();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(CircuitBreaker.PASSED, unit.tryAcquire(0));
+            unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.FAILURE, 0, 0);
+        }
+        Assert.assertSame(CircuitBreaker.State.CLOSED, unit.getState());
+        unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.FAILURE, 0, 0);
+        Assert.assertSame(CircuitBreaker.State.OPEN, unit.getState());
+        Assert.assertEquals(CircuitBreaker.DENIED, unit.tryAcquire(OPEN - 1));
+    }
+    
+    /**
+     * Tests that a failure rate equal to the threshold opens the breaker.
+     */
+    @Test
+    public void threshold() {
+        final CircuitBreaker unit = unit();
+        unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.SUCCESS, 0, 0);
+        unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.SUCCESS, 0, 0);
+        unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.FAILURE, 0, 0);
+        Assert.assertSame(CircuitBreaker.State.CLOSED, unit.getState());
+        unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.FAILURE, 0, 0);
+        Assert.assertSame(CircuitBreaker.State.OPEN, unit.getState());
+    }
+    
+    /**
+     * Tests that slow successful calls count as failures.
+     */
+    @Test
+    public void slowCalls() {
+        final CircuitBreaker unit = unit();
+        for (int i = 0; i < 4; i++) {
+            unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.SUCCESS, SLOW, 0);
+        }
+        Assert.assertSame(CircuitBreaker.State.OPEN, unit.getState());
+    }
+    
+    /**
+     * Tests that ignored outcomes do not affect the failure rate.
+     */
+    @Test
+    public void ignored() {
+        final CircuitBreaker unit = unit();
+        for (int i = 0; i < 10; i++) {
+            unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.IGNORED, 0, 0);
+        }
+        Assert.assertSame(CircuitBreaker.State.CLOSED, unit.getState());
+    }
+    
+    /**
+     * Tests that a half-open breaker lets exactly one probe pass and closes on success.
+     */
+    @Test
+    public void halfOpenSuccess() {
+        final CircuitBreaker unit = unit();
+        for (int i = 0; i < 4; i++) {
+            unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.FAILURE, 0, 0);
+        }
+        final long probe = unit.tryAcquire(OPEN);
+        Assert.assertTrue(probe > CircuitBreaker.PASSED);
+        Assert.assertSame(CircuitBreaker.State.HALF_OPEN, unit.getState());
+        Assert.assertEquals(CircuitBreaker.DENIED, unit.tryAcquire(OPEN));
+        unit.release(probe, CircuitBreaker.Outcome.SUCCESS, 0, OPEN);
+        Assert.assertSame(CircuitBreaker.State.CLOSED, unit.getState());
+        Assert.assertEquals(CircuitBreaker.PASSED, unit.tryAcquire(OPEN));
+    }
+    
+    /**
+     * Tests that a failing probe opens the breaker again.
+     */
+    @Test
+    public void halfOpenFailure() {
+        final CircuitBreaker unit = unit();
+        for (int i = 0; i < 4; i++) {
+            unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.FAILURE, 0, 0);
+        }
+        unit.release(unit.tryAcquire(OPEN), CircuitBreaker.Outcome.FAILURE, 0, OPEN);
+        Assert.assertSame(CircuitBreaker.State.OPEN, unit.getState());
+        Assert.assertEquals(CircuitBreaker.DENIED, unit.tryAcquire(2 * OPEN - 1));
+        Assert.assertTrue(unit.tryAcquire(2 * OPEN) > CircuitBreaker.PASSED);
+    }
+    
+    /**
+     * Tests that calls which passed before the breaker opened can't decide the probe.
+     */
+    @Test
+    public void strayRelease() {
+        final CircuitBreaker unit = unit();
+        for (int i = 0; i < 4; i++) {
+            unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.FAILURE, 0, 0);
+        }
+        final long probe = unit.tryAcquire(OPEN);
+        unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.SUCCESS, 0, OPEN);
+        unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.IGNORED, 0, OPEN);
+        Assert.assertSame(CircuitBreaker.State.HALF_OPEN, unit.getState());
+        Assert.assertEquals(CircuitBreaker.DENIED, unit.tryAcquire(OPEN));
+        unit.release(probe, CircuitBreaker.Outcome.FAILURE, 0, OPEN);
+        Assert.assertSame(CircuitBreaker.State.OPEN, unit.getState());
+    }
+    
+    /**
+     * Tests that an ignored probe lets the next call probe again.
+     */
+    @Test
+    public void ignoredProbe() {
+        final CircuitBreaker unit = unit();
+        for (int i = 0; i < 4; i++) {
+            unit.release(CircuitBreaker.PASSED, CircuitBreaker.Outcome.FAILURE, 0, 0);
+        }
+        final long probe = unit.tryAcquire(OPEN);
+        unit.release(probe, CircuitBreaker.Outcome.IGNORED, 0, OPEN);
+        Assert.assertSame(CircuitBreaker.State.HALF_OPEN, unit.getState());
+        final long next = unit.tryAcquire(OPEN);
+        Assert.assertTrue(next > CircuitBreaker.PASSED);
+        Assert.assertFalse(next == probe);
+        unit.release(probe, CircuitBreaker.Outcome.SUCCESS, 0, OPEN);
+        Assert.assertSame(CircuitBreaker.State.HALF_OPEN, unit.getState());
+        unit.release(next, CircuitBreaker.Outcome.SUCCESS, 0, OPEN);
+        Assert.assertSame(CircuitBreaker.State.CLOSED, unit.getState());
+    }
+    
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests {@link ConditionalCall} and its integration into {@link JsonRpc2Protocol}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class ConditionalCallTest {
+
+    private final Map<String, Object> result = ImmutableMap.<String, Object>of("a", 1, "b", 2);
+
+    /**
+     * Tests that matching fingerprints are detected.
+     */
+    @Test
+    public void matches() {
+        final ConditionalCall unit = new ConditionalCall(Fingerprints.of(result), null);
+        Assert.assertTrue(unit.matches(unit.fingerprintOf(result)));
+        Assert.assertFalse(unit.matches(unit.fingerprintOf(ImmutableMap.of("a", 1))));
+    }
+
+    /**
+     * Tests that a declared version replaces the result as input of the fingerprint.
+     */
+    @Test
+    public void version() {
+        final ConditionalCall first = new ConditionalCall("unknown", null);
+        Assert.assertFalse(first.isNotModified("v1"));
+        final String fingerprint = first.fingerprintOf(result);
+        Assert.assertEquals(fingerprint, first.fingerprintOf(ImmutableMap.of("c", 3)));
+
+        final ConditionalCall second = new ConditionalCall(fingerprint, null);
+        Assert.assertTrue(second.isNotModified("v1"));
+        Assert.assertFalse(new ConditionalCall(fingerprint, null).isNotModified("v2"));
+    }
+
+    /**
+     * Tests that the same version differs between projections.
+     */
+    @Test
+    public void projection() {
+        final ConditionalCall plain = new ConditionalCall("unknown", null);
+        plain.isNotModified("v1");
+        final ConditionalCall projected = new ConditionalCall("unknown",
+            FieldProjection.parse(ImmutableList.of("a")));
+        projected.isNotModified("v1");
+        Assert.assertFalse(plain.fingerprintOf(null).equals(projected.fingerprintOf(null)));
+    }
+
+    private Map<?, ?> process(String ifNoneMatch) throws ProtocolException {
+        final Map<String, Object> request = Maps.newHashMap();
+        request.put(JsonRpc.JSON_RPC, "2.0");
+        request.put(JsonRpc.METHOD, Echo.class.getName());
+        request.put(JsonRpc.PARAMS, result);
+        request.put(JsonRpc.ID, 1);
+        request.put(JsonRpc.IF_NONE_MATCH, ifNoneMatch);
+        final JsonRpc2Protocol protocol = Palava.newFramework().getInstance(JsonRpc2Protocol.class);
+        return Map.class.cast(protocol.process(request, WarmUp.newConnection()));
+    }
+
+    /**
+     * Tests that the protocol omits unmodified results.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void notModified() throws ProtocolException {
+        final Map<?, ?> first = process("unknown");
+        Assert.assertEquals(result, first.get(JsonRpc.RESULT));
+        final Object fingerprint = first.get(JsonRpc.FINGERPRINT);
+        Assert.assertEquals(Fingerprints.of(result), fingerprint);
+
+        final Map<?, ?> second = process(String.class.cast(fingerprint));
+        Assert.assertNull(second.get(JsonRpc.RESULT));
+        Assert.assertEquals(Boolean.TRUE, second.get(JsonRpc.NOT_MODIFIED));
+        Assert.assertEquals(fingerprint, second.get(JsonRpc.FINGERPRINT));
+    }
+
+}
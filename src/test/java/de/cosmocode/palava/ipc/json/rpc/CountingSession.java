@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.ipc.IpcSession;
+
+/**
+ * Session stub which counts the invocations of its methods.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+final class CountingSession implements InvocationHandler {
+
+    private final ConcurrentMap<String, AtomicInteger> counts = Maps.newConcurrentMap();
+
+    private final IpcSession session = IpcSession.class.cast(Proxy.newProxyInstance(
+        IpcSession.class.getClassLoader(), new Class<?>[] {IpcSession.class}, this));
+
+    private volatile boolean failing;
+
+    IpcSession getSession() {
+        return session;
+    }
+
+    void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    int countOf(String method) {
+        final AtomicInteger count = counts.get(method);
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("equals".equals(method.getName())) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(method.getName())) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(method.getName())) {
+            return "CountingSession";
+        }
+        counts.putIfAbsent(method.getName(), new AtomicInteger());
+        counts.get(method.getName()).incrementAndGet();
+        if (failing) {
+            throw new IllegalStateException("failing");
+        }
+        final Class<?> type = method.getReturnType();
+        return type == boolean.class ? Boolean.FALSE : null;
+    }
+
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link ErrorCode}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class ErrorCodeTest {
+
+    /**
+     * Tests that a previously created error object is used as is.
+     */
+    @Test
+    public void newResponse() {
+        final Map<String, Object> error = ErrorCode.INVALID_REQUEST.newError("invalid");
+        final Map<String, Object> response = ErrorCode.INVALID_REQUEST.newResponse(1, error);
+        Assert.assertSame(error, response.get(JsonRpc.ERROR));
+        Assert.assertEquals(1, response.get(JsonRpc.ID));
+    }
+
+    /**
+     * Tests that error objects of another error code are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatch() {
+        ErrorCode.INVALID_REQUEST.newResponse(1, ErrorCode.INTERNAL_ERROR.newError("internal"));
+    }
+
+}
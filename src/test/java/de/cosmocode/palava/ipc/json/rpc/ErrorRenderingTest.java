@@ -0,0 +1,129 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link ErrorRendering}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class ErrorRenderingTest implements UnitProvider<ErrorRendering> {
+
+    private final IllegalStateException exception = new IllegalStateException("broken");
+
+    @Override
+    public ErrorRendering unit() {
+        return new ErrorRendering();
+    }
+
+    private Map<?, ?> errorOf(ErrorRendering unit) {
+        final Map<String, Object> response = unit.newResponse(ErrorCode.INTERNAL_ERROR, 1, exception);
+        Assert.assertEquals(1, response.get(JsonRpc.ID));
+        final Map<?, ?> error = Map.class.cast(response.get(JsonRpc.ERROR));
+        Assert.assertEquals("broken", error.get(JsonRpc.MESSAGE));
+        return error;
+    }
+
+    /**
+     * Tests that the default policy passes the exception to the encoder.
+     */
+    @Test
+    public void throwable() {
+        final ErrorRendering unit = unit();
+        Assert.assertTrue(unit.isRaw());
+        Assert.assertSame(exception, errorOf(unit).get(JsonRpc.DATA));
+    }
+
+    /**
+     * Tests that {@link ErrorPolicy#MESSAGE} omits the data member.
+     */
+    @Test
+    public void message() {
+        final ErrorRendering unit = unit();
+        unit.setPolicy(ErrorPolicy.MESSAGE);
+        Assert.assertFalse(unit.isRaw());
+        Assert.assertFalse(errorOf(unit).containsKey(JsonRpc.DATA));
+    }
+
+    /**
+     * Tests that {@link ErrorPolicy#CLASS} renders the exception type only.
+     */
+    @Test
+    public void type() {
+        final ErrorRendering unit = unit();
+        unit.setPolicy(ErrorPolicy.CLASS);
+        final Map<?, ?> data = Map.class.cast(errorOf(unit).get(JsonRpc.DATA));
+        Assert.assertEquals(ImmutableMap.of("type", IllegalStateException.class.getName()), data);
+    }
+
+    /**
+     * Tests that {@link ErrorPolicy#STACK} renders a bounded stack trace.
+     */
+    @Test
+    public void stack() {
+        final ErrorRendering unit = unit();
+        unit.setPolicy(ErrorPolicy.STACK);
+        unit.setMaxStackDepth(1);
+        final Map<?, ?> data = Map.class.cast(errorOf(unit).get(JsonRpc.DATA));
+        Assert.assertEquals(IllegalStateException.class.getName(), data.get("type"));
+        final List<?> stack = List.class.cast(data.get("stack"));
+        Assert.assertEquals(1, stack.size());
+        Assert.assertEquals(exception.getStackTrace()[0].toString(), stack.get(0));
+    }
+
+    /**
+     * Tests that custom renderers take precedence and apply to subclasses.
+     */
+    @Test
+    public void renderer() {
+        final ErrorRendering unit = unit();
+        unit.setRenderers(ImmutableMap.<Class<? extends Throwable>, ErrorRenderer>of(
+            RuntimeException.class, new ErrorRenderer() {
+
+                @Override
+                public Object render(Throwable throwable) {
+                    return "custom";
+                }
+
+            }));
+        Assert.assertFalse(unit.isRaw());
+        Assert.assertEquals("custom", errorOf(unit).get(JsonRpc.DATA));
+    }
+
+    /**
+     * Tests that exceptions without a message use their class name.
+     */
+    @Test
+    public void noMessage() {
+        final ErrorRendering unit = unit();
+        unit.setPolicy(ErrorPolicy.MESSAGE);
+        final Map<String, Object> error = unit.newError(ErrorCode.INTERNAL_ERROR, new IllegalStateException());
+        Assert.assertEquals(IllegalStateException.class.getName(), error.get(JsonRpc.MESSAGE));
+    }
+
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServerFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests {@link ExecutionShards}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class ExecutionShardsTest implements UnitProvider<ExecutionShards> {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final IpcConnection connection = WarmUp.newConnection();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ExecutionShards unit;
+
+    @Override
+    public ExecutionShards unit() {
+        final ExecutionShards shards = new ExecutionShards(MBeanServerFactory.newMBeanServer());
+        shards.setEnabled(true);
+        shards.setCount(4);
+        return shards;
+    }
+
+    private ExecutionShards initialized(ExecutionShards shards) throws LifecycleException {
+        shards.initialize();
+        this.unit = shards;
+        return shards;
+    }
+
+    private Future<Object> submit(final ExecutionShards shards, final Callable<Object> task) {
+        return executor.submit(new Callable<Object>() {
+
+            @Override
+            public Object call() throws ProtocolException {
+                return shards.execute(connection, task);
+            }
+
+        });
+    }
+
+    private Callable<Object> blocking(final CountDownLatch started) {
+        return new Callable<Object>() {
+
+            @Override
+            public Object call() throws InterruptedException {
+                started.countDown();
+                release.await();
+                return null;
+            }
+
+        };
+    }
+
+    /**
+     * Releases blocked tasks and stops all threads.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @After
+    public void shutdown() throws LifecycleException {
+        release.countDown();
+        if (unit != null) {
+            unit.dispose();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Tests that all tasks of a connection run on the same shard thread.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void affinity() throws Exception {
+        final ExecutionShards shards = initialized(unit());
+        final Callable<Object> current = new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                return Thread.currentThread();
+            }
+
+        };
+        final Thread thread = Thread.class.cast(shards.execute(connection, current));
+        Assert.assertTrue(thread.getName().startsWith("json-rpc-shard-"));
+        for (int i = 0; i < 20; i++) {
+            Assert.assertSame(thread, shards.execute(connection, current));
+        }
+    }
+
+    /**
+     * Tests that a later task of a connection never overtakes an earlier one.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void ordering() throws Exception {
+        final ExecutionShards shards = initialized(unit());
+        final List<Object> order = Collections.synchronizedList(Lists.newArrayList());
+        final CountDownLatch started = new CountDownLatch(1);
+        final Future<Object> first = submit(shards, new Callable<Object>() {
+
+            @Override
+            public Object call() throws Exception {
+                order.add(1);
+                return blocking(started).call();
+            }
+
+        });
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        final Future<Object> second = submit(shards, new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                return order.add(2);
+            }
+
+        });
+        Thread.sleep(50);
+        Assert.assertEquals(ImmutableList.of(1), ImmutableList.copyOf(order));
+        release.countDown();
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(ImmutableList.of(1, 2), ImmutableList.copyOf(order));
+    }
+
+    /**
+     * Tests that a blocking task only delays its own connection, other connections
+     * are executed by idle shards, even those sharing the blocked one's home shard.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void blockedShard() throws Exception {
+        final ExecutionShards shards = unit();
+        shards.setCount(2);
+        shards.setWaitTime(1);
+        initialized(shards);
+        final CountDownLatch started = new CountDownLatch(1);
+        final Future<Object> blocked = submit(shards, blocking(started));
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        for (int i = 0; i < 20; i++) {
+            final IpcConnection other = WarmUp.newConnection();
+            final Integer value = i;
+            Assert.assertEquals(value, shards.execute(other, new Callable<Object>() {
+
+                @Override
+                public Object call() {
+                    return value;
+                }
+
+            }));
+        }
+        Assert.assertFalse(blocked.isDone());
+    }
+
+    /**
+     * Tests that an interrupt left behind by a task neither stops the shard nor
+     * reaches the next task.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void interruptCleared() throws Exception {
+        final ExecutionShards shards = unit();
+        shards.setCount(1);
+        shards.setWaitTime(1);
+        initialized(shards);
+        shards.execute(connection, new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+
+        });
+        Assert.assertEquals(Boolean.FALSE, shards.execute(connection, new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                return Thread.currentThread().isInterrupted();
+            }
+
+        }));
+    }
+
+    /**
+     * Tests that waiting for a busy shard is bounded and the abandoned task never runs.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void timeout() throws Exception {
+        final ExecutionShards shards = unit();
+        shards.setCount(1);
+        shards.setWaitTime(50);
+        shards.setWaitTimeUnit(TimeUnit.MILLISECONDS);
+        initialized(shards);
+        final CountDownLatch started = new CountDownLatch(1);
+        // times out as well, but keeps the shard busy until released
+        submit(shards, blocking(started));
+        Assert.assertTrue(started.await(1, TimeUnit.SECONDS));
+        final AtomicBoolean ran = new AtomicBoolean();
+        try {
+            shards.execute(connection, new Callable<Object>() {
+
+                @Override
+                public Object call() {
+                    ran.set(true);
+                    return null;
+                }
+
+            });
+            Assert.fail("Expected ProtocolException");
+        } catch (ProtocolException e) {
+            // expected
+        }
+        release.countDown();
+        // runs after the abandoned task would have
+        shards.execute(connection, blocking(new CountDownLatch(1)));
+        Assert.assertFalse(ran.get());
+    }
+
+    /**
+     * Tests that dispose stops all shard threads and later tasks are rejected.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void shutdownRejects() throws Exception {
+        final ExecutionShards shards = initialized(unit());
+        final Thread thread = Thread.class.cast(shards.execute(connection, new Callable<Object>() {
+
+            @Override
+            public Object call() {
+                return Thread.currentThread();
+            }
+
+        }));
+        shards.dispose();
+        this.unit = null;
+        thread.join(1000);
+        Assert.assertFalse(thread.isAlive());
+        try {
+            shards.execute(connection, blocking(new CountDownLatch(1)));
+            Assert.fail("Expected ProtocolException");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link FieldProjection}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class FieldProjectionTest implements UnitProvider<FieldProjection> {
+
+    @Override
+    public FieldProjection unit() {
+        return FieldProjection.parse(ImmutableList.of("name", "address.city", "orders.id"));
+    }
+    
+    /**
+     * Tests {@link FieldProjection#apply(Object)} with nested maps and lists.
+     */
+    @Test
+    public void apply() {
+        final Object result = unit().apply(ImmutableMap.of(
+            "name", "Jane",
+            "email", "jane@example.com",
+            "address", ImmutableMap.of("city", "Berlin", "street", "Main"),
+            "orders", ImmutableList.of(
+                ImmutableMap.of("id", 1, "total", 10),
+                ImmutableMap.of("id", 2, "total", 20)
+            )
+        ));
+        Assert.assertEquals(ImmutableMap.of(
+            "name", "Jane",
+            "address", ImmutableMap.of("city", "Berlin"),
+            "orders", ImmutableList.of(ImmutableMap.of("id", 1), ImmutableMap.of("id", 2))
+        ), result);
+    }
+    
+    /**
+     * Tests {@link FieldProjection#includes(String)}.
+     */
+    @Test
+    public void includes() {
+        final FieldProjection unit = unit();
+        Assert.assertTrue(unit.includes("name"));
+        Assert.assertTrue(unit.includes("address"));
+        Assert.assertTrue(unit.includes("address.city"));
+        Assert.assertFalse(unit.includes("address.street"));
+        Assert.assertFalse(unit.includes("email"));
+    }
+    
+    /**
+     * Tests that a shorter path selects everything below it.
+     */
+    @Test
+    public void shorterPathWins() {
+        final FieldProjection unit = FieldProjection.parse(ImmutableList.of("address.city", "address"));
+        Assert.assertTrue(unit.includes("address.street"));
+        Assert.assertEquals(Collections.singletonMap("address", ImmutableMap.of("street", "Main")),
+            unit.apply(ImmutableMap.of("address", ImmutableMap.of("street", "Main"), "name", "Jane")));
+    }
+    
+    /**
+     * Tests {@link FieldProjection#parse(java.util.List)} with an empty segment.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void emptySegment() {
+        FieldProjection.parse(ImmutableList.of("address..city"));
+    }
+    
+}
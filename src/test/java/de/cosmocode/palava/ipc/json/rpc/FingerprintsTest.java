@@ -0,0 +1,86 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests {@link Fingerprints}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class FingerprintsTest {
+
+    /**
+     * Tests that fingerprints are 16 hex characters.
+     */
+    @Test
+    public void format() {
+        Assert.assertTrue(Fingerprints.of(null).matches("[0-9a-f]{16}"));
+        Assert.assertTrue(Fingerprints.of("value").matches("[0-9a-f]{16}"));
+    }
+
+    /**
+     * Tests that the order of map entries doesn't matter.
+     */
+    @Test
+    public void mapOrder() {
+        final Map<String, Object> first = Maps.newLinkedHashMap();
+        first.put("a", 1);
+        first.put("b", 2);
+        final Map<String, Object> second = Maps.newLinkedHashMap();
+        second.put("b", 2);
+        second.put("a", 1);
+        Assert.assertEquals(Fingerprints.of(first), Fingerprints.of(second));
+    }
+
+    /**
+     * Tests that values of different types don't collide.
+     */
+    @Test
+    public void types() {
+        Assert.assertFalse(Fingerprints.of("1").equals(Fingerprints.of(1)));
+        Assert.assertFalse(Fingerprints.of("true").equals(Fingerprints.of(true)));
+        Assert.assertFalse(Fingerprints.of(null).equals(Fingerprints.of("null")));
+        Assert.assertFalse(Fingerprints.of(ImmutableList.of("ab")).equals(Fingerprints.of(ImmutableList.of("a", "b"))));
+    }
+
+    /**
+     * Tests that arrays are fingerprinted by content, like lists.
+     */
+    @Test
+    public void arrays() {
+        Assert.assertEquals(Fingerprints.of(new Object[] {"a", 1}), Fingerprints.of(new Object[] {"a", 1}));
+        Assert.assertEquals(Fingerprints.of(Arrays.asList("a", 1)), Fingerprints.of(new Object[] {"a", 1}));
+        Assert.assertEquals(Fingerprints.of(new byte[] {1, 2}), Fingerprints.of(new byte[] {1, 2}));
+        Assert.assertEquals(Fingerprints.of(new int[] {1, 2}), Fingerprints.of(new long[] {1, 2}));
+        Assert.assertFalse(Fingerprints.of(new byte[] {1, 2}).equals(Fingerprints.of(new byte[] {2, 1})));
+        Assert.assertEquals(
+            Fingerprints.of(ImmutableMap.of("data", new int[] {1})),
+            Fingerprints.of(ImmutableMap.of("data", new int[] {1})));
+    }
+
+}
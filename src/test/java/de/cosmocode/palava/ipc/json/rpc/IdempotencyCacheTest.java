@@ -0,0 +1,267 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.ipc.IpcSession;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests {@link IdempotencyCache}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class IdempotencyCacheTest implements UnitProvider<IdempotencyCache> {
+
+    private static final Map<String, Object> PARAMS = ImmutableMap.<String, Object>of("value", 1);
+
+    private static final Map<String, Object> RESPONSE = ImmutableMap.<String, Object>of(JsonRpc.RESULT, "ok");
+
+    @Override
+    public IdempotencyCache unit() {
+        final IdempotencyCache unit = new IdempotencyCache();
+        unit.setEnabled(true);
+        return unit;
+    }
+
+    private static IpcSession sessionOf(final String sessionId) {
+        return IpcSession.class.cast(Proxy.newProxyInstance(
+            IpcSession.class.getClassLoader(), new Class<?>[] {IpcSession.class}, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return "getSessionId".equals(method.getName()) ? sessionId : null;
+                }
+
+            }));
+    }
+
+    private static DetachedConnection connectionOf(String sessionId) {
+        final DetachedConnection connection = WarmUp.newConnection();
+        connection.attachTo(sessionOf(sessionId));
+        return connection;
+    }
+
+    /**
+     * Tests that explicit keys are scoped to their connection if there is no session.
+     */
+    @Test
+    public void scoped() {
+        final IdempotencyCache unit = unit();
+        final String first = unit.keyOf(WarmUp.newConnection(), "method", 1, "key");
+        final String second = unit.keyOf(WarmUp.newConnection(), "method", 1, "key");
+        Assert.assertNotNull(first);
+        Assert.assertFalse(first.equals(second));
+        Assert.assertNull(unit.keyOf(WarmUp.newConnection(), "method", null, "key"));
+    }
+
+    /**
+     * Tests that explicit keys are scoped to the session, not to the connection.
+     */
+    @Test
+    public void sessionScoped() {
+        final IdempotencyCache unit = unit();
+        final String first = unit.keyOf(connectionOf("first"), "method", 1, "key");
+        Assert.assertEquals(first, unit.keyOf(connectionOf("first"), "method", 2, "key"));
+        Assert.assertFalse(first.equals(unit.keyOf(connectionOf("second"), "method", 1, "key")));
+    }
+
+    /**
+     * Tests that keys derived from request ids stay scoped to the connection.
+     */
+    @Test
+    public void derivedScoped() {
+        final IdempotencyCache unit = unit();
+        unit.setDeriveFromId(true);
+        final String first = unit.keyOf(connectionOf("session"), "method", 1, null);
+        Assert.assertNotNull(first);
+        Assert.assertFalse(first.equals(unit.keyOf(connectionOf("session"), "method", 1, null)));
+    }
+
+    /**
+     * Tests that a key reused with different extension members is rejected.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void extensionMembers() throws ProtocolException {
+        final Framework framework = Palava.newFramework();
+        framework.getInstance(IdempotencyCache.class).setEnabled(true);
+        final JsonRpc2Protocol protocol = framework.getInstance(JsonRpc2Protocol.class);
+        final DetachedConnection connection = WarmUp.newConnection();
+        final Map<String, Object> request = Maps.newHashMap();
+        request.put(JsonRpc.JSON_RPC, JsonRpc2Protocol.VERSION);
+        request.put(JsonRpc.METHOD, Count.class.getName());
+        request.put(JsonRpc.ID, 1);
+        request.put(JsonRpc.IDEMPOTENCY_KEY, "key");
+        Count.EXECUTIONS.set(0);
+        Assert.assertNull(Map.class.cast(protocol.process(request, connection)).get(JsonRpc.ERROR));
+        request.put(JsonRpc.FIELDS, ImmutableList.of("executions"));
+        final Map<?, ?> error = Map.class.cast(Map.class.cast(protocol.process(request, connection)).get(JsonRpc.ERROR));
+        Assert.assertEquals(ErrorCode.INVALID_REQUEST, ErrorCode.of(Number.class.cast(error.get(JsonRpc.CODE)).intValue()));
+        Assert.assertEquals(1, Count.EXECUTIONS.get());
+    }
+
+    /**
+     * Tests that a completed call is replayed.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void replay() throws Exception {
+        final IdempotencyCache unit = unit();
+        Assert.assertNull(unit.begin("key", PARAMS));
+        unit.complete("key", RESPONSE, true);
+        final IdempotencyCache.Entry entry = unit.begin("key", PARAMS);
+        Assert.assertNotNull(entry);
+        Assert.assertSame(RESPONSE, unit.await(entry));
+    }
+
+    /**
+     * Tests that failed calls are not kept for replay.
+     */
+    @Test
+    public void failure() {
+        final IdempotencyCache unit = unit();
+        Assert.assertNull(unit.begin("key", PARAMS));
+        unit.complete("key", RESPONSE, false);
+        Assert.assertNull(unit.begin("key", PARAMS));
+    }
+
+    /**
+     * Tests that a key can't be reused with different params.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void differentParams() {
+        final IdempotencyCache unit = unit();
+        Assert.assertNull(unit.begin("key", PARAMS));
+        unit.begin("key", ImmutableMap.of("value", 2));
+    }
+
+    /**
+     * Tests that the oldest completed entry is evicted even if older calls are still in flight.
+     */
+    @Test
+    public void evictCompleted() {
+        final IdempotencyCache unit = unit();
+        unit.setMaxSize(2);
+        Assert.assertNull(unit.begin("inFlight", PARAMS));
+        Assert.assertNull(unit.begin("completed", PARAMS));
+        unit.complete("completed", RESPONSE, true);
+        Assert.assertNull(unit.begin("new", PARAMS));
+        Assert.assertNotNull(unit.begin("inFlight", PARAMS));
+        unit.complete("new", RESPONSE, true);
+        Assert.assertNull(unit.begin("completed", PARAMS));
+        Assert.assertNotNull(unit.begin("inFlight", PARAMS));
+    }
+
+    /**
+     * Tests that new keys are rejected while the cache is full of calls in flight.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void fullInFlight() {
+        final IdempotencyCache unit = unit();
+        unit.setMaxSize(1);
+        Assert.assertNull(unit.begin("inFlight", PARAMS));
+        unit.begin("new", PARAMS);
+    }
+
+    /**
+     * Tests that a duplicate waits for the original call which is still in flight.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void inFlight() throws Exception {
+        final IdempotencyCache unit = unit();
+        Assert.assertNull(unit.begin("key", PARAMS));
+        final IdempotencyCache.Entry entry = unit.begin("key", PARAMS);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Object> future = executor.submit(new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    return unit.await(entry);
+                }
+
+            });
+            try {
+                future.get(50, TimeUnit.MILLISECONDS);
+                Assert.fail("Duplicate did not wait for the original call");
+            } catch (TimeoutException e) {
+                unit.complete("key", RESPONSE, true);
+            }
+            Assert.assertSame(RESPONSE, future.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that duplicates stop waiting for a hung original call.
+     *
+     * @throws Exception should not happen
+     */
+    @Test(expected = TimeoutException.class)
+    public void waitTime() throws Exception {
+        final IdempotencyCache unit = unit();
+        unit.setWaitTime(10);
+        unit.setWaitTimeUnit(TimeUnit.MILLISECONDS);
+        Assert.assertNull(unit.begin("key", PARAMS));
+        unit.await(unit.begin("key", PARAMS));
+    }
+
+    /**
+     * Tests that completed responses expire.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void expiry() throws Exception {
+        final IdempotencyCache unit = unit();
+        unit.setExpirationTime(1);
+        unit.setExpirationTimeUnit(TimeUnit.MILLISECONDS);
+        Assert.assertNull(unit.begin("key", PARAMS));
+        unit.complete("key", RESPONSE, true);
+        Thread.sleep(10);
+        Assert.assertNull(unit.begin("key", PARAMS));
+    }
+
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.core.Registry;
+import de.cosmocode.palava.ipc.IpcCall;
+import de.cosmocode.palava.ipc.IpcCallCreateEvent;
+import de.cosmocode.palava.ipc.IpcCallDestroyEvent;
+import de.cosmocode.palava.ipc.IpcSession;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+
+/**
+ * Stress tests {@link JsonRpc2Protocol} and {@link JsonRpc2BatchProtocol} with many
+ * threads sharing the same connection.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class JsonRpc2ProtocolConcurrencyTest implements IpcCallCreateEvent, IpcCallDestroyEvent {
+
+    private static final int THREADS = 16;
+
+    private static final int ROUNDS = 200;
+
+    private static final int CALLS = 50;
+
+    private Framework framework;
+
+    private Registry registry;
+
+    private ExecutorService executor;
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final AtomicInteger destroyed = new AtomicInteger();
+
+    private final ThreadLocal<IpcCall> current = new ThreadLocal<IpcCall>();
+
+    private final ConcurrentMap<String, String> violations = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Creates the framework and registers this test as call event listener.
+     */
+    @Before
+    public void before() {
+        framework = Palava.newFramework();
+        registry = framework.getInstance(Registry.class);
+        registry.register(IpcCallCreateEvent.class, this);
+        registry.register(IpcCallDestroyEvent.class, this);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @Override
+    public void eventIpcCallCreate(IpcCall call) {
+        created.incrementAndGet();
+        if (current.get() != null) {
+            violations.put("create:" + call, "call created while another call is active on the same thread");
+        }
+        current.set(call);
+    }
+
+    @Override
+    public void eventIpcCallDestroy(IpcCall call) {
+        destroyed.incrementAndGet();
+        if (current.get() != call) {
+            violations.put("destroy:" + call, "call destroyed on a thread which did not create it");
+        }
+        current.remove();
+    }
+
+    private <T> List<T> runConcurrently(final Callable<T> task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<T>> futures = Lists.newArrayList();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<T>() {
+
+                @Override
+                public T call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+
+            }));
+        }
+        start.countDown();
+        final List<T> results = Lists.newArrayList();
+        for (Future<T> future : futures) {
+            results.add(future.get(1, TimeUnit.MINUTES));
+        }
+        return results;
+    }
+
+    private static Map<String, Object> newRequest(Object id) {
+        return ImmutableMap.<String, Object>of(
+            JsonRpc.JSON_RPC, "2.0",
+            JsonRpc.METHOD, Echo.class.getName(),
+            JsonRpc.PARAMS, ImmutableMap.of("value", id),
+            JsonRpc.ID, id
+        );
+    }
+
+    private static void assertEcho(Object id, Object response) {
+        Assert.assertTrue("Not a response: " + response, response instanceof Map<?, ?>);
+        final Map<?, ?> map = Map.class.cast(response);
+        Assert.assertEquals(id, map.get(JsonRpc.ID));
+        Assert.assertEquals(ImmutableMap.of("value", id), map.get(JsonRpc.RESULT));
+    }
+
+    /**
+     * Tests that concurrent first calls on the same connection attach it exactly once.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void attachOnce() throws Exception {
+        final JsonRpc2Protocol protocol = framework.getInstance(JsonRpc2Protocol.class);
+        for (int round = 0; round < ROUNDS; round++) {
+            final TestConnection handler = new TestConnection();
+            final DetachedConnection connection = handler.newProxy();
+            final AtomicInteger ids = new AtomicInteger();
+            runConcurrently(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    final Integer id = ids.incrementAndGet();
+                    assertEcho(id, protocol.process(newRequest(id), connection));
+                    return null;
+                }
+
+            });
+            Assert.assertEquals(1, handler.attaches.get());
+        }
+    }
+
+    /**
+     * Tests that concurrent calls see their own arguments only and that every
+     * create event is paired with a destroy event on the same thread.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void scopeIsolation() throws Exception {
+        final JsonRpc2Protocol protocol = framework.getInstance(JsonRpc2Protocol.class);
+        final DetachedConnection connection = new TestConnection().newProxy();
+        final AtomicInteger ids = new AtomicInteger();
+        runConcurrently(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < ROUNDS; i++) {
+                    final Integer id = ids.incrementAndGet();
+                    assertEcho(id, protocol.process(newRequest(id), connection));
+                }
+                return null;
+            }
+
+        });
+        Assert.assertEquals(violations.toString(), 0, violations.size());
+        Assert.assertEquals(THREADS * ROUNDS, created.get());
+        Assert.assertEquals(created.get(), destroyed.get());
+    }
+
+    /**
+     * Tests that concurrent batches on the same connection keep their response order.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void batchOrdering() throws Exception {
+        final JsonRpc2BatchProtocol protocol = framework.getInstance(JsonRpc2BatchProtocol.class);
+        final DetachedConnection connection = new TestConnection().newProxy();
+        runConcurrently(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                for (int round = 0; round < ROUNDS / 10; round++) {
+                    final List<Object> batch = Lists.newArrayList();
+                    final List<String> ids = Lists.newArrayList();
+                    for (int i = 0; i < CALLS; i++) {
+                        final String id = UUID.randomUUID().toString();
+                        ids.add(id);
+                        batch.add(newRequest(id));
+                    }
+                    final List<?> responses = List.class.cast(protocol.process(batch, connection));
+                    Assert.assertEquals(CALLS, responses.size());
+                    for (int i = 0; i < CALLS; i++) {
+                        assertEcho(ids.get(i), responses.get(i));
+                    }
+                }
+                return null;
+            }
+
+        });
+        Assert.assertEquals(violations.toString(), 0, violations.size());
+        Assert.assertEquals(created.get(), destroyed.get());
+    }
+
+    /**
+     * Tests that destroying a connection while calls are in flight neither
+     * fails those calls nor unpairs their events.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void destroyWhileInFlight() throws Exception {
+        final JsonRpc2Protocol protocol = framework.getInstance(JsonRpc2Protocol.class);
+        final DetachedConnection connection = new TestConnection().newProxy();
+        final AtomicInteger ids = new AtomicInteger();
+        final AtomicInteger threads = new AtomicInteger();
+        runConcurrently(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                final boolean destroyer = threads.incrementAndGet() == 1;
+                for (int i = 0; i < ROUNDS; i++) {
+                    if (destroyer) {
+                        protocol.eventIpcConnectionDestroy(connection);
+                    } else {
+                        final Integer id = ids.incrementAndGet();
+                        assertEcho(id, protocol.process(newRequest(id), connection));
+                    }
+                }
+                return null;
+            }
+
+        });
+        Assert.assertEquals(violations.toString(), 0, violations.size());
+        Assert.assertEquals(created.get(), destroyed.get());
+    }
+
+    /**
+     * Stops the executor and removes this test from the registry.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @After
+    public void after() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        registry.remove(this);
+    }
+
+    /**
+     * A thread-safe in-memory connection which counts its attachments.
+     *
+     * @since 1.1
+     * @author Willi Schoenborn
+     */
+    private static final class TestConnection implements InvocationHandler {
+
+        private final String connectionId = UUID.randomUUID().toString();
+
+        private final ConcurrentMap<Object, Object> context = new ConcurrentHashMap<Object, Object>();
+
+        private final AtomicInteger attaches = new AtomicInteger();
+
+        private volatile IpcSession session;
+
+        DetachedConnection newProxy() {
+            return DetachedConnection.class.cast(Proxy.newProxyInstance(
+                DetachedConnection.class.getClassLoader(), new Class<?>[] {DetachedConnection.class}, this));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if ("getConnectionId".equals(name)) {
+                return connectionId;
+            } else if ("getSession".equals(name)) {
+                return session;
+            } else if ("isAttached".equals(name)) {
+                return session != null;
+            } else if ("attachTo".equals(name)) {
+                attaches.incrementAndGet();
+                session = IpcSession.class.cast(args[0]);
+                return null;
+            } else if ("set".equals(name)) {
+                context.put(args[0], args[1]);
+                return null;
+            } else if ("get".equals(name)) {
+                return context.get(args[0]);
+            } else if ("contains".equals(name)) {
+                return context.containsKey(args[0]);
+            } else if ("remove".equals(name)) {
+                return context.remove(args[0]);
+            } else if ("clear".equals(name)) {
+                context.clear();
+                return null;
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return "TestConnection [connectionId=" + connectionId + "]";
+            } else {
+                throw new UnsupportedOperationException(name);
+            }
+        }
+
+    }
+
+}
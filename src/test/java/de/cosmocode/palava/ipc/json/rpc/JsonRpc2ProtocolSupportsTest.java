@@ -76,6 +76,24 @@ public final class JsonRpc2ProtocolSupportsTest implements UnitProvider<MapProto
             "jsonrpc", "2.0",
             "method", Echo.class.getName()
         )));
+        Assert.assertTrue(unit().supports(ImmutableMap.of(
+            "jsonrpc", "2.0",
+            "method", Echo.class.getName(),
+            "id", System.nanoTime(),
+            "idempotencyKey", "c0ffee"
+        )));
+        Assert.assertTrue(unit().supports(ImmutableMap.of(
+            "jsonrpc", "2.0",
+            "method", Echo.class.getName(),
+            "id", System.nanoTime(),
+            "attachments", ImmutableMap.of("file", "AAEC")
+        )));
+        Assert.assertTrue(unit().supports(ImmutableMap.of(
+            "jsonrpc", "2.0",
+            "method", Echo.class.getName(),
+            "bulk", Collections.emptyList(),
+            "id", System.nanoTime()
+        )));
     }
     
     /**
@@ -105,6 +123,13 @@ public final class JsonRpc2ProtocolSupportsTest implements UnitProvider<MapProto
             "params", Collections.emptyMap(),
             "id", System.nanoTime()
         )));
+        // unknown member
+        Assert.assertFalse(unit().supports(ImmutableMap.of(
+            "jsonrpc", "2.0",
+            "method", Echo.class.getName(),
+            "id", System.nanoTime(),
+            "foo", "bar"
+        )));
     }
     
 }
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests {@link JsonRpcClient} against an in-process {@link JsonRpc2BatchProtocol}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class JsonRpcClientTest implements JsonRpcTransport {
+
+    private Framework framework;
+
+    private JsonRpc2BatchProtocol protocol;
+
+    private DetachedConnection connection;
+
+    private ScheduledExecutorService executor;
+
+    private final List<Integer> batches = Lists.newCopyOnWriteArrayList();
+
+    /**
+     * Creates the framework and a connection to send batches with.
+     */
+    @Before
+    public void before() {
+        framework = Palava.newFramework();
+        protocol = framework.getInstance(JsonRpc2BatchProtocol.class);
+        connection = WarmUp.newConnection();
+        executor = Executors.newScheduledThreadPool(4);
+    }
+
+    @Override
+    public Object send(List<Map<String, Object>> batch) throws IOException {
+        batches.add(batch.size());
+        try {
+            return protocol.process(batch, connection);
+        } catch (ProtocolException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Tests that calls issued within one window share a batch and full batches
+     * are sent without waiting for the window.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void coalesce() throws Exception {
+        final JsonRpcClient client = new JsonRpcClient(this, executor, 1, TimeUnit.MINUTES, 5);
+        final List<Future<Object>> futures = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            futures.add(client.call(Echo.class.getName(), ImmutableMap.of("value", i)));
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(ImmutableMap.of("value", i), futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(Lists.newArrayList(5, 5), batches);
+    }
+
+    /**
+     * Tests that a lonely call is sent once its window closes.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void window() throws Exception {
+        final JsonRpcClient client = new JsonRpcClient(this, executor, 10, TimeUnit.MILLISECONDS, 100);
+        final Future<Object> future = client.call(Echo.class.getName(), ImmutableMap.of("value", 1));
+        Assert.assertEquals(ImmutableMap.of("value", 1), future.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(Lists.newArrayList(1), batches);
+    }
+
+    /**
+     * Tests that error responses fail their own future only.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void errors() throws Exception {
+        final JsonRpcClient client = new JsonRpcClient(this, executor, 1, TimeUnit.MINUTES, 2);
+        final Future<Object> failed = client.call(Fail.class.getName(), null);
+        final Future<Object> succeeded = client.call(Echo.class.getName(), ImmutableMap.of("value", 2));
+        Assert.assertEquals(ImmutableMap.of("value", 2), succeeded.get(10, TimeUnit.SECONDS));
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            Assert.fail("Expected " + JsonRpcException.class.getSimpleName());
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof JsonRpcException);
+            Assert.assertSame(ErrorCode.INTERNAL_ERROR, JsonRpcException.class.cast(e.getCause()).getErrorCode());
+        }
+    }
+
+    /**
+     * Stops the executor.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @After
+    public void after() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.cosmocode.palava.ipc.IpcCall;
+import de.cosmocode.palava.ipc.IpcCommand;
+import de.cosmocode.palava.ipc.IpcCommandExecutionException;
+
+/**
+ * Simple command which records its value and, if asked to, waits for a second
+ * call meeting it.
+ *
+ * @author Willi Schoenborn
+ */
+public final class Meet implements IpcCommand {
+
+    static final List<Object> VALUES = new CopyOnWriteArrayList<Object>();
+
+    static final CyclicBarrier BARRIER = new CyclicBarrier(2);
+
+    @Override
+    public void execute(IpcCall call, Map<String, Object> result) throws IpcCommandExecutionException {
+        VALUES.add(call.getArguments().get("value"));
+        if (!Boolean.TRUE.equals(call.getArguments().get("meet"))) return;
+        try {
+            BARRIER.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IpcCommandExecutionException(e);
+        } catch (BrokenBarrierException e) {
+            throw new IpcCommandExecutionException(e);
+        } catch (TimeoutException e) {
+            throw new IpcCommandExecutionException(e);
+        }
+    }
+
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+import de.cosmocode.palava.ipc.protocol.Protocol;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests {@link MethodForwarding} with three in-process nodes.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class MethodForwardingTest {
+
+    private final Map<String, List<Map<String, Object>>> received = Maps.newConcurrentMap();
+
+    private final List<RateLimiter> limiters = Lists.newArrayList();
+
+    private final DetachedConnection connection = WarmUp.newConnection();
+
+    private Framework framework;
+
+    private MethodForwarding forwarding;
+
+    private MethodForwarding.Local local;
+
+    /**
+     * Creates the local node.
+     */
+    @Before
+    public void before() {
+        framework = Palava.newFramework();
+        final JsonRpc2BatchProtocol protocol = framework.getInstance(JsonRpc2BatchProtocol.class);
+        local = new MethodForwarding.Local() {
+
+            @Override
+            public List<?> execute(List<?> calls) throws ProtocolException {
+                return List.class.cast(protocol.process(calls, connection));
+            }
+
+        };
+        framework.getInstance(SessionAttachment.class).setStatelessMethods(".*");
+        forwarding = newForwarding(framework);
+        forwarding.setMethods(".*");
+    }
+
+    private MethodForwarding newForwarding(Framework node) {
+        final MethodForwarding unit = new MethodForwarding(MBeanServerFactory.newMBeanServer(),
+            node.getInstance(SessionAttachment.class), node.getInstance(RateLimiter.class));
+        unit.setNode("a");
+        return unit;
+    }
+
+    private RateLimiter limit(Framework node) throws LifecycleException {
+        final RateLimiter limiter = node.getInstance(RateLimiter.class);
+        limiter.setEnabled(true);
+        limiter.setScope(RateLimitScope.SESSION);
+        // one permit per hour, so nothing refills during a test
+        limiter.setPermits(1);
+        limiter.setPeriod(1);
+        limiter.setPeriodUnit(TimeUnit.HOURS);
+        limiter.setBurst(1);
+        limiter.initialize();
+        limiters.add(limiter);
+        return limiter;
+    }
+
+    private JsonRpcTransport newPeer(String name) {
+        return newPeer(name, Palava.newFramework());
+    }
+
+    private JsonRpcTransport newPeer(final String name, Framework peer) {
+        final JsonRpc2BatchProtocol protocol = peer.getInstance(JsonRpc2BatchProtocol.class);
+        final DetachedConnection connection = WarmUp.newConnection();
+        received.put(name, Lists.<Map<String, Object>>newCopyOnWriteArrayList());
+        return new JsonRpcTransport() {
+
+            @Override
+            public Object send(List<Map<String, Object>> batch) throws IOException {
+                received.get(name).addAll(batch);
+                try {
+                    return protocol.process(batch, connection);
+                } catch (ProtocolException e) {
+                    throw new IOException(e);
+                }
+            }
+
+        };
+    }
+
+    private List<Map<String, Object>> newBatch() {
+        final List<Map<String, Object>> batch = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            final Map<String, Object> call = Maps.newHashMap();
+            call.put(JsonRpc.JSON_RPC, JsonRpc2Protocol.VERSION);
+            call.put(JsonRpc.METHOD, i % 2 == 0 ? Echo.class.getName() : "unknown.Method" + i);
+            call.put(JsonRpc.PARAMS, ImmutableMap.of("value", i));
+            // one call is a notification, all others share the same id
+            if (i != 8) {
+                call.put(JsonRpc.ID, "id");
+            }
+            batch.add(call);
+        }
+        return batch;
+    }
+
+    private void verify(List<Map<String, Object>> batch, List<?> responses) {
+        Assert.assertEquals(batch.size(), responses.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (i == 8) {
+                Assert.assertSame(Protocol.NO_RESPONSE, responses.get(i));
+                continue;
+            }
+            final Map<?, ?> response = Map.class.cast(responses.get(i));
+            Assert.assertEquals("id", response.get(JsonRpc.ID));
+            if (i % 2 == 0) {
+                Assert.assertEquals(ImmutableMap.of("value", i), response.get(JsonRpc.RESULT));
+            } else {
+                Assert.assertTrue(response.containsKey(JsonRpc.ERROR));
+            }
+        }
+    }
+
+    /**
+     * Tests that a batch is split by method and reassembled in request order.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void forward() throws Exception {
+        forwarding.setPeers(ImmutableMap.of("b", newPeer("b"), "c", newPeer("c")));
+        forwarding.initialize();
+        Assert.assertTrue(forwarding.isEnabled());
+
+        final List<Map<String, Object>> batch = newBatch();
+        verify(batch, forwarding.forward(batch, connection, local));
+
+        int remote = 0;
+        for (Map.Entry<String, List<Map<String, Object>>> entry : received.entrySet()) {
+            for (Map<String, Object> call : entry.getValue()) {
+                Assert.assertEquals(Boolean.TRUE, call.get(JsonRpc.FORWARDED));
+                call.remove(JsonRpc.FORWARDED);
+                Assert.assertEquals(entry.getKey(), forwarding.route(call));
+                remote++;
+            }
+        }
+        Assert.assertTrue(remote > 0);
+        Assert.assertEquals(remote, forwarding.getForwardedCalls());
+    }
+
+    /**
+     * Tests that nothing is forwarded unless methods are configured.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void unconfigured() throws Exception {
+        final MethodForwarding unconfigured = newForwarding(framework);
+        unconfigured.setPeers(ImmutableMap.of("b", newPeer("b"), "c", newPeer("c")));
+        unconfigured.initialize();
+        Assert.assertFalse(unconfigured.isEnabled());
+        for (Map<String, Object> call : newBatch()) {
+            Assert.assertNull(unconfigured.route(call));
+        }
+    }
+
+    /**
+     * Tests that calls of an unreachable peer move on to the next node.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void failover() throws Exception {
+        forwarding.setPeers(ImmutableMap.<String, JsonRpcTransport>of("b", new JsonRpcTransport() {
+
+            @Override
+            public Object send(List<Map<String, Object>> batch) throws IOException {
+                throw new ConnectException("b is down");
+            }
+
+        }, "c", newPeer("c")));
+        forwarding.initialize();
+
+        final List<Map<String, Object>> batch = newBatch();
+        boolean routedToB = false;
+        for (Map<String, Object> call : batch) {
+            routedToB |= "b".equals(forwarding.route(call));
+        }
+        Assert.assertTrue(routedToB);
+
+        verify(batch, forwarding.forward(batch, connection, local));
+        Assert.assertEquals(1, forwarding.getFailovers());
+        Assert.assertEquals(Arrays.asList("b"), Arrays.asList(forwarding.getUnavailablePeers()));
+        for (Map<String, Object> call : batch) {
+            Assert.assertFalse("b".equals(forwarding.route(call)));
+        }
+    }
+
+    /**
+     * Tests that calls which may have reached a failing peer fail instead of
+     * being executed again.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void peerFailure() throws Exception {
+        final JsonRpcTransport c = newPeer("c");
+        received.put("b", Lists.<Map<String, Object>>newCopyOnWriteArrayList());
+        forwarding.setPeers(ImmutableMap.<String, JsonRpcTransport>of("b", new JsonRpcTransport() {
+
+            @Override
+            public Object send(List<Map<String, Object>> batch) throws IOException {
+                received.get("b").addAll(batch);
+                throw new IOException("connection reset");
+            }
+
+        }, "c", c));
+        forwarding.initialize();
+
+        final List<Map<String, Object>> batch = newBatch();
+        final List<Boolean> routedToB = Lists.newArrayList();
+        for (Map<String, Object> call : batch) {
+            routedToB.add("b".equals(forwarding.route(call)));
+        }
+        Assert.assertTrue(routedToB.contains(true));
+
+        final List<?> responses = forwarding.forward(batch, connection, local);
+        for (int i = 0; i < batch.size(); i++) {
+            if (!routedToB.get(i)) continue;
+            if (i == 8) {
+                Assert.assertSame(Protocol.NO_RESPONSE, responses.get(i));
+                continue;
+            }
+            final Map<?, ?> response = Map.class.cast(responses.get(i));
+            Assert.assertEquals("id", response.get(JsonRpc.ID));
+            final Map<?, ?> error = Map.class.cast(response.get(JsonRpc.ERROR));
+            Assert.assertEquals(ErrorCode.INTERNAL_ERROR,
+                ErrorCode.of(Number.class.cast(error.get(JsonRpc.CODE)).intValue()));
+        }
+        Assert.assertEquals(0, forwarding.getFailovers());
+        Assert.assertEquals(Arrays.asList("b"), Arrays.asList(forwarding.getUnavailablePeers()));
+        // sent exactly once, never rerouted to c
+        Assert.assertEquals(Collections.frequency(routedToB, true), received.get("b").size());
+        for (Map<String, Object> call : received.get("c")) {
+            call.remove(JsonRpc.FORWARDED);
+            Assert.assertEquals("c", forwarding.route(call));
+        }
+    }
+
+    /**
+     * Tests that forwarding refuses to start unless session-free methods are declared.
+     *
+     * @throws Exception should not happen
+     */
+    @Test(expected = IllegalStateException.class)
+    public void sessionful() throws Exception {
+        final MethodForwarding sessionful = newForwarding(Palava.newFramework());
+        sessionful.setMethods(".*");
+        sessionful.setPeers(ImmutableMap.of("b", newPeer("b")));
+        sessionful.initialize();
+    }
+
+    /**
+     * Tests that methods which may access the session always stay on this node.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void statelessOnly() throws Exception {
+        framework.getInstance(SessionAttachment.class).setStatelessMethods("unknown\\..*");
+        forwarding.setPeers(ImmutableMap.of("b", newPeer("b"), "c", newPeer("c")));
+        forwarding.initialize();
+
+        int remote = 0;
+        for (Map<String, Object> call : newBatch()) {
+            if (Echo.class.getName().equals(call.get(JsonRpc.METHOD))) {
+                Assert.assertNull(forwarding.route(call));
+            } else if (forwarding.route(call) != null) {
+                remote++;
+            }
+        }
+        Assert.assertTrue(remote > 0);
+    }
+
+    /**
+     * Tests that callers in different sessions keep their own rate limit quota
+     * on the peer, although the peer executes all their calls on one connection.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void sessions() throws Exception {
+        limit(framework);
+        final Framework peer = Palava.newFramework();
+        peer.getInstance(SessionAttachment.class).setStatelessMethods(".*");
+        limit(peer);
+        forwarding.setPeers(ImmutableMap.of("b", newPeer("b", peer), "c", newPeer("c", peer)));
+        forwarding.initialize();
+
+        final Map<String, Object> call = Maps.newHashMap();
+        call.put(JsonRpc.JSON_RPC, JsonRpc2Protocol.VERSION);
+        call.put(JsonRpc.METHOD, Echo.class.getName());
+        call.put(JsonRpc.PARAMS, ImmutableMap.of("value", 1));
+        call.put(JsonRpc.ID, "id");
+        final List<Map<String, Object>> batch = Collections.singletonList(call);
+        Assert.assertNotNull(forwarding.route(call));
+
+        final SessionAttachment sessionAttachment = framework.getInstance(SessionAttachment.class);
+        final DetachedConnection first = WarmUp.newConnection();
+        sessionAttachment.attach(first);
+        final DetachedConnection second = WarmUp.newConnection();
+        sessionAttachment.attach(second);
+
+        final Map<?, ?> granted = Map.class.cast(forwarding.forward(batch, first, local).get(0));
+        Assert.assertEquals(ImmutableMap.of("value", 1), granted.get(JsonRpc.RESULT));
+        final Map<?, ?> other = Map.class.cast(forwarding.forward(batch, second, local).get(0));
+        Assert.assertEquals(ImmutableMap.of("value", 1), other.get(JsonRpc.RESULT));
+        final Map<?, ?> throttled = Map.class.cast(forwarding.forward(batch, first, local).get(0));
+        final Map<?, ?> error = Map.class.cast(throttled.get(JsonRpc.ERROR));
+        Assert.assertEquals(ErrorCode.RATE_LIMITED,
+            ErrorCode.of(Number.class.cast(error.get(JsonRpc.CODE)).intValue()));
+
+        final List<Object> identities = Lists.newArrayList();
+        for (List<Map<String, Object>> calls : received.values()) {
+            for (Map<String, Object> forwarded : calls) {
+                identities.add(forwarded.get(JsonRpc.FORWARDED));
+            }
+        }
+        Assert.assertEquals(Arrays.<Object>asList(
+            first.getSession().getSessionId(),
+            second.getSession().getSessionId(),
+            first.getSession().getSessionId()
+        ), identities);
+    }
+
+    /**
+     * Stops the forwarding and all enabled rate limiters.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @After
+    public void after() throws LifecycleException {
+        forwarding.dispose();
+        for (RateLimiter limiter : limiters) {
+            limiter.dispose();
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.ipc.IpcArguments;
+
+/**
+ * Tests {@link MethodSignature}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class MethodSignatureTest implements UnitProvider<MethodSignature> {
+
+    @Override
+    public MethodSignature unit() {
+        return MethodSignature.of(Echo.class.getName()).
+            required("query", String.class).
+            optional("limit", Number.class);
+    }
+    
+    /**
+     * Tests {@link MethodSignature#bind(Object)} with positional params.
+     */
+    @Test
+    public void positional() {
+        final IpcArguments arguments = unit().bind(Arrays.asList("foo", 10));
+        Assert.assertEquals("foo", arguments.get("query"));
+        Assert.assertEquals(10, arguments.get("limit"));
+    }
+    
+    /**
+     * Tests {@link MethodSignature#bind(Object)} with named params.
+     */
+    @Test
+    public void named() {
+        final IpcArguments arguments = unit().bind(ImmutableMap.of("query", "foo"));
+        Assert.assertEquals("foo", arguments.get("query"));
+        Assert.assertNull(arguments.get("limit"));
+    }
+    
+    /**
+     * Tests {@link MethodSignature#bind(Object)} without required params.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void missing() {
+        unit().bind(Collections.emptyList());
+    }
+    
+    /**
+     * Tests {@link MethodSignature#bind(Object)} with omitted params.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void omitted() {
+        unit().bind(null);
+    }
+    
+    /**
+     * Tests {@link MethodSignature#bind(Object)} with too many positional params.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void tooMany() {
+        unit().bind(Arrays.asList("foo", 10, true));
+    }
+    
+    /**
+     * Tests {@link MethodSignature#bind(Object)} with an undeclared named param.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void unknown() {
+        unit().bind(ImmutableMap.of("query", "foo", "offset", 10));
+    }
+    
+    /**
+     * Tests {@link MethodSignature#bind(Object)} with a wrongly typed param.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongType() {
+        unit().bind(Arrays.asList("foo", "10"));
+    }
+    
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+
+/**
+ * Tests {@link RateLimiter}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class RateLimiterTest implements UnitProvider<RateLimiter> {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final IpcConnection connection = WarmUp.newConnection();
+
+    private RateLimiter unit;
+
+    @Override
+    public RateLimiter unit() {
+        final RateLimiter limiter = new RateLimiter(scheduler, MBeanServerFactory.newMBeanServer());
+        limiter.setEnabled(true);
+        // one permit per hour, so nothing refills during a test
+        limiter.setPermits(1);
+        limiter.setPeriod(1);
+        limiter.setPeriodUnit(TimeUnit.HOURS);
+        limiter.setBurst(3);
+        return limiter;
+    }
+
+    private RateLimiter initialized(RateLimiter limiter) throws LifecycleException {
+        limiter.initialize();
+        this.unit = limiter;
+        return limiter;
+    }
+
+    /**
+     * Tests that exactly burst many calls are allowed back to back.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void burst() throws LifecycleException {
+        final RateLimiter limiter = initialized(unit());
+        Assert.assertNull(limiter.acquire("method", connection));
+        Assert.assertNull(limiter.acquire("method", connection));
+        Assert.assertNull(limiter.acquire("method", connection));
+        final Map<String, Object> error = limiter.acquire("method", connection);
+        Assert.assertNotNull(error);
+        final Map<?, ?> data = Map.class.cast(error.get(JsonRpc.DATA));
+        final long retryAfter = Number.class.cast(data.get("retryAfter")).longValue();
+        Assert.assertTrue(retryAfter > TimeUnit.MINUTES.toMillis(59));
+        Assert.assertTrue(retryAfter <= TimeUnit.HOURS.toMillis(1));
+        Assert.assertEquals(1, limiter.getThrottled());
+    }
+
+    /**
+     * Tests that permits are granted again once the bucket refilled.
+     *
+     * @throws LifecycleException should not happen
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void refill() throws LifecycleException, InterruptedException {
+        final RateLimiter limiter = unit();
+        limiter.setPeriodUnit(TimeUnit.MILLISECONDS);
+        limiter.setPeriod(20);
+        limiter.setBurst(1);
+        initialized(limiter);
+        Assert.assertNull(limiter.acquire("method", connection));
+        Assert.assertNotNull(limiter.acquire("method", connection));
+        Thread.sleep(40);
+        Assert.assertNull(limiter.acquire("method", connection));
+    }
+
+    /**
+     * Tests that multiple permits are granted all at once or not at all.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void allOrNothing() throws LifecycleException {
+        final RateLimiter limiter = initialized(unit());
+        Assert.assertNull(limiter.acquire("method", connection, 2));
+        Assert.assertNotNull(limiter.acquire("method", connection, 2));
+        Assert.assertNull(limiter.acquire("method", connection, 1));
+        Assert.assertNotNull(limiter.acquire("method", connection, 1));
+    }
+
+    /**
+     * Tests that a bulk larger than the burst is rejected without a retry-after hint
+     * and without touching the bucket.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void oversizedBulk() throws LifecycleException {
+        final RateLimiter limiter = initialized(unit());
+        final Map<String, Object> error = limiter.acquire("method", connection, 4);
+        Assert.assertNotNull(error);
+        Assert.assertNull(error.get(JsonRpc.DATA));
+        Assert.assertEquals(1, limiter.getThrottled());
+        Assert.assertNull(limiter.acquire("method", connection, 3));
+    }
+
+    /**
+     * Tests that every connection has its own bucket.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void perConnection() throws LifecycleException {
+        final RateLimiter limiter = initialized(unit());
+        Assert.assertNull(limiter.acquire("method", connection, 3));
+        Assert.assertNotNull(limiter.acquire("method", connection));
+        Assert.assertNull(limiter.acquire("method", WarmUp.newConnection()));
+        Assert.assertEquals(2, limiter.getBuckets());
+    }
+
+    /**
+     * Tests that methods not matching the configured pattern are never throttled.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void methods() throws LifecycleException {
+        final RateLimiter limiter = unit();
+        limiter.setMethods("limited\\..*");
+        initialized(limiter);
+        Assert.assertNull(limiter.acquire("limited.Command", connection, 3));
+        Assert.assertNotNull(limiter.acquire("limited.Command", connection));
+        Assert.assertNull(limiter.acquire("other.Command", connection));
+    }
+
+    /**
+     * Tests that a disabled limiter never throttles.
+     */
+    @Test
+    public void disabled() {
+        final RateLimiter limiter = new RateLimiter(scheduler, MBeanServerFactory.newMBeanServer());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNull(limiter.acquire("method", connection));
+        }
+    }
+
+    /**
+     * Disposes the limiter and shuts down the scheduler.
+     *
+     * @throws LifecycleException should not happen
+     * @throws InterruptedException should not happen
+     */
+    @After
+    public void after() throws LifecycleException, InterruptedException {
+        if (unit != null) {
+            unit.dispose();
+        }
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+}
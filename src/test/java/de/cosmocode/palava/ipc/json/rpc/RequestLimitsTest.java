@@ -0,0 +1,92 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Collections;
+
+import javax.management.MBeanServerFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link RequestLimits}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class RequestLimitsTest implements UnitProvider<RequestLimits> {
+
+    @Override
+    public RequestLimits unit() {
+        return new RequestLimits(MBeanServerFactory.newMBeanServer());
+    }
+
+    /**
+     * Tests that batches longer than the configured maximum are rejected.
+     */
+    @Test
+    public void batchSize() {
+        final RequestLimits unit = unit();
+        unit.setMaxBatchSize(2);
+        Assert.assertNull(unit.checkBatch(Collections.nCopies(2, "call")));
+        Assert.assertNotNull(unit.checkBatch(Collections.nCopies(3, "call")));
+        Assert.assertEquals(1, unit.getRejectedBatches());
+    }
+
+    /**
+     * Tests that params nested deeper than the configured maximum are rejected.
+     */
+    @Test
+    public void depth() {
+        final RequestLimits unit = unit();
+        unit.setMaxParamsDepth(2);
+        Assert.assertNull(unit.checkParams(ImmutableMap.of("a", ImmutableList.of(1, 2))));
+        Assert.assertNotNull(unit.checkParams(ImmutableMap.of("a", ImmutableList.of(ImmutableMap.of("b", 1)))));
+        Assert.assertEquals(1, unit.getRejectedParamsDepth());
+        Assert.assertEquals(0, unit.getRejectedParamsElements());
+    }
+
+    /**
+     * Tests that params with more elements than the configured maximum are rejected.
+     */
+    @Test
+    public void elements() {
+        final RequestLimits unit = unit();
+        unit.setMaxParamsElements(3);
+        Assert.assertNull(unit.checkParams(ImmutableList.of(1, ImmutableList.of(2))));
+        Assert.assertNotNull(unit.checkParams(ImmutableList.of(1, ImmutableList.of(2, 3))));
+        Assert.assertEquals(1, unit.getRejectedParamsElements());
+    }
+
+    /**
+     * Tests that unconfigured limits accept everything.
+     */
+    @Test
+    public void unlimited() {
+        final RequestLimits unit = unit();
+        Assert.assertNull(unit.checkBatch(Collections.nCopies(10000, "call")));
+        Assert.assertNull(unit.checkParams(ImmutableMap.of("a", ImmutableMap.of("b", ImmutableMap.of("c", 1)))));
+        Assert.assertNull(unit.checkParams(null));
+    }
+
+}
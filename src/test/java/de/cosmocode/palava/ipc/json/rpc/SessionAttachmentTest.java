@@ -0,0 +1,188 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServerFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.ipc.IpcConnection;
+import de.cosmocode.palava.ipc.IpcSessionProvider;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests {@link SessionAttachment}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class SessionAttachmentTest implements UnitProvider<SessionAttachment> {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final CountingSession session = new CountingSession();
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    @Override
+    public SessionAttachment unit() {
+        final IpcSessionProvider provider = IpcSessionProvider.class.cast(Proxy.newProxyInstance(
+            IpcSessionProvider.class.getClassLoader(), new Class<?>[] {IpcSessionProvider.class},
+            new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!"getSession".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    lookups.incrementAndGet();
+                    return session.getSession();
+                }
+
+            }));
+        final SessionCleaner cleaner = new SessionCleaner(scheduler,
+            MBeanServerFactory.newMBeanServer());
+        return new SessionAttachment(provider, cleaner);
+    }
+
+    /**
+     * Tests that the session is looked up on first access only.
+     */
+    @Test
+    public void lazy() {
+        final SessionAttachment unit = unit();
+        final DetachedConnection connection = WarmUp.newConnection();
+        Assert.assertTrue(unit.attach(connection));
+        Assert.assertFalse(unit.attach(connection));
+        Assert.assertEquals(0, lookups.get());
+        connection.getSession().set("key", "value");
+        connection.getSession().get("key");
+        Assert.assertEquals(1, lookups.get());
+        Assert.assertEquals(1, session.countOf("set"));
+    }
+
+    /**
+     * Tests that sessions which have never been used are not cleared.
+     */
+    @Test
+    public void clear() {
+        final SessionAttachment unit = unit();
+        final DetachedConnection unused = WarmUp.newConnection();
+        unit.attach(unused);
+        unit.clear(unused);
+        Assert.assertEquals(0, lookups.get());
+        Assert.assertEquals(0, session.countOf("clear"));
+
+        final DetachedConnection used = WarmUp.newConnection();
+        unit.attach(used);
+        used.getSession().set("key", "value");
+        unit.clear(used);
+        Assert.assertEquals(1, session.countOf("clear"));
+    }
+
+    /**
+     * Tests that stateless methods can't access the session.
+     */
+    @Test
+    public void stateless() {
+        final SessionAttachment unit = unit();
+        unit.setStatelessMethods("stateless\\..*");
+        final DetachedConnection connection = WarmUp.newConnection();
+        unit.attach(connection);
+
+        Assert.assertSame(connection, unit.connectionOf("stateful.Command", connection));
+        final IpcConnection view = unit.connectionOf("stateless.Command", connection);
+        Assert.assertEquals(connection.getConnectionId(), view.getConnectionId());
+        try {
+            view.getSession();
+            Assert.fail("Stateless method accessed the session");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(0, lookups.get());
+        }
+    }
+
+    /**
+     * Tests that views of stateless methods are equal to their connection.
+     */
+    @Test
+    public void statelessEquality() {
+        final SessionAttachment unit = unit();
+        unit.setStatelessMethods("stateless\\..*");
+        final DetachedConnection connection = WarmUp.newConnection();
+        unit.attach(connection);
+
+        final IpcConnection view = unit.connectionOf("stateless.Command", connection);
+        Assert.assertTrue(view.equals(connection));
+        Assert.assertTrue(view.equals(unit.connectionOf("stateless.Other", connection)));
+        Assert.assertEquals(connection.hashCode(), view.hashCode());
+        Assert.assertFalse(view.equals(unit.connectionOf("stateless.Command", WarmUp.newConnection())));
+        Assert.assertFalse(view.equals(null));
+    }
+
+    /**
+     * Tests that streamed results of stateless methods are tracked by their connection.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void statelessStream() throws ProtocolException {
+        final Framework framework = Palava.newFramework();
+        framework.getInstance(SessionAttachment.class).setStatelessMethods(Pattern.quote(Stream.class.getName()));
+        Stream.PRODUCED.set(0);
+        Stream.CLOSED.set(0);
+        final Map<String, Object> request = Maps.newHashMap();
+        request.put(JsonRpc.JSON_RPC, JsonRpc2Protocol.VERSION);
+        request.put(JsonRpc.METHOD, Stream.class.getName());
+        request.put(JsonRpc.ID, 1);
+        final DetachedConnection connection = WarmUp.newConnection();
+        final Object response = framework.getInstance(JsonRpc2Protocol.class).process(request, connection);
+        Assert.assertTrue(Map.class.cast(response).get(JsonRpc.RESULT) instanceof StreamedResult);
+        StreamedResult.closeAll(connection);
+        Assert.assertEquals(1, Stream.CLOSED.get());
+        Assert.assertEquals(0, Stream.PRODUCED.get());
+    }
+
+    /**
+     * Shuts down the scheduler.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @After
+    public void after() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests {@link SessionCleaner}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class SessionCleanerTest implements UnitProvider<SessionCleaner> {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @Override
+    public SessionCleaner unit() {
+        final SessionCleaner unit = new SessionCleaner(scheduler,
+            MBeanServerFactory.newMBeanServer());
+        unit.setAsync(true);
+        unit.setQueueCapacity(1);
+        // the scheduler never fires during a test
+        unit.setInterval(1);
+        unit.setIntervalUnit(TimeUnit.HOURS);
+        return unit;
+    }
+
+    /**
+     * Tests that sessions which don't fit into the queue are cleared synchronously.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void overflow() throws LifecycleException {
+        final SessionCleaner unit = unit();
+        unit.initialize();
+        final CountingSession queued = new CountingSession();
+        final CountingSession overflowing = new CountingSession();
+        unit.clear(queued.getSession());
+        unit.clear(overflowing.getSession());
+        Assert.assertEquals(0, queued.countOf("clear"));
+        Assert.assertEquals(1, overflowing.countOf("clear"));
+        Assert.assertEquals(1, unit.getOverflows());
+        Assert.assertEquals(1, unit.getQueueSize());
+        unit.dispose();
+    }
+
+    /**
+     * Tests that pending sessions are cleared on dispose.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void flushOnDispose() throws LifecycleException {
+        final SessionCleaner unit = unit();
+        unit.initialize();
+        final CountingSession session = new CountingSession();
+        unit.clear(session.getSession());
+        Assert.assertEquals(0, session.countOf("clear"));
+        unit.dispose();
+        Assert.assertEquals(1, session.countOf("clear"));
+        Assert.assertEquals(1, unit.getCleared());
+    }
+
+    /**
+     * Tests that failing sessions are retried and given up eventually.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @Test
+    public void retries() throws LifecycleException {
+        final SessionCleaner unit = unit();
+        unit.setMaxRetries(2);
+        unit.initialize();
+        final CountingSession session = new CountingSession();
+        session.setFailing(true);
+        unit.clear(session.getSession());
+        unit.dispose();
+        Assert.assertEquals(3, session.countOf("clear"));
+        Assert.assertEquals(2, unit.getRetried());
+        Assert.assertEquals(1, unit.getFailed());
+    }
+
+    /**
+     * Shuts down the scheduler.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @After
+    public void after() throws InterruptedException {
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests {@link StreamedResult}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class StreamedResultTest implements UnitProvider<StreamedResult> {
+
+    private final AtomicInteger closes = new AtomicInteger();
+    
+    private final Closeable resource = new Closeable() {
+        
+        @Override
+        public void close() {
+            closes.incrementAndGet();
+        }
+        
+    };
+    
+    /**
+     * Resets the counters of {@link Stream}.
+     */
+    @Before
+    public void before() {
+        Stream.PRODUCED.set(0);
+        Stream.CLOSED.set(0);
+    }
+    
+    @Override
+    public StreamedResult unit() {
+        return StreamedResult.of(ImmutableList.of(1, 2, 3).iterator(), resource);
+    }
+    
+    /**
+     * Tests that the resource is closed exactly once after the last element.
+     */
+    @Test
+    public void closesWhenExhausted() {
+        final StreamedResult unit = unit();
+        int count = 0;
+        for (Object element : unit) {
+            Assert.assertEquals(0, closes.get());
+            Assert.assertEquals(++count, element);
+        }
+        Assert.assertEquals(3, count);
+        Assert.assertEquals(1, closes.get());
+        unit.close();
+        Assert.assertEquals(1, closes.get());
+    }
+    
+    /**
+     * Tests that the resource is closed if the producer fails.
+     */
+    @Test
+    public void closesOnFailure() {
+        final StreamedResult unit = StreamedResult.of(new Iterator<Object>() {
+            
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+            
+            @Override
+            public Object next() {
+                throw new IllegalStateException();
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+            
+        }, resource);
+        final Iterator<Object> iterator = unit.iterator();
+        Assert.assertTrue(iterator.hasNext());
+        try {
+            iterator.next();
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(1, closes.get());
+        }
+        Assert.assertFalse(iterator.hasNext());
+    }
+    
+    /**
+     * Tests that a streamed result can't be iterated twice.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void iterateTwice() {
+        final StreamedResult unit = unit();
+        unit.iterator();
+        unit.iterator();
+    }
+    
+    private Object newStreamCall(DetachedConnection connection) throws ProtocolException {
+        final Map<String, Object> request = Maps.newHashMap();
+        request.put(JsonRpc.JSON_RPC, "2.0");
+        request.put(JsonRpc.METHOD, Stream.class.getName());
+        request.put(JsonRpc.ID, 1);
+        final JsonRpc2Protocol protocol = Palava.newFramework().getInstance(JsonRpc2Protocol.class);
+        final Object response = protocol.process(request, connection);
+        return Map.class.cast(response).get(JsonRpc.RESULT);
+    }
+    
+    /**
+     * Tests that the protocol returns the stream unconsumed, so elements are
+     * produced while the response is written.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void lazyThroughProtocol() throws ProtocolException {
+        final Object result = newStreamCall(WarmUp.newConnection());
+        Assert.assertTrue(result instanceof StreamedResult);
+        Assert.assertEquals(0, Stream.PRODUCED.get());
+        final Iterator<Object> iterator = StreamedResult.class.cast(result).iterator();
+        Assert.assertEquals(1, iterator.next());
+        Assert.assertEquals(1, Stream.PRODUCED.get());
+        Assert.assertEquals(2, iterator.next());
+        Assert.assertEquals(3, iterator.next());
+        Assert.assertFalse(iterator.hasNext());
+        Assert.assertEquals(1, Stream.CLOSED.get());
+    }
+    
+    /**
+     * Tests that streams are closed when their connection is destroyed before
+     * the response was written.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void closedWithConnection() throws ProtocolException {
+        final DetachedConnection connection = WarmUp.newConnection();
+        newStreamCall(connection);
+        newStreamCall(connection);
+        Assert.assertEquals(0, Stream.CLOSED.get());
+        StreamedResult.closeAll(connection);
+        Assert.assertEquals(2, Stream.CLOSED.get());
+        Assert.assertEquals(0, Stream.PRODUCED.get());
+    }
+    
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.ipc.IpcConnection;
+
+/**
+ * Tests {@link Subscriptions}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class SubscriptionsTest implements UnitProvider<Subscriptions> {
+
+    private final List<Object> pushed = Lists.newCopyOnWriteArrayList();
+
+    private final Set<IpcConnection> broken = Sets.newCopyOnWriteArraySet();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @Override
+    public Subscriptions unit() {
+        final Subscriptions unit = new Subscriptions();
+        unit.setEnabled(true);
+        unit.setChannel(new PushChannel() {
+
+            @Override
+            public void push(IpcConnection connection, Map<String, Object> notification) throws IOException {
+                if (broken.contains(connection)) {
+                    throw new IOException("broken pipe");
+                }
+                final Map<?, ?> params = Map.class.cast(notification.get(JsonRpc.PARAMS));
+                pushed.add(params.get(JsonRpc.RESULT));
+            }
+
+        });
+        return unit;
+    }
+
+    /**
+     * Tests that published data reaches subscribers of its topic only.
+     */
+    @Test
+    public void publish() {
+        final Subscriptions unit = unit();
+        final IpcConnection connection = WarmUp.newConnection();
+        final int id = unit.subscribe(connection, "a");
+        unit.subscribe(WarmUp.newConnection(), "b");
+        unit.publish("a", 1);
+        Assert.assertEquals(Lists.newArrayList(1), pushed);
+        Assert.assertTrue(unit.unsubscribe(connection, id));
+        Assert.assertFalse(unit.unsubscribe(connection, id));
+        unit.publish("a", 2);
+        Assert.assertEquals(Lists.newArrayList(1), pushed);
+    }
+
+    /**
+     * Tests that a failed push cancels the affected subscription only.
+     */
+    @Test
+    public void failedPush() {
+        final Subscriptions unit = unit();
+        final IpcConnection connection = WarmUp.newConnection();
+        final int id = unit.subscribe(connection, "a");
+        unit.subscribe(connection, "b");
+        broken.add(connection);
+        unit.publish("a", 1);
+        broken.clear();
+        unit.publish("a", 2);
+        unit.publish("b", 3);
+        Assert.assertEquals(Lists.newArrayList(3), pushed);
+        Assert.assertFalse(unit.unsubscribe(connection, id));
+    }
+
+    /**
+     * Tests that destroyed connections can't subscribe again.
+     */
+    @Test
+    public void destroyed() {
+        final Subscriptions unit = unit();
+        final IpcConnection connection = WarmUp.newConnection();
+        unit.subscribe(connection, "a");
+        unit.unsubscribeAll(connection, true);
+        try {
+            unit.subscribe(connection, "a");
+            Assert.fail("Destroyed connection subscribed");
+        } catch (IllegalStateException e) {
+            unit.publish("a", 1);
+            Assert.assertTrue(pushed.isEmpty());
+        }
+    }
+
+    /**
+     * Tests that connections which were never handled are left untouched.
+     */
+    @Test
+    public void untouched() {
+        final Subscriptions unit = unit();
+        final IpcConnection connection = WarmUp.newConnection();
+        unit.unsubscribeAll(connection, false);
+        unit.subscribe(connection, "a");
+        unit.publish("a", 1);
+        Assert.assertEquals(Lists.newArrayList(1), pushed);
+    }
+
+    /**
+     * Tests that nothing is refused while subscriptions are disabled.
+     */
+    @Test
+    public void disabled() {
+        final Subscriptions unit = unit();
+        unit.setEnabled(false);
+        final IpcConnection connection = WarmUp.newConnection();
+        unit.unsubscribeAll(connection, true);
+        unit.subscribe(connection, "a");
+    }
+
+    /**
+     * Tests that the number of subscriptions per connection is limited.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void maxPerConnection() {
+        final Subscriptions unit = unit();
+        unit.setMaxPerConnection(1);
+        final IpcConnection connection = WarmUp.newConnection();
+        unit.subscribe(connection, "a");
+        unit.subscribe(connection, "b");
+    }
+
+    /**
+     * Tests that subscriptions racing with the destruction of their connection never leak.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void race() throws Exception {
+        final Subscriptions unit = unit();
+        for (int i = 0; i < 1000; i++) {
+            final IpcConnection connection = WarmUp.newConnection();
+            final Future<?> destroy = executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    unit.unsubscribeAll(connection, true);
+                    return null;
+                }
+
+            });
+            try {
+                unit.subscribe(connection, "a");
+            } catch (IllegalStateException e) {
+                // destroyed first
+            }
+            destroy.get();
+        }
+        unit.publish("a", 1);
+        Assert.assertTrue(pushed.isEmpty());
+    }
+
+    /**
+     * Shuts down the executor.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @After
+    public void after() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import javax.management.MBeanServerFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.junit.UnitProvider;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcConnection;
+
+/**
+ * Tests {@link TrafficCapture}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class TrafficCaptureTest implements UnitProvider<TrafficCapture> {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final IpcConnection connection = WarmUp.newConnection();
+
+    private File file;
+
+    private TrafficCapture unit;
+
+    @Override
+    public TrafficCapture unit() {
+        try {
+            file = File.createTempFile("capture-", ".gz");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        file.deleteOnExit();
+        final TrafficCapture capture = new TrafficCapture(scheduler, MBeanServerFactory.newMBeanServer());
+        capture.setFile(file.getPath());
+        capture.setRedactedMembers("password");
+        // flushed by the tests only
+        capture.setInterval(1);
+        capture.setIntervalUnit(TimeUnit.HOURS);
+        return capture;
+    }
+
+    private TrafficCapture initialized(TrafficCapture capture) throws LifecycleException {
+        capture.initialize();
+        this.unit = capture;
+        return capture;
+    }
+
+    private List<Object> read() throws IOException {
+        final List<Object> requests = Lists.newArrayList();
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                requests.add(TrafficCapture.Record.readFrom(in).getRequest());
+            }
+        } catch (EOFException e) {
+            return requests;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stops the capture and its scheduler.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @After
+    public void after() throws LifecycleException {
+        if (unit != null) {
+            unit.dispose();
+        }
+        scheduler.shutdownNow();
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Tests that a request is captured as it was before processing, redacted.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void snapshot() throws Exception {
+        final TrafficCapture capture = initialized(unit());
+        final Map<String, Object> params = Maps.newHashMap();
+        params.put("user", "jane");
+        params.put("password", "secret");
+        final Map<String, Object> request = Maps.newLinkedHashMap();
+        request.put(JsonRpc.METHOD, "method");
+        request.put(JsonRpc.PARAMS, params);
+        final Object snapshot = capture.snapshot(request);
+        params.put("user", "john");
+        request.remove(JsonRpc.METHOD);
+        capture.record(snapshot, connection, System.currentTimeMillis(), System.nanoTime());
+        capture.run();
+        Assert.assertEquals(Lists.newArrayList(ImmutableMap.of(
+            JsonRpc.METHOD, "method",
+            JsonRpc.PARAMS, ImmutableMap.of("user", "jane", "password", "<redacted>")
+        )), read());
+        Assert.assertEquals(1, capture.getCaptured());
+    }
+
+    /**
+     * Tests that a record failing to encode is dropped as a whole and the others are captured.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void failingRecord() throws Exception {
+        final TrafficCapture capture = initialized(unit());
+        capture.record(ImmutableMap.of("broken", new Object() {
+
+            @Override
+            public String toString() {
+                throw new UnsupportedOperationException();
+            }
+
+        }), connection, System.currentTimeMillis(), System.nanoTime());
+        capture.record(ImmutableMap.of(JsonRpc.METHOD, "method"), connection,
+            System.currentTimeMillis(), System.nanoTime());
+        capture.run();
+        Assert.assertEquals(1, capture.getDropped());
+        Assert.assertEquals(1, capture.getCaptured());
+        Assert.assertEquals(Lists.newArrayList(ImmutableMap.of(JsonRpc.METHOD, "method")), read());
+    }
+
+    /**
+     * Tests that records completing out of order are written in arrival order,
+     * stamped with their arrival.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void arrivalOrder() throws Exception {
+        final TrafficCapture capture = initialized(unit());
+        final long arrival = System.currentTimeMillis() - 1000;
+        capture.record(ImmutableMap.of(JsonRpc.METHOD, "fast"), connection, arrival + 10, System.nanoTime());
+        capture.record(ImmutableMap.of(JsonRpc.METHOD, "slow"), connection, arrival, System.nanoTime());
+        capture.run();
+        Assert.assertEquals(Lists.newArrayList(
+            ImmutableMap.of(JsonRpc.METHOD, "slow"),
+            ImmutableMap.of(JsonRpc.METHOD, "fast")
+        ), read());
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+        try {
+            Assert.assertEquals(arrival, TrafficCapture.Record.readFrom(in).getTimestamp());
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Palava;
+
+/**
+ * Tests {@link CaptureCodec} and {@link TrafficReplay}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class TrafficReplayTest {
+
+    private Map<String, Object> call(Class<?> command, Object id) {
+        final Map<String, Object> call = Maps.newLinkedHashMap();
+        call.put(JsonRpc.JSON_RPC, JsonRpc2Protocol.VERSION);
+        call.put(JsonRpc.METHOD, command.getName());
+        call.put(JsonRpc.PARAMS, ImmutableMap.of("value", 1));
+        call.put(JsonRpc.ID, id);
+        return call;
+    }
+
+    /**
+     * Tests that all supported values survive encoding and decoding.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void codec() throws IOException {
+        final Map<String, Object> value = Maps.newLinkedHashMap();
+        value.put("string", "\u00fcml\u00e4ut");
+        value.put("int", 1);
+        value.put("long", Long.MAX_VALUE);
+        value.put("double", 0.5);
+        value.put("decimal", new BigDecimal("1.25"));
+        value.put("booleans", Arrays.asList(true, false, null));
+        value.put("nested", ImmutableMap.of("empty", Maps.newHashMap()));
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CaptureCodec.write(new DataOutputStream(bytes), value);
+        final Object decoded = CaptureCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        Assert.assertEquals(value, decoded);
+    }
+
+    /**
+     * Tests that a capture consisting of multiple gzip members is replayed completely.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void replay() throws IOException {
+        final File file = File.createTempFile("capture-", ".gz");
+        file.deleteOnExit();
+        final long now = System.currentTimeMillis();
+        write(file, new TrafficCapture.Record(now, 0, 1, call(Echo.class, 1)));
+        write(file, new TrafficCapture.Record(now, 0, 2, Arrays.asList(call(Echo.class, 2), call(Fail.class, 3))));
+
+        final TrafficReplay.Report report = Palava.newFramework().getInstance(TrafficReplay.class).replay(file, true);
+        Assert.assertEquals(2, report.getRequests());
+        Assert.assertEquals(1, report.getErrors());
+    }
+
+    /**
+     * Tests that records of a connection are replayed in arrival order, even if
+     * the capture holds them in completion order.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void arrivalOrder() throws IOException {
+        final File file = File.createTempFile("capture-", ".gz");
+        file.deleteOnExit();
+        final long now = System.currentTimeMillis();
+        write(file, new TrafficCapture.Record(now + 5, 0, 1, meet(2, false)));
+        write(file, new TrafficCapture.Record(now, 0, 1, meet(1, false)));
+
+        Meet.VALUES.clear();
+        final TrafficReplay.Report report = Palava.newFramework().getInstance(TrafficReplay.class).replay(file, false);
+        Assert.assertEquals(0, report.getErrors());
+        Assert.assertEquals(Arrays.<Object>asList(1, 2), Meet.VALUES);
+    }
+
+    /**
+     * Tests that captured connections are replayed concurrently. Both calls wait
+     * for each other and would time out if replayed one after another.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void concurrent() throws IOException {
+        final File file = File.createTempFile("capture-", ".gz");
+        file.deleteOnExit();
+        final long now = System.currentTimeMillis();
+        write(file, new TrafficCapture.Record(now, 0, 1, meet(1, true)));
+        write(file, new TrafficCapture.Record(now, 0, 2, meet(2, true)));
+
+        Meet.BARRIER.reset();
+        final TrafficReplay.Report report = Palava.newFramework().getInstance(TrafficReplay.class).replay(file, true);
+        Assert.assertEquals(2, report.getRequests());
+        Assert.assertEquals(0, report.getErrors());
+    }
+
+    private Map<String, Object> meet(int value, boolean meet) {
+        final Map<String, Object> call = call(Meet.class, value);
+        call.put(JsonRpc.PARAMS, ImmutableMap.of("value", value, "meet", meet));
+        return call;
+    }
+
+    private void write(File file, TrafficCapture.Record record) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file, true)));
+        try {
+            record.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+}
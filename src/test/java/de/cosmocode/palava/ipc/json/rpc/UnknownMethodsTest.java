@@ -0,0 +1,111 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Tests {@link UnknownMethods}.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class UnknownMethodsTest implements UnitProvider<UnknownMethods> {
+
+    @Override
+    public UnknownMethods unit() {
+        final UnknownMethods unit = new UnknownMethods(MBeanServerFactory.newMBeanServer());
+        unit.setEnabled(true);
+        return unit;
+    }
+
+    /**
+     * Tests that added methods are rejected until invalidated.
+     */
+    @Test
+    public void hit() {
+        final UnknownMethods unit = unit();
+        Assert.assertFalse(unit.contains("missing"));
+        unit.add("missing");
+        Assert.assertTrue(unit.contains("missing"));
+        Assert.assertTrue(unit.contains("missing"));
+        Assert.assertFalse(unit.contains("other"));
+        Assert.assertEquals(2, unit.getRejected());
+        Assert.assertEquals(1, unit.getSize());
+    }
+
+    /**
+     * Tests that {@link UnknownMethods#invalidate()} forgets all methods.
+     */
+    @Test
+    public void invalidate() {
+        final UnknownMethods unit = unit();
+        unit.add("missing");
+        unit.invalidate();
+        Assert.assertFalse(unit.contains("missing"));
+        Assert.assertEquals(0, unit.getSize());
+    }
+
+    /**
+     * Tests that entries expire.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void expiry() throws InterruptedException {
+        final UnknownMethods unit = unit();
+        unit.setExpirationTime(1);
+        unit.setExpirationTimeUnit(TimeUnit.MILLISECONDS);
+        unit.add("missing");
+        Thread.sleep(10);
+        Assert.assertFalse(unit.contains("missing"));
+        Assert.assertEquals(0, unit.getSize());
+    }
+
+    /**
+     * Tests that a full cache starts over.
+     */
+    @Test
+    public void maxSize() {
+        final UnknownMethods unit = unit();
+        unit.setMaxSize(2);
+        unit.add("a");
+        unit.add("b");
+        unit.add("c");
+        Assert.assertEquals(1, unit.getSize());
+        Assert.assertFalse(unit.contains("a"));
+        Assert.assertTrue(unit.contains("c"));
+    }
+
+    /**
+     * Tests that a disabled cache never rejects.
+     */
+    @Test
+    public void disabled() {
+        final UnknownMethods unit = new UnknownMethods(MBeanServerFactory.newMBeanServer());
+        unit.add("missing");
+        Assert.assertFalse(unit.contains("missing"));
+    }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.ipc.json.rpc;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.protocol.DetachedConnection;
+import de.cosmocode.palava.ipc.protocol.ProtocolException;
+
+/**
+ * Tests that calls on warm-up connections bypass the idempotency cache, the
+ * circuit breakers and the rate limiter.
+ *
+ * @since 1.1
+ * @author Willi Schoenborn
+ */
+public final class WarmUpTest {
+
+    private static final String COUNT = Count.class.getName();
+
+    private static final String FAIL = Fail.class.getName();
+
+    private Framework framework;
+
+    private RateLimiter rateLimiter;
+
+    /**
+     * Creates a fresh framework and resets the execution counter.
+     */
+    @Before
+    public void before() {
+        framework = Palava.newFramework();
+        Count.EXECUTIONS.set(0);
+    }
+
+    /**
+     * Stops the rate limiter's cleanup, if started.
+     *
+     * @throws LifecycleException should not happen
+     */
+    @After
+    public void after() throws LifecycleException {
+        if (rateLimiter != null) {
+            rateLimiter.dispose();
+        }
+    }
+
+    private Object process(String version, String method, DetachedConnection connection) throws ProtocolException {
+        final Map<String, Object> request = Maps.newHashMap();
+        request.put(JsonRpc.METHOD, method);
+        request.put(JsonRpc.PARAMS, ImmutableList.of());
+        request.put(JsonRpc.ID, 1);
+        if ("1.0".equals(version)) {
+            return framework.getInstance(JsonRpcProtocol.class).process(request, connection);
+        } else {
+            request.put(JsonRpc.JSON_RPC, version);
+            return framework.getInstance(JsonRpc2Protocol.class).process(request, connection);
+        }
+    }
+
+    private boolean isCircuitOpen(Object response) {
+        final Object error = Map.class.cast(response).get(JsonRpc.ERROR);
+        return error instanceof Map<?, ?> &&
+            ErrorCode.of(Number.class.cast(Map.class.cast(error).get(JsonRpc.CODE)).intValue()) == ErrorCode.CIRCUIT_OPEN;
+    }
+
+    /**
+     * Tests that warm-up connections are recognized, also behind stateless views.
+     */
+    @Test
+    public void marker() {
+        final SessionAttachment attachment = framework.getInstance(SessionAttachment.class);
+        attachment.setStatelessMethods("stateless\\..*");
+        final DetachedConnection warmUp = WarmUp.newWarmUpConnection();
+        attachment.attach(warmUp);
+        Assert.assertTrue(WarmUp.isWarmUp(warmUp));
+        Assert.assertTrue(WarmUp.isWarmUp(attachment.connectionOf("stateless.Command", warmUp)));
+        Assert.assertFalse(WarmUp.isWarmUp(WarmUp.newConnection()));
+    }
+
+    /**
+     * Tests that warm-up calls are neither cached nor replayed.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void idempotency() throws ProtocolException {
+        final IdempotencyCache cache = framework.getInstance(IdempotencyCache.class);
+        cache.setEnabled(true);
+        cache.setDeriveFromId(true);
+        final DetachedConnection warmUp = WarmUp.newWarmUpConnection();
+        process("2.0", COUNT, warmUp);
+        process("2.0", COUNT, warmUp);
+        Assert.assertEquals(2, Count.EXECUTIONS.get());
+        final DetachedConnection connection = WarmUp.newConnection();
+        process("2.0", COUNT, connection);
+        process("2.0", COUNT, connection);
+        Assert.assertEquals(3, Count.EXECUTIONS.get());
+    }
+
+    /**
+     * Tests that warm-up calls neither consume nor need permits.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void rateLimit() throws Exception {
+        rateLimiter = framework.getInstance(RateLimiter.class);
+        rateLimiter.setEnabled(true);
+        rateLimiter.setPermits(1);
+        rateLimiter.setPeriod(1);
+        rateLimiter.setPeriodUnit(TimeUnit.HOURS);
+        rateLimiter.initialize();
+        final DetachedConnection warmUp = WarmUp.newWarmUpConnection();
+        for (int i = 0; i < 3; i++) {
+            process("2.0", COUNT, warmUp);
+            process("1.0", COUNT, warmUp);
+        }
+        Assert.assertEquals(6, Count.EXECUTIONS.get());
+        Assert.assertEquals(0, rateLimiter.getThrottled());
+    }
+
+    private void circuitBreaker(String version) throws ProtocolException {
+        final CircuitBreakers breakers = framework.getInstance(CircuitBreakers.class);
+        breakers.setEnabled(true);
+        breakers.setWindowSize(10);
+        breakers.setMinimumCalls(2);
+        final DetachedConnection warmUp = WarmUp.newWarmUpConnection();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse(isCircuitOpen(process(version, FAIL, warmUp)));
+        }
+        // only these two failures count, the breaker opens afterwards
+        final DetachedConnection connection = WarmUp.newConnection();
+        Assert.assertFalse(isCircuitOpen(process(version, FAIL, connection)));
+        Assert.assertFalse(isCircuitOpen(process(version, FAIL, connection)));
+        Assert.assertTrue(isCircuitOpen(process(version, FAIL, connection)));
+        Assert.assertFalse(isCircuitOpen(process(version, FAIL, warmUp)));
+    }
+
+    /**
+     * Tests that failing json-rpc 2.0 warm-up calls don't count towards a breaker
+     * and pass an open one.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void circuitBreaker2() throws ProtocolException {
+        circuitBreaker("2.0");
+    }
+
+    /**
+     * Tests that failing json-rpc 1.0 warm-up calls don't count towards a breaker
+     * and pass an open one.
+     *
+     * @throws ProtocolException should not happen
+     */
+    @Test
+    public void circuitBreaker1() throws ProtocolException {
+        circuitBreaker("1.0");
+    }
+
+}